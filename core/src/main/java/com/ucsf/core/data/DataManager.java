@@ -4,6 +4,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import java.io.ByteArrayInputStream;
@@ -33,6 +34,7 @@ public class DataManager extends AbstractConnection {
     public  static final String             KEY_PATIENT_ID   = "patient";
     public  static final String             KEY_TIMESTAMP    = "timestamp";
     public  static final String             KEY_IS_COMMITTED = "committed";
+    public  static final String             KEY_SOURCE       = "source";
     private static final String             TAG              = "ucsf:DataManager";
     private static final int                DATABASE_VERSION = 49;
     private static final String             DATABASE_NAME    = "data.db";
@@ -72,6 +74,40 @@ public class DataManager extends AbstractConnection {
         mDb.close();
     }
 
+    /**
+     * Starts a transaction, so that the next operations of the calling thread are applied at
+     * once by {@link DataManager#endTransaction()}. The typical way to use a transaction is:
+     * <pre>
+     * {@code
+     *      instance.beginTransaction();
+     *      try {
+     *          // Perform operations on the database
+     *          instance.setTransactionSuccessful();
+     *      } finally {
+     *          instance.endTransaction();
+     *      }
+     * }
+     * </pre>
+     */
+    public void beginTransaction() {
+        mDb.beginTransaction();
+    }
+
+    /**
+     * Marks the current transaction as successful, so that it is committed when it ends.
+     */
+    public void setTransactionSuccessful() {
+        mDb.setTransactionSuccessful();
+    }
+
+    /**
+     * Ends the current transaction, committing it if it has been marked as successful and
+     * rolling it back otherwise.
+     */
+    public void endTransaction() {
+        mDb.endTransaction();
+    }
+
     /**
      * Returns the database table register under the given tag.
      */
@@ -111,6 +147,16 @@ public class DataManager extends AbstractConnection {
         }
     }
 
+    /**
+     * Removes the given table from the database, along with its entries.
+     */
+    public void dropTable(Table table) {
+        synchronized (mTables) {
+            mTables.remove(table.tag);
+            mDb.execSQL(String.format("DROP TABLE IF EXISTS %s", table.tag));
+        }
+    }
+
     /**
      * Formats the given table field definition to a valid SQLite format.
      */
@@ -230,6 +276,7 @@ public class DataManager extends AbstractConnection {
 
         // If the table exists, update its columns
         if (cursor != null && cursor.moveToFirst()) {
+            boolean isAutoIncrement = isAutoIncrement(table);
             Set<String> columnNames = new HashSet<>();
             Set<String> toDrop = new HashSet<>();
             Set<TableField> toAlter = new HashSet<>();
@@ -269,8 +316,14 @@ public class DataManager extends AbstractConnection {
             }
 
             // Apply changes
-            if (!toAdd.isEmpty() || !toAlter.isEmpty() || !toDrop.isEmpty()) {
-                if (toAlter.isEmpty() && toDrop.isEmpty()) {
+            if (!toAdd.isEmpty() || !toAlter.isEmpty() || !toDrop.isEmpty() || !isAutoIncrement) {
+                // SQLite cannot add a unique column to an existing table
+                boolean isAddingUnique = false;
+                for (TableField field : toAdd)
+                    isAddingUnique |= field.type == Type.UniqueText;
+
+                // SQLite cannot make the row id of an existing table auto-incremented either
+                if (toAlter.isEmpty() && toDrop.isEmpty() && !isAddingUnique && isAutoIncrement) {
                     // Add the missing columns to the table
                     for (TableField field : toAdd) {
                         Log.i(TAG, String.format("Insertion of a new column '%s' in table '%s'",
@@ -303,6 +356,16 @@ public class DataManager extends AbstractConnection {
                     sql.append(" FROM ").append(tmpName);
                     mDb.execSQL(sql.toString());
 
+                    // Keep the ids of the erased entries from being reused
+                    mDb.execSQL("UPDATE sqlite_sequence SET seq = (SELECT seq FROM sqlite_sequence"
+                            + " WHERE name = ?) WHERE name = ? AND seq < (SELECT seq FROM"
+                            + " sqlite_sequence WHERE name = ?)",
+                            new Object[]{tmpName, table.tag, tmpName});
+                    mDb.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT ?, seq FROM"
+                            + " sqlite_sequence WHERE name = ? AND NOT EXISTS (SELECT 1 FROM"
+                            + " sqlite_sequence WHERE name = ?)",
+                            new Object[]{table.tag, tmpName, table.tag});
+
                     // Delete the old table
                     mDb.execSQL(String.format("DROP TABLE %s", tmpName));
                 }
@@ -311,6 +374,44 @@ public class DataManager extends AbstractConnection {
             Log.i(TAG, String.format("Insertion of a new table: '%s'", table.tag));
             createDatabaseTable(table);
         }
+
+        createIndexes(table);
+    }
+
+    /**
+     * Indexes the entries of the given table by patient then row id, if the table has a patient
+     * field, so that the entries of a patient following a given row id are read without scanning
+     * the whole table. The entries received from another device are also indexed by source then
+     * timestamp, so that the entries received before their source was recorded are looked up by
+     * time without scanning the whole table.
+     */
+    private void createIndexes(Table table) {
+        Set<String> tags = new HashSet<>();
+        for (TableField field : table.fields)
+            tags.add(field.tag);
+
+        if (tags.contains(KEY_PATIENT_ID))
+            mDb.execSQL(String.format("CREATE INDEX IF NOT EXISTS %s_%s ON %s (%s, %s)",
+                    table.tag, KEY_PATIENT_ID, table.tag, KEY_PATIENT_ID, KEY_ROW_ID));
+        if (tags.contains(KEY_SOURCE) && tags.contains(KEY_TIMESTAMP))
+            mDb.execSQL(String.format("CREATE INDEX IF NOT EXISTS %s_%s ON %s (%s, %s)",
+                    table.tag, KEY_SOURCE, table.tag, KEY_SOURCE, KEY_TIMESTAMP));
+    }
+
+    /**
+     * Indicates if the row id of the given database table is auto-incremented. Otherwise SQLite
+     * reuses the ids of the last entries once they are erased, and the new entries would be taken
+     * for entries already under their {@link Watermarks upload mark}.
+     */
+    private boolean isAutoIncrement(Table table) {
+        android.database.Cursor cursor = mDb.rawQuery(
+                "SELECT sql FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[]{table.tag});
+        try {
+            return cursor.moveToFirst() && cursor.getString(0).contains("AUTOINCREMENT");
+        } finally {
+            cursor.close();
+        }
     }
 
     /**
@@ -318,7 +419,7 @@ public class DataManager extends AbstractConnection {
      */
     private void createDatabaseTable(final Table table) {
         StringBuilder request = new StringBuilder(
-                String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY ASC",
+                String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT",
                         table.tag, KEY_ROW_ID));
 
         for (final TableField field : table.fields)
@@ -424,6 +525,22 @@ public class DataManager extends AbstractConnection {
             }
         }
 
+        /**
+         * Condition for which the given field has no value.
+         */
+        public static class IsNull extends Condition {
+            public final String tag; /**< Unique identifier of the field to match. */
+
+            public IsNull(String tag) {
+                this.tag = tag;
+            }
+
+            @Override
+            public String toString() {
+                return String.format("%s IS NULL", tag);
+            }
+        }
+
         /**
          * Condition for which the given field has to be smaller than the given value.
          * The order used is defined by the underlying database, here MySql.
@@ -522,6 +639,51 @@ public class DataManager extends AbstractConnection {
                         first.toString(), last.toString());
             }
         }
+
+        /**
+         * Condition for which all the given conditions have to be satisfied.
+         */
+        public static class And extends Condition {
+            public final Condition[] conditions; /**< Conditions to satisfy. */
+
+            public And(Condition... conditions) {
+                this.conditions = conditions;
+            }
+
+            @Override
+            public String toString() {
+                return join(" AND ", conditions);
+            }
+        }
+
+        /**
+         * Condition for which at least one of the given conditions has to be satisfied.
+         */
+        public static class Or extends Condition {
+            public final Condition[] conditions; /**< Conditions of which one to satisfy. */
+
+            public Or(Condition... conditions) {
+                this.conditions = conditions;
+            }
+
+            @Override
+            public String toString() {
+                return join(" OR ", conditions);
+            }
+        }
+
+        /**
+         * Joins the given conditions with the given operator, between parenthesis.
+         */
+        private static String join(String operator, Condition... conditions) {
+            StringBuilder builder = new StringBuilder("(");
+            for (int i = 0; i < conditions.length; ++i) {
+                if (i > 0)
+                    builder.append(operator);
+                builder.append(conditions[i].toString());
+            }
+            return builder.append(")").toString();
+        }
     }
 
     /**
@@ -580,6 +742,21 @@ public class DataManager extends AbstractConnection {
             return mCursor.moveToPrevious();
         }
 
+        /**
+         * Moves the cursor to point to the entry at the given position.
+         * @return Returns false if the position is out of the underlying list of entries.
+         */
+        public boolean moveToPosition(int position) {
+            return mCursor.moveToPosition(position);
+        }
+
+        /**
+         * Returns the position of the entry pointed by the cursor.
+         */
+        public int getPosition() {
+            return mCursor.getPosition();
+        }
+
         /**
          * Returns the underlying cursor and invalidate itself.
          */
@@ -745,6 +922,23 @@ public class DataManager extends AbstractConnection {
             return mDb.insert(tag, null, formatEntries(entries)) != -1;
         }
 
+        /**
+         * Returns the greatest row id ever given to an entry of the table, or 0 if none. New
+         * entries always get a greater id, even when the last entries have been erased. The
+         * database must have been opened before (see {@link DataManager#get(Context)}).
+         */
+        public long getLastRowId() throws Exception {
+            checkDb();
+
+            android.database.Cursor cursor = mDb.rawQuery(
+                    "SELECT seq FROM sqlite_sequence WHERE name = ?", new String[]{tag});
+            try {
+                return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+            } finally {
+                cursor.close();
+            }
+        }
+
         /**
          * Fetch all entries matching the given conditions. The database must have been opened
          * before (see {@link DataManager#get(Context)}).
@@ -797,6 +991,46 @@ public class DataManager extends AbstractConnection {
          */
         public Cursor fetch(int limit, String[] entriesTags, Condition... conditions)
                 throws Exception
+        {
+            return fetchOrdered(limit, entriesTags, null, conditions);
+        }
+
+        /**
+         * Fetch all entries matching the given conditions up to the given limit, sorted by the
+         * given field. The database must have been opened before (see
+         * {@link DataManager#get(Context)}).
+         * @param limit      Maximal number of entries to fetch.
+         * @param orderBy    Field used to sort the entries, optionally followed by "DESC".
+         * @param conditions List of conditions to satisfy. See {@link DataManager.Condition} for
+         *                   supported conditions.
+         * @return Returns null if an error occurs or a cursor pointing to the requested entries.
+         */
+        public Cursor fetchOrdered(int limit, String orderBy, Condition... conditions)
+                throws Exception
+        {
+            // Get the entries
+            String[] entries = new String[fields.length + 1];
+            for (int i = 0; i < fields.length; ++i)
+                entries[i] = fields[i].tag;
+            entries[fields.length] = KEY_ROW_ID;
+
+            return fetchOrdered(limit, entries, orderBy, conditions);
+        }
+
+        /**
+         * Fetch all entries of the given types matching the given conditions up to the given limit,
+         * sorted by the given field. The database must have been opened before (see
+         * {@link DataManager#get(Context)}).
+         * @param limit       Maximal number of entries to fetch.
+         * @param entriesTags List of the field tags to fetch.
+         * @param orderBy     Field used to sort the entries, optionally followed by "DESC". If
+         *                    null, the order is defined by the underlying database.
+         * @param conditions  List of conditions to satisfy. See {@link DataManager.Condition} for
+         *                    supported conditions.
+         * @return Returns null if an error occurs or a cursor pointing to the requested entries.
+         */
+        public Cursor fetchOrdered(int limit, String[] entriesTags, String orderBy,
+                                   Condition... conditions) throws Exception
         {
             checkDb();
 
@@ -805,7 +1039,7 @@ public class DataManager extends AbstractConnection {
                     mDb.query(true, tag,
                             entriesTags,
                             formatConditions(conditions),
-                            null, null, null, null,
+                            null, null, null, orderBy,
                             limit > 0 ? String.valueOf(limit) : null);
 
             // Returns a cursor pointing to the first entry (if valid).
@@ -916,6 +1150,76 @@ public class DataManager extends AbstractConnection {
             }
         }
 
+        /**
+         * Prepares the insertion of many entries, which is much faster than calling
+         * {@link Table#add(Entry...)} for each of them since the statement is compiled only once.
+         * Entries conflicting with an existing entry on a unique field are ignored. The database
+         * must have been opened before (see {@link DataManager#get(Context)}), and the insertion
+         * must be closed after use.
+         */
+        public Insertion prepareInsertion() throws Exception {
+            checkDb();
+            return new Insertion();
+        }
+
+        /**
+         * Prepared insertion of entries in the table, see {@link Table#prepareInsertion()}.
+         */
+        public class Insertion implements AutoCloseable {
+            private final SQLiteStatement      mStatement;
+            private final Map<String, Integer> mIndexes = new HashMap<>();
+
+            private Insertion() {
+                StringBuilder sql = new StringBuilder("INSERT OR IGNORE INTO ")
+                        .append(tag).append(" (");
+                for (int i = 0; i < fields.length; ++i) {
+                    sql.append(i == 0 ? "" : ", ").append(fields[i].tag);
+                    mIndexes.put(fields[i].tag, i + 1);
+                }
+                sql.append(") VALUES (");
+                for (int i = 0; i < fields.length; ++i)
+                    sql.append(i == 0 ? "?" : ", ?");
+                sql.append(")");
+
+                mStatement = mDb.compileStatement(sql.toString());
+            }
+
+            /**
+             * Inserts the given entries. Missing fields are filled with the corresponding field
+             * default value.
+             * @return Returns false if the entries have been ignored or if an error occurred.
+             */
+            public boolean insert(Entry... entries) throws Exception {
+                for (int i = 0; i < fields.length; ++i) {
+                    if (fields[i].defaultValue != null)
+                        mStatement.bindString(i + 1, fields[i].defaultValue.toString());
+                    else
+                        mStatement.bindNull(i + 1);
+                }
+
+                for (Entry entry : entries) {
+                    Integer index = mIndexes.get(entry.tag);
+                    if (index == null)
+                        throw new Exception(String.format("Invalid field '%s' for table '%s'.",
+                                entry.tag, tag));
+
+                    if (entry.value == null)
+                        mStatement.bindNull(index);
+                    else if (entry.value instanceof byte[])
+                        mStatement.bindBlob(index, (byte[]) entry.value);
+                    else
+                        mStatement.bindString(index, entry.value.toString());
+                }
+
+                return mStatement.executeInsert() != -1;
+            }
+
+            @Override
+            public void close() {
+                mStatement.close();
+            }
+        }
+
         /**
          * Removes entries matching the given conditions. The database must have been opened before
          * (see {@link DataManager#get(Context)}).
@@ -3,6 +3,7 @@ package com.ucsf.core.data;
 import android.content.Context;
 
 import java.io.Serializable;
+import java.security.SecureRandom;
 
 /**
  * Interface to access the application parameters.
@@ -21,6 +22,10 @@ public abstract class Settings {
             new PersistentParameter<>("sensortag_id_group", "");
     private static final PersistentParameter<String> mCurrentSensortagTypeGroup =
             new PersistentParameter<>("sensortag_type_group", "");
+    private static final PersistentParameter<String> mCurrentSensortagConfigHash =
+            new PersistentParameter<>("sensortag_config_hash", "");
+    private static final PersistentParameter<Long>   mDataEpoch =
+            new PersistentParameter<>("data_epoch", 0L);
     private static       DataManager.Table           mSettingsTable = null;
     public         final Context                     context;
 
@@ -91,6 +96,29 @@ public abstract class Settings {
         return mCurrentSensortagTypeGroup.get(context);
     }
 
+    /**
+     * Returns the hash of the current SensorTag configuration, as computed by the phone.
+     */
+    public static String getCurrentSensortagConfigHash(Context context) {
+        return mCurrentSensortagConfigHash.get(context);
+    }
+
+    /**
+     * Returns the epoch of the database, i.e. a random identifier generated along with it. The
+     * row ids of a new database start over, so the epoch tells another device which database the
+     * row ids it received refer to.
+     */
+    public static synchronized long getDataEpoch(Context context) {
+        long epoch = mDataEpoch.get(context);
+        if (epoch == 0) {
+            epoch = new SecureRandom().nextLong() & Long.MAX_VALUE;
+            if (epoch == 0)
+                epoch = 1;
+            mDataEpoch.set(context, epoch);
+        }
+        return epoch;
+    }
+
     /**
      * Binds this application to the user identified by the given unique id.
      */
@@ -106,6 +134,10 @@ public abstract class Settings {
         mCurrentSensortagTypeGroup.set(context, sensortagTypeGroup);
     }
 
+    public static void setCurrentSensortagConfigHash(Context context, String configHash) {
+        mCurrentSensortagConfigHash.set(context, configHash);
+    }
+
     /**
      * Returns the table storing the application warnings and errors logs.
      */
@@ -17,6 +17,8 @@ public abstract class SharedTables {
      * - {@link DataManager#KEY_PATIENT_ID}     [TEXT]   : Unique id of the patient                 <br/>
      * - {@link DataManager#KEY_IS_COMMITTED}   [BOOLEAN]: Indicates if the entry has been
      *                                                     synchronized with a remote device        <br/>
+     * - {@link DataManager#KEY_SOURCE}         [TEXT]   : Device and row id of the entry on the
+     *                                                     device which sent it, if any             <br/>
      * - {@link Sensors#KEY_ACC_X}              [REAL]   : X component of the device acceleration   <br/>
      * - {@link Sensors#KEY_ACC_Y}              [REAL]   : Y component of the device acceleration   <br/>
      * - {@link Sensors#KEY_ACC_Z}              [REAL]   : Z component of the device acceleration   <br/>
@@ -52,6 +54,7 @@ public abstract class SharedTables {
                         new DataManager.TableField(DataManager.KEY_TIMESTAMP, DataManager.Type.Text),
                         new DataManager.TableField(DataManager.KEY_PATIENT_ID, DataManager.Type.Text),
                         new DataManager.TableField(DataManager.KEY_IS_COMMITTED, DataManager.Type.Boolean, 0),
+                        new DataManager.TableField(DataManager.KEY_SOURCE, DataManager.Type.UniqueText),
                         new DataManager.TableField(KEY_ACC_X, DataManager.Type.Real),
                         new DataManager.TableField(KEY_ACC_Y, DataManager.Type.Real),
                         new DataManager.TableField(KEY_ACC_Z, DataManager.Type.Real),
@@ -81,6 +84,8 @@ public abstract class SharedTables {
      * - {@link DataManager#KEY_PATIENT_ID}     [TEXT]   : Unique id of the patient                 <br/>
      * - {@link DataManager#KEY_IS_COMMITTED}   [BOOLEAN]: Indicates if the entry has been
      *                                                     synchronized with a remote device        <br/>
+     * - {@link DataManager#KEY_SOURCE}         [TEXT]   : Device and row id of the entry on the
+     *                                                     device which sent it, if any             <br/>
      * - {@link Estimote#KEY_RSSI}              [BLOB]   : RSSI values
      */
     public static abstract class Estimote {
@@ -98,6 +103,7 @@ public abstract class SharedTables {
                         new DataManager.TableField(DataManager.KEY_PATIENT_ID, DataManager.Type.Text),
                         new DataManager.TableField(DataManager.KEY_TIMESTAMP, DataManager.Type.Text),
                         new DataManager.TableField(DataManager.KEY_IS_COMMITTED, DataManager.Type.Boolean, 0),
+                        new DataManager.TableField(DataManager.KEY_SOURCE, DataManager.Type.UniqueText),
                         new DataManager.TableField(KEY_RSSI, DataManager.Type.Blob)
                 );
             return mTable;
@@ -110,6 +116,8 @@ public abstract class SharedTables {
      * - {@link DataManager#KEY_PATIENT_ID}     [TEXT]   : Unique id of the patient                 <br/>
      * - {@link DataManager#KEY_IS_COMMITTED}   [BOOLEAN]: Indicates if the entry has been
      *                                                     synchronized with a remote device        <br/>
+     * - {@link DataManager#KEY_SOURCE}         [TEXT]   : Device and row id of the entry on the
+     *                                                     device which sent it, if any             <br/>
      * - {@link GroundTrust#KEY_TYPE}           [TEXT]   : Type of data we want to label            <br/>
      * - {@link GroundTrust#KEY_LABEL}          [TEXT]   : Label of the data                        <br/>
      * - {@link GroundTrust#KEY_START}          [TEXT]   : Timestamp corresponding to the start of
@@ -134,6 +142,7 @@ public abstract class SharedTables {
                         DeviceLocation.PatientPhone,
                         new DataManager.TableField(DataManager.KEY_PATIENT_ID, DataManager.Type.Text),
                         new DataManager.TableField(DataManager.KEY_IS_COMMITTED, DataManager.Type.Boolean, 0),
+                        new DataManager.TableField(DataManager.KEY_SOURCE, DataManager.Type.UniqueText),
                         new DataManager.TableField(KEY_TYPE, DataManager.Type.Text),
                         new DataManager.TableField(KEY_LABEL, DataManager.Type.Text),
                         new DataManager.TableField(KEY_START, DataManager.Type.Text),
@@ -149,6 +158,8 @@ public abstract class SharedTables {
      * - {@link DataManager#KEY_PATIENT_ID}     [TEXT]   : Unique id of the patient                 <br/>
      * - {@link DataManager#KEY_IS_COMMITTED}   [BOOLEAN]: Indicates if the entry has been
      *                                                     synchronized with a remote device        <br/>
+     * - {@link DataManager#KEY_SOURCE}         [TEXT]   : Device and row id of the entry on the
+     *                                                     device which sent it, if any             <br/>
      * - {@link Logs#KEY_LOG}                   [TEXT]   : Content of the log
      */
     public static abstract class Logs {
@@ -166,6 +177,7 @@ public abstract class SharedTables {
                         new DataManager.TableField(DataManager.KEY_PATIENT_ID, DataManager.Type.Text),
                         new DataManager.TableField(DataManager.KEY_TIMESTAMP, DataManager.Type.Text),
                         new DataManager.TableField(DataManager.KEY_IS_COMMITTED, DataManager.Type.Boolean, 0),
+                        new DataManager.TableField(DataManager.KEY_SOURCE, DataManager.Type.UniqueText),
                         new DataManager.TableField(KEY_LOG, DataManager.Type.Text)
                 );
             return mTable;
@@ -197,6 +209,7 @@ public abstract class SharedTables {
                         new DataManager.TableField(DataManager.KEY_PATIENT_ID, DataManager.Type.Text),
                         new DataManager.TableField(DataManager.KEY_TIMESTAMP, DataManager.Type.Text),
                         new DataManager.TableField(DataManager.KEY_IS_COMMITTED, DataManager.Type.Boolean, 0),
+                        new DataManager.TableField(DataManager.KEY_SOURCE, DataManager.Type.UniqueText),
                         new DataManager.TableField(KEY_SENSORTAG_ID, DataManager.Type.Text),
                         new DataManager.TableField(KEY_TYPE, DataManager.Type.Text),
                         new DataManager.TableField(KEY_READING_ALL, DataManager.Type.Real),
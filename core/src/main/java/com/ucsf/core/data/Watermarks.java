@@ -0,0 +1,148 @@
+package com.ucsf.core.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores, for each table and patient, the row id of the last entry acknowledged by a remote device
+ * (the high-water mark). Entries are uploaded by increasing row id, so all the entries whose row
+ * id is lower or equal to the mark have been received, and an interrupted upload can resume right
+ * after the mark without updating each uploaded entry. A table sent as a whole, whatever the
+ * patient, uses the {@link Watermarks#ALL_PATIENTS} mark.
+ * A mark above the last row id of its table comes from a time when SQLite reused the ids of the
+ * erased entries: the entries under such a mark cannot be told apart, so the mark is reset.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public abstract class Watermarks {
+    public  static final String            ALL_PATIENTS    = "*";
+    private static final String            TAG             = "ucsf:Watermarks";
+    private static final String            KEY_TABLE       = "table_tag";
+    private static final String            KEY_WATERMARK   = "row_id";
+    private static       DataManager.Table mWatermarkTable = null;
+
+    private static DataManager.Table getTable(DataManager instance) throws Exception {
+        if (mWatermarkTable == null)
+            mWatermarkTable = instance.createTable(
+                    "upload_watermarks",
+                    DeviceLocation.Unknown,
+                    new DataManager.TableField(KEY_TABLE, DataManager.Type.Text),
+                    new DataManager.TableField(DataManager.KEY_PATIENT_ID, DataManager.Type.Text),
+                    new DataManager.TableField(KEY_WATERMARK, DataManager.Type.Integer)
+            );
+        return mWatermarkTable;
+    }
+
+    /**
+     * Returns the row id of the last acknowledged entry of the given table and patient, or 0 if
+     * no entry has been acknowledged yet.
+     */
+    public static long get(Context context, DataManager.Table table, String patientId)
+            throws Exception
+    {
+        try (DataManager instance = DataManager.get(context)) {
+            DataManager.Cursor cursor = getTable(instance).fetch(new String[]{KEY_WATERMARK},
+                    new DataManager.Condition.Equal<>(KEY_TABLE, table.tag),
+                    new DataManager.Condition.Equal<>(DataManager.KEY_PATIENT_ID, patientId));
+            if (cursor != null && cursor.moveToFirst())
+                return check(instance, table, patientId, cursor.getLong(KEY_WATERMARK));
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the marks of all the patients of the given table, indexed by patient id.
+     */
+    public static Map<String, Long> get(Context context, DataManager.Table table)
+            throws Exception
+    {
+        Map<String, Long> watermarks = new HashMap<>();
+        try (DataManager instance = DataManager.get(context)) {
+            DataManager.Cursor cursor = getTable(instance).fetch(
+                    new String[]{DataManager.KEY_PATIENT_ID, KEY_WATERMARK},
+                    new DataManager.Condition.Equal<>(KEY_TABLE, table.tag));
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    String patientId = cursor.getString(DataManager.KEY_PATIENT_ID);
+                    watermarks.put(patientId,
+                            check(instance, table, patientId, cursor.getLong(KEY_WATERMARK)));
+                } while (cursor.moveToNext());
+            }
+        }
+        return watermarks;
+    }
+
+    /**
+     * Sets the row id of the last acknowledged entry of the given table and patient. The mark is
+     * only raised: uploads may finish out of order, and a late one must not move the mark back
+     * over entries already acknowledged.
+     */
+    public static boolean set(Context context, DataManager.Table table, String patientId,
+                              long rowId) throws Exception
+    {
+        try (DataManager instance = DataManager.get(context)) {
+            DataManager.Table     watermarks  = getTable(instance);
+            DataManager.Condition tableCond   =
+                    new DataManager.Condition.Equal<>(KEY_TABLE, table.tag);
+            DataManager.Condition patientCond =
+                    new DataManager.Condition.Equal<>(DataManager.KEY_PATIENT_ID, patientId);
+
+            instance.beginTransaction();
+            try {
+                boolean isSet = watermarks.update(
+                        new Entry[]{new Entry(KEY_WATERMARK, rowId)},
+                        tableCond, patientCond,
+                        new DataManager.Condition.Less<>(KEY_WATERMARK, rowId));
+                if (!isSet) {
+                    DataManager.Cursor cursor = watermarks.fetch(new String[]{KEY_WATERMARK},
+                            tableCond, patientCond);
+                    isSet = (cursor != null && cursor.moveToFirst()) || watermarks.add(
+                            new Entry(KEY_TABLE, table.tag),
+                            new Entry(DataManager.KEY_PATIENT_ID, patientId),
+                            new Entry(KEY_WATERMARK, rowId));
+                }
+                instance.setTransactionSuccessful();
+                return isSet;
+            } finally {
+                instance.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Returns the given mark of the given table and patient, after resetting it if it is above
+     * the last row id of the table.
+     */
+    private static long check(DataManager instance, DataManager.Table table, String patientId,
+                              long mark) throws Exception
+    {
+        long lastRowId = table.getLastRowId();
+        if (mark <= lastRowId)
+            return mark;
+
+        Log.w(TAG, String.format("Reset of the mark %d of table '%s' above its last row id %d",
+                mark, table.tag, lastRowId));
+        getTable(instance).fetchAndAdd(
+                new Entry[]{
+                        new Entry(KEY_TABLE, table.tag),
+                        new Entry(DataManager.KEY_PATIENT_ID, patientId)
+                },
+                new Entry(KEY_WATERMARK, 0)
+        );
+        return 0;
+    }
+
+    /**
+     * Removes the marks of all the patients of the given table.
+     */
+    public static boolean clear(Context context, DataManager.Table table) throws Exception {
+        try (DataManager instance = DataManager.get(context)) {
+            return getTable(instance).erase(
+                    new DataManager.Condition.Equal<>(KEY_TABLE, table.tag));
+        }
+    }
+}
@@ -56,6 +56,15 @@ public abstract class BackgroundService extends Service {
     /** Method called when the service is stoped. */
     protected abstract void onStop();
 
+    /**
+     * Method called when the given parameter has changed while the service is running (see
+     * {@link Services.Provider#onParameterChanged(ServiceParameter)}).
+     * @return True if the change has been applied, false if the service has to be restarted.
+     */
+    protected boolean onParameterChanged(ServiceParameter<?> parameter) throws Exception {
+        return false;
+    }
+
     /** Abstract background service provider (seet {@link Services.Provider}). */
     public static abstract class Provider extends Services.Provider {
         private final Class<? extends BackgroundService> mServiceClass;
@@ -90,6 +99,12 @@ public abstract class BackgroundService extends Service {
             return mServiceInstance != null;
         }
 
+        @Override
+        protected boolean onParameterChanged(ServiceParameter<?> parameter) throws Exception {
+            BackgroundService service = mServiceInstance;
+            return service != null && service.onParameterChanged(parameter);
+        }
+
         /** Stop the service without calling {@link BackgroundService#onStop()}. */
         private void killService() {
             context.stopService(new Intent(context, mServiceClass));
@@ -10,6 +10,9 @@ import com.ucsf.core.data.DataManager;
 import com.ucsf.core.data.DataManager.Condition;
 import com.ucsf.core.data.SharedTables;
 import com.ucsf.core.data.Timestamp;
+import com.ucsf.core.data.Watermarks;
+
+import java.util.Map;
 
 /**
  * Service responsible of cleaning the database. Entries older than one week and that are committed
@@ -45,20 +48,33 @@ public abstract class CleanupService extends RecurringService {
         }
 
         /**
-         * Erases committed entries older than {@link Provider#getCleanupTime()}.
+         * Erases committed entries older than {@link Provider#getCleanupTime()}. Entries are
+         * committed if flagged as such or if they are under the {@link Watermarks upload mark} of
+         * their patient or of all the patients.
          */
         public void cleanData() throws Exception {
             String    timestamp  = Timestamp.getTimestamp(-getCleanupTime());
-            Condition timeCond   = new Condition.Less<>(DataManager.KEY_TIMESTAMP, timestamp);
             Condition commitCond = new Condition.Equal<>(DataManager.KEY_IS_COMMITTED, 1);
 
             try (DataManager instance = DataManager.get(context)) {
                 for (DataManager.Table table : UploaderService.getMonitoredTables()) {
+                    Condition timeCond;
                     if (table == SharedTables.GroundTrust.getTable(instance))
-                        table.erase(commitCond,
-                                new Condition.LessEqual<>(SharedTables.GroundTrust.KEY_END, timestamp));
+                        timeCond = new Condition.LessEqual<>(SharedTables.GroundTrust.KEY_END,
+                                timestamp);
                     else
-                        table.erase(timeCond, commitCond);
+                        timeCond = new Condition.Less<>(DataManager.KEY_TIMESTAMP, timestamp);
+
+                    table.erase(commitCond, timeCond);
+                    for (Map.Entry<String, Long> mark : Watermarks.get(context, table).entrySet()) {
+                        Condition markCond =
+                                new Condition.LessEqual<>(DataManager.KEY_ROW_ID, mark.getValue());
+                        if (mark.getKey().equals(Watermarks.ALL_PATIENTS))
+                            table.erase(timeCond, markCond);
+                        else
+                            table.erase(timeCond, markCond,
+                                    new Condition.Equal<>(DataManager.KEY_PATIENT_ID, mark.getKey()));
+                    }
                 }
             } catch (Exception e) {
                 throw e;
@@ -0,0 +1,144 @@
+package com.ucsf.core.services;
+
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tracks whether the other device is reachable without polling it. The state is pushed by the
+ * Wearable peer callbacks and by the list of connected nodes fetched by the
+ * {@link WearableClient}, and each message, data item or channel received from a device proves
+ * that it is alive. A heartbeat (e.g. a ping request) is only needed when the other device has
+ * been silent for a while, see {@link ConnectivityTracker#getSilence()}.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public abstract class ConnectivityTracker {
+    private static final String         TAG        = "ucsf:ConnectivityTracker";
+    private static final Set<String>    mPeers     = new HashSet<>();
+    private static final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private static       long           mLastSeen  = 0;
+
+    /**
+     * Interface notified when the other device becomes reachable or unreachable.
+     */
+    public interface Listener {
+        void onConnectivityChanged(boolean isConnected);
+    }
+
+    /**
+     * Registers the given listener.
+     */
+    public static void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Unregisters the given listener.
+     */
+    public static void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Returns if a device is currently connected.
+     */
+    public static synchronized boolean isConnected() {
+        return !mPeers.isEmpty();
+    }
+
+    /**
+     * Returns the time, in milliseconds, since the last proof of life of a connected device, or
+     * {@link Long#MAX_VALUE} if no device has ever been seen.
+     */
+    public static synchronized long getSilence() {
+        return mLastSeen == 0 ? Long.MAX_VALUE : System.currentTimeMillis() - mLastSeen;
+    }
+
+    /**
+     * Method called when the given device connects.
+     */
+    public static void onPeerConnected(String node) {
+        onTrafficReceived(node);
+    }
+
+    /**
+     * Method called when the given device disconnects.
+     */
+    public static void onPeerDisconnected(String node) {
+        boolean wasConnected;
+        boolean isConnected;
+        synchronized (ConnectivityTracker.class) {
+            wasConnected = !mPeers.isEmpty();
+            mPeers.remove(node);
+            isConnected  = !mPeers.isEmpty();
+        }
+        notifyListeners(wasConnected, isConnected);
+    }
+
+    /**
+     * Method called when anything is received from the given device.
+     */
+    public static void onTrafficReceived(String node) {
+        if (node == null)
+            return;
+
+        boolean wasConnected;
+        synchronized (ConnectivityTracker.class) {
+            wasConnected = !mPeers.isEmpty();
+            mLastSeen    = System.currentTimeMillis();
+            mPeers.add(node);
+        }
+        notifyListeners(wasConnected, true);
+    }
+
+    /**
+     * Method called with the complete list of the connected devices.
+     */
+    public static void onPeersReceived(Collection<String> nodes) {
+        boolean wasConnected;
+        boolean isConnected;
+        synchronized (ConnectivityTracker.class) {
+            wasConnected = !mPeers.isEmpty();
+            mPeers.clear();
+            mPeers.addAll(nodes);
+            isConnected  = !mPeers.isEmpty();
+        }
+        notifyListeners(wasConnected, isConnected);
+    }
+
+    /**
+     * Method called when a connected device doesn't answer, e.g. when a ping request times out.
+     * The device is considered unreachable until something is received from it.
+     */
+    public static void onPeersUnreachable() {
+        boolean wasConnected;
+        synchronized (ConnectivityTracker.class) {
+            wasConnected = !mPeers.isEmpty();
+            mPeers.clear();
+        }
+        notifyListeners(wasConnected, false);
+    }
+
+    /**
+     * Notifies the listeners if the connectivity has changed.
+     */
+    private static void notifyListeners(boolean wasConnected, boolean isConnected) {
+        if (wasConnected == isConnected)
+            return;
+
+        Log.d(TAG, isConnected ? "Device connected." : "Device disconnected.");
+        for (Listener listener : mListeners) {
+            try {
+                listener.onConnectivityChanged(isConnected);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to notify connectivity change: ", e);
+            }
+        }
+    }
+}
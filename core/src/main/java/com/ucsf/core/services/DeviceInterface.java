@@ -2,15 +2,12 @@ package com.ucsf.core.services;
 
 import android.content.Context;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.util.Log;
 import android.util.Pair;
 
-import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.wearable.DataApi;
-import com.google.android.gms.wearable.MessageApi;
 import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.Node;
 import com.google.android.gms.wearable.PutDataMapRequest;
@@ -28,47 +25,70 @@ import com.ucsf.core.services.Messages.RequestReplyMessage;
 import org.json.JSONObject;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Service responsible of the communication between phone and watch. Allows exchange of events,
  * requests and data. Events are sent once and may not be received. Requests are sent as long no
  * answer is received until they time out. Data are sent once but you can detect when the
  * transaction fails.
+ * Each request has a correlation id, echoed by its answer, so that any number of requests can be
+ * running at the same time, including several requests of the same type. A request setting a
+ * state however supersedes the running requests setting the same state, which are cancelled, so
+ * that their retries cannot override the new state (see
+ * {@link DeviceInterface#getStateKey(Messages.Request, JSONObject)}). Retries and timeouts of
+ * all the requests are scheduled on a single thread, and the round trip time of each request type
+ * is recorded (see {@link DeviceInterface#getRequestStatistics()}).
+ * The requests are scheduled on the control lane of {@link TrafficLanes}, and the tables content
+ * must be sent and stored on its bulk lane, so that the requests are not delayed by a large sync.
  *
  * @author  Julien Jacquemot
  * @version 1.0
  */
 public abstract class DeviceInterface extends WearableListenerService {
-    private static final String                         TAG                    = "ucsf:DataLayerListener";
-    private static final long                           REQUEST_TIMER_PERIOD   = 5000;   // 5 seconds
-    private static final long                           REQUEST_TIMEOUT_PERIOD = 300000; // 5 minutes
-    private static final Map<Messages.Request, Request> mPendingRequests       = new HashMap<>();
-    private static final Connection                     mConnection            = new Connection();
+    private static final String                   TAG                    = "ucsf:DataLayerListener";
+    private static final long                     REQUEST_TIMER_PERIOD   = 5000;   // 5 seconds
+    private static final long                     REQUEST_TIMEOUT_PERIOD = 300000; // 5 minutes
+    private static final long                     CONNECTION_TIMEOUT     = 30000;  // 30 seconds
+    private static final String                   METRIC_RTT             = "rtt:";
+    private static final String                   METRIC_RETRIES         = "retries";
+    private static final String                   METRIC_TIMEOUTS        = "timeouts";
+    private static final Map<Long, Request>       mPendingRequests       = new HashMap<>();
+    private static final AtomicLong               mNextRequestId         =
+            new AtomicLong(System.currentTimeMillis());
+    private static final ScheduledExecutorService mRequestScheduler      = TrafficLanes.CONTROL;
+    private static final Statistics               mRequestStatistics     = new Statistics(TAG);
+    private static final ThreadLocal<Long>        mReceivedRequestId     = new ThreadLocal<>();
+    private static final Connection               mConnection            = new Connection();
+    private static final Set<String>              mBinaryPeers           = new HashSet<>();
 
-    /** Class allowing multiple Google API connections. */
+    /**
+     * Class allowing multiple Google API connections. The underlying client is the shared
+     * {@link WearableClient}, which stays connected for a while after the connection is closed.
+     */
     protected static class Connection extends AbstractConnection {
+        private WearableClient  mWearableClient  = null;
         private GoogleApiClient mGoogleApiClient = null;
 
         @Override
         protected void openConnection(Context context) throws Exception {
-            if (mGoogleApiClient == null)
-                mGoogleApiClient = new GoogleApiClient.Builder(context)
-                        .addApi(Wearable.API)
-                        .build();
-            ConnectionResult res = mGoogleApiClient.blockingConnect(30, TimeUnit.SECONDS);
-            if (!res.isSuccess())
-                throw new Exception("Google Api Client connection timed out!");
+            mWearableClient  = WearableClient.get(context);
+            mGoogleApiClient = mWearableClient.acquire(CONNECTION_TIMEOUT);
         }
 
         @Override
         protected void closeConnection() {
-            mGoogleApiClient.disconnect();
+            mWearableClient.release();
         }
 
         public GoogleApiClient getClient() {
@@ -76,47 +96,55 @@ public abstract class DeviceInterface extends WearableListenerService {
         }
     }
 
+    /**
+     * Returns the format of the messages sent to the other devices. The messages are encoded in
+     * {@link MessageCodec.Format#Json JSON}, understood by all the versions of the application,
+     * unless all the connected devices are known to decode the
+     * {@link MessageCodec.Format#Binary binary} format of this version.
+     */
+    private static MessageCodec.Format getMessageFormat(Context context) {
+        Collection<String> nodes = WearableClient.get(context).getNodes();
+        synchronized (mBinaryPeers) {
+            if (nodes.isEmpty() || !mBinaryPeers.containsAll(nodes))
+                return MessageCodec.Format.Json;
+        }
+        return MessageCodec.Format.Binary;
+    }
+
+    /**
+     * Updates the format of the messages sent to the device which sent the given message. A
+     * device decodes the binary format if its codec version is the same or a newer one, as given
+     * by its binary messages and by its pings (see {@link Messages.Request#PING}).
+     */
+    private static void updateMessageFormat(String node, MessageCodec.Envelope message) {
+        int version = message.version;
+        if (message.request == Messages.Request.PING)
+            version = Math.max(version, message.data == null ? 0 :
+                    message.data.optInt(Messages.CODEC_VERSION, 0));
+        else if (version == 0)
+            return; // JSON message, which doesn't tell the codec version
+
+        synchronized (mBinaryPeers) {
+            if (version >= MessageCodec.VERSION)
+                mBinaryPeers.add(node);
+            else
+                mBinaryPeers.remove(node);
+        }
+    }
+
     /**
      * Sends a {@link Messages.Message message} containing the given data. A message can either an
-     * event, a request or a request answer.
+     * event, a request or a request answer. Doesn't block, the message being queued if the
+     * client is not connected yet.
      */
     private static void sendMessage(final Context context, final Message message, JSONObject data) {
-        final String dataString = data.toString();
-        final byte[] dataContent = dataString.getBytes();
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                try (Connection instance = openConnection(context)) {
-                    // Get nodes
-                    List<Node> nodes =
-                            Wearable.NodeApi.getConnectedNodes(instance.getClient()).await().getNodes();
-
-                    // Send the message
-                    Log.d(TAG, String.format("Sending to %d nodes the message %s:%s",
-                            nodes.size(), message.getTag(), dataString));
-
-                    for (Node node : nodes) {
-                        Wearable.MessageApi.sendMessage(instance.getClient(), node.getId(), message.getTag(),
-                                dataContent).setResultCallback(
-                                new ResultCallback<MessageApi.SendMessageResult>() {
-                                    @Override
-                                    public void onResult(MessageApi.SendMessageResult sendMessageResult) {
-                                        if (!sendMessageResult.getStatus().isSuccess()) {
-                                            Log.e(TAG, String.format("Failed to send message '%s' with status code: %s",
-                                                    message.getTag(), sendMessageResult.getStatus().getStatusCode()));
-                                        } else {
-                                            Log.d(TAG, String.format("Message '%s' successfully sent.", message.getTag()));
-                                        }
-                                    }
-                                });
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "Failed to send a message the Google Api: ", e);
-                }
-
-                return null;
-            }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        MessageCodec.Format format = getMessageFormat(context);
+        try {
+            WearableClient.get(context).sendMessage(MessageCodec.getPath(format, message),
+                    MessageCodec.encode(format, message, data));
+        } catch (Exception e) {
+            Log.e(TAG, String.format("Failed to encode message '%s': ", message.getTag()), e);
+        }
     }
 
     /**
@@ -143,49 +171,103 @@ public abstract class DeviceInterface extends WearableListenerService {
 
     /**
      * Sends a request for the given message until an answer is received. Returns the request id.
-     * If a request for the same message is already running, cancels it first, i.e. only one
-     * request for a given message is running at the same time. The given value is identified by
-     * the key {@link Messages#VALUE}.
+     * The given value is identified by the key {@link Messages#VALUE}.
      */
-    protected static void sendRequest(Context context, Messages.Request request,
+    protected static long sendRequest(Context context, Messages.Request request,
                                       RequestListener listener, Serializable value) {
-        sendRequest(context, request, listener, new Entry(Messages.VALUE, value));
+        return sendRequest(context, request, listener, new Entry(Messages.VALUE, value));
     }
 
     /**
      * Sends a request for the given message until an answer is received. Returns the request id.
-     * If a request for the same message is already running, cancels it first, i.e. only one
-     * request for a given message is running at the same time.
      */
-    protected static void sendRequest(Context context, Messages.Request request,
+    protected static long sendRequest(Context context, Messages.Request request,
                                       RequestListener listener, Entry... entries) {
-        sendRequest(context, request, listener, JSON.create(entries));
+        return sendRequest(context, request, listener, JSON.create(entries));
     }
 
     /**
-     * Sends a request for the given message until an answer is received. Returns the request id.
-     * If a request for the same message is already running, cancels it first, i.e. only one
-     * request for a given message is running at the same time.
+     * Sends a request for the given message until an answer is received. Returns the request id,
+     * or 0 if the request could not be sent. Cancels first the running requests setting the same
+     * state, if any.
      */
-    protected static void sendRequest(Context context, Messages.Request request,
+    protected static long sendRequest(Context context, Messages.Request request,
                                       RequestListener listener, JSONObject data) {
         try {
-            cancelRequest(request);
-            new Request(context, request, data, listener).send();
+            String stateKey = getStateKey(request, data);
+            if (stateKey != null) {
+                List<Request> superseded = new ArrayList<>();
+                synchronized (mPendingRequests) {
+                    for (Request pendingRequest : mPendingRequests.values())
+                        if (stateKey.equals(pendingRequest.stateKey))
+                            superseded.add(pendingRequest);
+                }
+                for (Request pendingRequest : superseded)
+                    pendingRequest.cancel();
+            }
+
+            if (request == Messages.Request.PING)
+                data.put(Messages.CODEC_VERSION, MessageCodec.VERSION);
+            Request pendingRequest = new Request(context, request, mNextRequestId.incrementAndGet(),
+                    data, stateKey, listener);
+            pendingRequest.send();
+            return pendingRequest.message.id;
         } catch (Exception e) {
             Log.e(TAG, String.format("Failed to send request for message '%s':", request.getTag()), e);
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the key of the state set by the given request, or null if the request doesn't set
+     * a state and several ones can run at the same time. The updates and resets of a service
+     * parameter set the same state.
+     */
+    private static String getStateKey(Messages.Request request, JSONObject data) {
+        switch (request) {
+            case PARAMETER_UPDATE:
+            case PARAMETER_RESET:
+                return String.format("parameter:%s:%s", data.optString(Messages.SERVICE_ID),
+                        data.optString(Messages.PARAMETER_ID));
+            case SENSORTAG_CONFIG:
+                return "sensortag_config";
+            default:
+                return null;
         }
     }
 
     /**
-     * Cancels the given request
+     * Cancels all the running requests for the given message.
      */
     public static void cancelRequest(Messages.Request request) {
+        List<Request> requests = new ArrayList<>();
+        synchronized (mPendingRequests) {
+            for (Request pendingRequest : mPendingRequests.values())
+                if (pendingRequest.message.request == request)
+                    requests.add(pendingRequest);
+        }
+        for (Request pendingRequest : requests)
+            pendingRequest.cancel();
+    }
+
+    /**
+     * Cancels the request with the given id, as returned when sending it.
+     */
+    public static void cancelRequest(long id) {
+        Request pendingRequest;
         synchronized (mPendingRequests) {
-            Request pendingRequest = mPendingRequests.get(request);
-            if (pendingRequest != null)
-                pendingRequest.cancel();
+            pendingRequest = mPendingRequests.get(id);
         }
+        if (pendingRequest != null)
+            pendingRequest.cancel();
+    }
+
+    /**
+     * Returns the statistics of the requests: the round trip time of each request type (i.e. the
+     * time between the first try and the answer), and the number of retries and timeouts.
+     */
+    public static Statistics getRequestStatistics() {
+        return mRequestStatistics;
     }
 
     /**
@@ -204,11 +286,16 @@ public abstract class DeviceInterface extends WearableListenerService {
     }
 
     /**
-     * Replies to the given request.
+     * Replies to the given request. Must be called from
+     * {@link DeviceInterface#onRequestReceived(Messages.Request, JSONObject)}, so that the answer
+     * carries the correlation id of the received request.
      */
     protected static void replyToRequest(Context context, Messages.Request request, JSONObject data) {
         try {
-            sendMessage(context, new RequestReplyMessage(request), data);
+            if (request == Messages.Request.PING)
+                data.put(Messages.CODEC_VERSION, MessageCodec.VERSION);
+            Long id = mReceivedRequestId.get();
+            sendMessage(context, new RequestReplyMessage(request, id == null ? 0 : id), data);
         } catch (Exception e) {
             Log.e(TAG, String.format("Failed to reply to the request for message '%s':",
                     request.getTag()), e);
@@ -264,52 +351,74 @@ public abstract class DeviceInterface extends WearableListenerService {
         return (Connection) mConnection.open(context);
     }
 
+    @Override
+    public void onPeerConnected(Node peer) {
+        WearableClient.get(this).onPeerConnected(peer);
+    }
+
+    @Override
+    public void onPeerDisconnected(Node peer) {
+        WearableClient.get(this).onPeerDisconnected(peer);
+    }
+
     @Override
     public void onMessageReceived(MessageEvent messageEvent) {
-        // Read the event data
-        JSONObject data = null;
-        byte[] eventData = messageEvent.getData();
-        if (eventData != null) {
-            String messageContent = new String(eventData);
-            try {
-                data = new JSONObject(messageContent);
-            } catch (Exception e) {
-                Log.e(TAG, String.format("Failed to read message '%s': ", messageContent), e);
-                return;
-            }
+        ConnectivityTracker.onTrafficReceived(messageEvent.getSourceNodeId());
+
+        // Read the message
+        MessageCodec.Envelope message;
+        try {
+            message = MessageCodec.decode(messageEvent.getPath(), messageEvent.getData());
+        } catch (Exception e) {
+            Log.e(TAG, String.format("Failed to read message '%s': ", messageEvent.getPath()), e);
+            return;
         }
+        updateMessageFormat(messageEvent.getSourceNodeId(), message);
 
         // Broadcast the message
-        String messageTag = messageEvent.getPath();
         try {
-            if (Messages.isRequestMessage(messageTag)) {
-                Messages.Request request = Messages.getRequestFromRequestMessage(messageTag);
-                if (request != Messages.Request.INVALID)
-                    onRequestReceived(request, data);
-                else
-                    Log.e(TAG, String.format("Invalid request message '%s'!", messageTag));
-            } else if (Messages.isRequestReplyMessage(messageTag)) {
-                Messages.Request request = Messages.getRequestFromRequestReplyMessage(messageTag);
-                if (request != Messages.Request.INVALID) {
-                    synchronized (mPendingRequests) {
-                        Request pendingRequest = mPendingRequests.get(request);
-                        if (pendingRequest != null)
-                            pendingRequest.complete(data);
+            switch (message.kind) {
+                case Request:
+                    mReceivedRequestId.set(message.id);
+                    try {
+                        onRequestReceived(message.request, message.data);
+                    } finally {
+                        mReceivedRequestId.remove();
                     }
-                } else
-                    Log.e(TAG, String.format("Invalid request message '%s'!", messageTag));
-            } else {
-                Event event = Event.fromTag(messageTag);
-                if (event != Event.INVALID)
-                    onEventReceived(event, data);
-                else
-                    Log.e(TAG, String.format("Invalid event '%s'!", messageTag));
+                    break;
+                case RequestReply: {
+                    Request pendingRequest = getPendingRequest(message.request, message.id);
+                    if (pendingRequest != null)
+                        pendingRequest.complete(message.data);
+                    break;
+                }
+                case Event:
+                    onEventReceived(message.event, message.data);
+                    break;
             }
         } catch (Exception e) {
             Log.e(TAG, "An error occurred while processing message: ", e);
         }
     }
 
+    /**
+     * Returns the running request with the given id. Answers sent by the previous versions of the
+     * application have no id, and are matched to the oldest running request of the given type.
+     */
+    private static Request getPendingRequest(Messages.Request request, long id) {
+        synchronized (mPendingRequests) {
+            if (id != 0)
+                return mPendingRequests.get(id);
+
+            Request oldest = null;
+            for (Request pendingRequest : mPendingRequests.values())
+                if (pendingRequest.message.request == request &&
+                        (oldest == null || pendingRequest.message.id < oldest.message.id))
+                    oldest = pendingRequest;
+            return oldest;
+        }
+    }
+
     /**
      * Method called when an event is received.
      */
@@ -338,9 +447,10 @@ public abstract class DeviceInterface extends WearableListenerService {
         void requestTimeout(Messages.Request request) throws Exception;
 
         /**
-         * Method called if the request is cancelled, i.e. when a new request of the same type is
-         * started or when an explicit call to {@link DeviceInterface#cancelRequest(Messages.Request)}
-         * is made.
+         * Method called if the request is cancelled, i.e. when a new request setting the same state
+         * is sent or when an explicit call to
+         * {@link DeviceInterface#cancelRequest(Messages.Request)} or
+         * {@link DeviceInterface#cancelRequest(long)} is made.
          * @param request Type of the cancelled request.
          */
         void requestCancelled(Messages.Request request) throws Exception;
@@ -348,49 +458,64 @@ public abstract class DeviceInterface extends WearableListenerService {
 
     /** Internal representation of a request. */
     private static class Request {
-        public final Context         context;
-        public final RequestMessage  message;
-        public final JSONObject      data;
-        public final Timer           timer;
-        public final RequestListener listener;
-        public final long            firstTry;
-
-        public Request(Context context, Messages.Request request, JSONObject data,
-                       RequestListener listener)
+        public final Context            context;
+        public final RequestMessage     message;
+        public final JSONObject         data;
+        public final String             stateKey;
+        public final RequestListener    listener;
+        public final long               firstTry;
+        private      ScheduledFuture<?> mRetries;
+        private      ScheduledFuture<?> mTimeout;
+        private      boolean            mIsDone = false;
+
+        public Request(Context context, Messages.Request request, long id, JSONObject data,
+                       String stateKey, RequestListener listener)
         {
             this.context  = context;
-            this.message  = new RequestMessage(request);
+            this.message  = new RequestMessage(request, id);
             this.data     = data;
+            this.stateKey = stateKey;
             this.listener = listener;
-            this.timer    = new Timer();
             this.firstTry = System.currentTimeMillis();
         }
 
-        public void send() {
+        public synchronized void send() {
             synchronized (mPendingRequests) {
-                mPendingRequests.put(message.request, this);
+                mPendingRequests.put(message.id, this);
             }
 
-            timer.schedule(new TimerTask() {
+            mRetries = mRequestScheduler.scheduleAtFixedRate(new Runnable() {
+                private boolean mIsRetry = false;
+
+                @Override
+                public void run() {
+                    if (mIsRetry)
+                        mRequestStatistics.increment(METRIC_RETRIES);
+                    mIsRetry = true;
+                    sendMessage(context, message, data);
+                }
+            }, 0, REQUEST_TIMER_PERIOD, TimeUnit.MILLISECONDS);
+
+            mTimeout = mRequestScheduler.schedule(new Runnable() {
                 @Override
                 public void run() {
-                    if (System.currentTimeMillis() - firstTry > REQUEST_TIMEOUT_PERIOD) {
-                        try {
-                            stopTimer();
-                            listener.requestTimeout(message.request);
-                        } catch (Exception e) {
-                            Log.e(TAG, String.format("Message '%s' timed out with errors: ",
-                                    message.request.getTag()), e);
-                        }
-                    } else
-                        sendMessage(context, message, data);
+                    if (!finish())
+                        return;
+                    mRequestStatistics.increment(METRIC_TIMEOUTS);
+                    try {
+                        listener.requestTimeout(message.request);
+                    } catch (Exception e) {
+                        Log.e(TAG, String.format("Message '%s' timed out with errors: ",
+                                message.request.getTag()), e);
+                    }
                 }
-            }, 0, REQUEST_TIMER_PERIOD);
+            }, REQUEST_TIMEOUT_PERIOD, TimeUnit.MILLISECONDS);
         }
 
         public void cancel() {
+            if (!finish())
+                return;
             try {
-                stopTimer();
                 listener.requestCancelled(message.request);
             } catch (Exception e) {
                 Log.e(TAG, String.format("Message '%s' cancelled with errors: ",
@@ -399,8 +524,11 @@ public abstract class DeviceInterface extends WearableListenerService {
         }
 
         public void complete(JSONObject data) {
+            if (!finish())
+                return;
+            mRequestStatistics.record(METRIC_RTT + message.request.getTag(),
+                    System.currentTimeMillis() - firstTry);
             try {
-                stopTimer();
                 listener.requestProcessed(message.request, data);
             } catch (Exception e) {
                 Log.e(TAG, String.format("Failed to process request '%s' answer: ",
@@ -408,11 +536,21 @@ public abstract class DeviceInterface extends WearableListenerService {
             }
         }
 
-        private void stopTimer() {
-            timer.cancel();
+        /**
+         * Stops the retries and the timeout of the request.
+         * @return Returns false if the request was already finished.
+         */
+        private synchronized boolean finish() {
+            if (mIsDone)
+                return false;
+            mIsDone = true;
+
+            mRetries.cancel(false);
+            mTimeout.cancel(false);
             synchronized (mPendingRequests) {
-                mPendingRequests.remove(message.request);
+                mPendingRequests.remove(message.id);
             }
+            return true;
         }
     }
 
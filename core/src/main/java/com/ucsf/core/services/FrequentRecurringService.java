@@ -43,6 +43,20 @@ public abstract class FrequentRecurringService extends BackgroundService impleme
             mServiceHandler.cancel(false);
     }
 
+    @Override
+    protected boolean onParameterChanged(ServiceParameter<?> parameter) throws Exception {
+        Provider provider = (Provider) getProvider();
+        if (parameter != provider.mInterval)
+            return super.onParameterChanged(parameter);
+
+        // Reschedule the next executions with the new interval
+        if (mServiceHandler != null)
+            mServiceHandler.cancel(false);
+        mServiceHandler = mServiceExecutor.scheduleAtFixedRate(this, provider.getInterval(),
+                provider.getInterval(), TimeUnit.MILLISECONDS);
+        return true;
+    }
+
     public void run() {
         PowerManager          pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
         PowerManager.WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "");
@@ -0,0 +1,203 @@
+package com.ucsf.core.services;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.ucsf.core.data.DataManager;
+import com.ucsf.core.services.Messages.Event;
+import com.ucsf.core.services.Messages.Message;
+import com.ucsf.core.services.Messages.Request;
+import com.ucsf.core.services.Messages.RequestMessage;
+import com.ucsf.core.services.Messages.RequestReplyMessage;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collection;
+
+/**
+ * Compares the {@link MessageCodec} formats on typical messages: a ping carrying the patient id,
+ * a parameter update, an event and the answer listing the services of a device. Each message is
+ * encoded and decoded {@link MessageBenchmark#mIterations} times with each format, after a warm
+ * up, without sending anything.
+ * The answer listing the services is also measured with the descriptors streamed by
+ * {@link ServiceDescriptor#saveDescriptors(Collection)} and with the nested JSON text of the
+ * previous versions, from the creation of the answer to the loading of the descriptors.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public class MessageBenchmark {
+    private static final String TAG = "ucsf:MessageBenchmark";
+
+    private final Context                       mContext;
+    private final Collection<ServiceDescriptor> mDescriptors;
+    private final int                           mIterations;
+
+    /**
+     * Creates a benchmark.
+     * @param descriptors Descriptors of the services listed in the answer.
+     * @param iterations  Number of times each message is encoded and decoded.
+     */
+    public MessageBenchmark(Context context, Collection<ServiceDescriptor> descriptors,
+                            int iterations)
+    {
+        mContext     = context.getApplicationContext();
+        mDescriptors = descriptors;
+        mIterations  = iterations;
+    }
+
+    /**
+     * Results of a format.
+     */
+    public static class Result {
+        public long bytes;  /**< Total size of the encoded messages, in bytes. */
+        public long encode; /**< Average encoding time of a message, in nanoseconds. */
+        public long decode; /**< Average decoding time of a message, in nanoseconds. */
+
+        @Override
+        public String toString() {
+            return String.format("%d bytes, encoding %d ns, decoding %d ns", bytes, encode,
+                    decode);
+        }
+    }
+
+    /**
+     * Results of a benchmark run.
+     */
+    public static class Report {
+        public Result binary;            /**< Results of the binary format. */
+        public Result json;              /**< Results of the JSON format. */
+        public Result descriptors;       /**< Results of the streamed descriptors. */
+        public Result legacyDescriptors; /**< Results of the descriptors as nested JSON text. */
+
+        @Override
+        public String toString() {
+            return String.format("Binary: %s\nJSON: %s\nServices: %s\nServices (previous): %s",
+                    binary, json, descriptors, legacyDescriptors);
+        }
+    }
+
+    /**
+     * Runs the benchmark.
+     */
+    public Report run() throws Exception {
+        Message[]    messages = new Message[] {
+                new RequestMessage(Request.PING, System.currentTimeMillis()),
+                new RequestMessage(Request.PARAMETER_UPDATE, System.currentTimeMillis()),
+                Event.PATIENT_INSIDE,
+                new RequestReplyMessage(Request.SERVICES, System.currentTimeMillis())
+        };
+        JSONObject[] data     = new JSONObject[] {
+                new JSONObject().put(DataManager.KEY_PATIENT_ID, "patient-0001"),
+                new JSONObject()
+                        .put(Messages.SERVICE_ID, ServiceId.values()[0].toString())
+                        .put(Messages.PARAMETER_ID, "INTERVAL")
+                        .put(Messages.VALUE, 60000L),
+                new JSONObject(),
+                ServiceDescriptor.saveDescriptors(mDescriptors)
+        };
+
+        // Warm up, then measure
+        run(MessageCodec.Format.Binary, messages, data, mIterations / 10 + 1);
+        run(MessageCodec.Format.Json, messages, data, mIterations / 10 + 1);
+        Report report = new Report();
+        report.binary = run(MessageCodec.Format.Binary, messages, data, mIterations);
+        report.json   = run(MessageCodec.Format.Json, messages, data, mIterations);
+
+        runDescriptors(false, mIterations / 10 + 1);
+        runDescriptors(true, mIterations / 10 + 1);
+        report.descriptors       = runDescriptors(false, mIterations);
+        report.legacyDescriptors = runDescriptors(true, mIterations);
+
+        Log.d(TAG, report.toString());
+        return report;
+    }
+
+    /**
+     * Encodes and decodes the given messages with the given format.
+     */
+    private static Result run(MessageCodec.Format format, Message[] messages, JSONObject[] data,
+                              int iterations) throws Exception
+    {
+        Result result = new Result();
+        long   encode = 0;
+        long   decode = 0;
+        for (int i = 0; i < messages.length; ++i) {
+            String path = MessageCodec.getPath(format, messages[i]);
+            byte[] content = null;
+            for (int j = 0; j < iterations; ++j) {
+                long start = System.nanoTime();
+                content = MessageCodec.encode(format, messages[i], data[i]);
+                long encoded = System.nanoTime();
+                MessageCodec.decode(path, content);
+                encode += encoded - start;
+                decode += System.nanoTime() - encoded;
+            }
+            result.bytes += content == null ? 0 : content.length;
+        }
+
+        int count = Math.max(1, iterations * messages.length);
+        result.encode = encode / count;
+        result.decode = decode / count;
+        return result;
+    }
+
+    /**
+     * Creates the answer listing the services, encodes it in binary, decodes it and loads the
+     * descriptors.
+     * @param legacy If true, the answer is created like in the previous versions.
+     */
+    private Result runDescriptors(boolean legacy, int iterations) throws Exception {
+        Message message = new RequestReplyMessage(Request.SERVICES, System.currentTimeMillis());
+        String  path    = MessageCodec.getPath(MessageCodec.Format.Binary, message);
+        Result  result  = new Result();
+        long    encode  = 0;
+        long    decode  = 0;
+        byte[]  content = null;
+        for (int i = 0; i < iterations; ++i) {
+            long start = System.nanoTime();
+            JSONObject data = legacy ? saveLegacyDescriptors(mDescriptors) :
+                    ServiceDescriptor.saveDescriptors(mDescriptors);
+            content = MessageCodec.encode(MessageCodec.Format.Binary, message, data);
+            long encoded = System.nanoTime();
+            ServiceDescriptor.loadDescriptors(mContext, MessageCodec.decode(path, content).data);
+            encode += encoded - start;
+            decode += System.nanoTime() - encoded;
+        }
+
+        int count = Math.max(1, iterations);
+        result.bytes  = content == null ? 0 : content.length;
+        result.encode = encode / count;
+        result.decode = decode / count;
+        return result;
+    }
+
+    /**
+     * Saves the given descriptors like the previous versions: the properties of each descriptor
+     * and then the descriptors are converted to JSON text, nested in the enclosing object.
+     */
+    private static JSONObject saveLegacyDescriptors(Collection<ServiceDescriptor> descriptors)
+            throws Exception
+    {
+        JSONArray array = new JSONArray();
+        for (ServiceDescriptor descriptor : descriptors) {
+            JSONArray properties = new JSONArray();
+            for (ServiceProperty property : descriptor.properties) {
+                JSONObject object = new JSONObject()
+                        .put("TAG", property.tag)
+                        .put("DESCRIPTION", property.description)
+                        .put("VALUE", property.get());
+                if (property instanceof ServiceParameter)
+                    object.put("DEFAULT_VALUE", ((ServiceParameter) property).defaultValue())
+                            .put("IS_DEFAULT", ((ServiceParameter) property).isDefault());
+                properties.put(object);
+            }
+            array.put(new JSONObject()
+                    .put("SERVICE", descriptor.service)
+                    .put("PROPERTIES", properties.toString())
+                    .put("STATUS", descriptor.status.toString()));
+        }
+        return new JSONObject().put("DESCRIPTORS", array.toString());
+    }
+}
@@ -0,0 +1,344 @@
+package com.ucsf.core.services;
+
+import com.ucsf.core.services.Messages.Event;
+import com.ucsf.core.services.Messages.Message;
+import com.ucsf.core.services.Messages.Request;
+import com.ucsf.core.services.Messages.RequestMessage;
+import com.ucsf.core.services.Messages.RequestReplyMessage;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Encoding of the {@link Messages messages} exchanged between the devices. Two formats are
+ * supported, and received messages are decoded whatever their format:
+ * <ul>
+ *     <li>{@link Format#Binary}: all the messages are sent on {@link MessageCodec#PATH}, the
+ *     content starting with the codec version, the kind of message, the code of the event or
+ *     request (see {@link Message#getCode()}) and the correlation id, followed by the typed fields
+ *     of the data.</li>
+ *     <li>{@link Format#Json}: the message tag is the path and the content is the data as JSON
+ *     text, as understood by all the versions of the application. Easier to debug.</li>
+ * </ul>
+ * Both formats are routed through tables computed once, instead of matching the tags against
+ * patterns. The {@link MessageCodec#VERSION version} must be increased each time a message is
+ * added, since a device can only send binary messages to a device knowing all its messages.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public abstract class MessageCodec {
+    public  static final String              PATH          = "/msg";
+    public  static final byte                VERSION       = 3;
+    private static final byte                MIN_VERSION   = 1;
+    private static final byte                TYPE_NULL     = 0;
+    private static final byte                TYPE_FALSE    = 1;
+    private static final byte                TYPE_TRUE     = 2;
+    private static final byte                TYPE_INT      = 3;
+    private static final byte                TYPE_LONG     = 4;
+    private static final byte                TYPE_DOUBLE   = 5;
+    private static final byte                TYPE_STRING   = 6;
+    private static final byte                TYPE_OBJECT   = 7;
+    private static final byte                TYPE_ARRAY    = 8;
+    private static final Map<Integer, Route> mRoutes       = new HashMap<>();
+    private static final Map<String, Route>  mLegacyRoutes = new HashMap<>();
+
+    static {
+        for (Event event : Event.values()) {
+            if (event == Event.INVALID)
+                continue;
+            Route route = new Route(Kind.Event, event, null);
+            mRoutes.put(getRouteKey(Kind.Event.code, event.getCode()), route);
+            mLegacyRoutes.put(event.getTag(), route);
+        }
+        for (Request request : Request.values()) {
+            if (request == Request.INVALID)
+                continue;
+            Route route = new Route(Kind.Request, null, request);
+            Route reply = new Route(Kind.RequestReply, null, request);
+            mRoutes.put(getRouteKey(Kind.Request.code, request.getCode()), route);
+            mRoutes.put(getRouteKey(Kind.RequestReply.code, request.getCode()), reply);
+            mLegacyRoutes.put(new RequestMessage(request, 0).getTag(), route);
+            mLegacyRoutes.put(new RequestReplyMessage(request, 0).getTag(), reply);
+        }
+    }
+
+    /**
+     * Formats of the messages.
+     */
+    public enum Format {
+        Binary,
+        Json
+    }
+
+    /**
+     * Kinds of messages, with their code in the binary format.
+     */
+    public enum Kind {
+        Event       (0),
+        Request     (1),
+        RequestReply(2);
+
+        private final int code;
+
+        Kind(int code) {
+            this.code = code;
+        }
+    }
+
+    /**
+     * Kind and type of a message.
+     */
+    private static class Route {
+        public final Kind    kind;
+        public final Event   event;
+        public final Request request;
+
+        public Route(Kind kind, Event event, Request request) {
+            this.kind    = kind;
+            this.event   = event;
+            this.request = request;
+        }
+    }
+
+    /**
+     * Decoded message.
+     */
+    public static class Envelope {
+        public final Kind       kind;    /**< Kind of the message. */
+        public final Event      event;   /**< Event, if the message is an event. */
+        public final Request    request; /**< Request, if the message is a request or an answer. */
+        public final long       id;      /**< Correlation id of the request, or 0 if none. */
+        public final JSONObject data;    /**< Content of the message. Can be null. */
+        public final int        version; /**< Codec version of a binary message, or 0. */
+
+        private Envelope(Route route, long id, JSONObject data, int version) {
+            this.kind    = route.kind;
+            this.event   = route.event;
+            this.request = route.request;
+            this.id      = id;
+            this.data    = data;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Returns the path on which the given message is sent with the given format.
+     */
+    public static String getPath(Format format, Message message) {
+        return format == Format.Binary ? PATH : message.getTag();
+    }
+
+    /**
+     * Encodes the given message and its data with the given format.
+     */
+    public static byte[] encode(Format format, Message message, JSONObject data)
+            throws Exception
+    {
+        if (format == Format.Json)
+            return data.toString().getBytes("UTF-8");
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream      out    = new DataOutputStream(buffer);
+        out.writeByte(VERSION);
+        if (message.getCode() < 0)
+            throw new Exception("Unsupported message: " + message.getTag());
+        if (message instanceof Event) {
+            out.writeByte(Kind.Event.code);
+            out.writeByte(message.getCode());
+            out.writeLong(0);
+        } else if (message instanceof RequestMessage) {
+            out.writeByte(Kind.Request.code);
+            out.writeByte(message.getCode());
+            out.writeLong(((RequestMessage) message).id);
+        } else if (message instanceof RequestReplyMessage) {
+            out.writeByte(Kind.RequestReply.code);
+            out.writeByte(message.getCode());
+            out.writeLong(((RequestReplyMessage) message).id);
+        } else
+            throw new Exception("Unsupported message: " + message.getTag());
+        writeObject(out, data == null ? new JSONObject() : data);
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Decodes the message received on the given path.
+     * @throws Exception If the path or the content is not a valid message.
+     */
+    public static Envelope decode(String path, byte[] content) throws Exception {
+        if (path.equals(PATH))
+            return decodeBinary(content);
+
+        // Message tag, followed by the correlation id for requests
+        String tag       = path;
+        long   id        = 0;
+        int    separator = path.lastIndexOf(':');
+        if (separator > 0 && isNumber(path, separator + 1)) {
+            tag = path.substring(0, separator);
+            id  = Long.valueOf(path.substring(separator + 1));
+        }
+
+        Route route = mLegacyRoutes.get(tag);
+        if (route == null)
+            throw new Exception(String.format("Invalid message '%s'!", path));
+        return new Envelope(route, id,
+                content == null ? null : new JSONObject(new String(content, "UTF-8")), 0);
+    }
+
+    /**
+     * Decodes the content of a binary message. The messages of the previous versions keep their
+     * code, and are decoded as well.
+     */
+    private static Envelope decodeBinary(byte[] content) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        int version = in.readByte();
+        if (version < MIN_VERSION || version > VERSION)
+            throw new Exception(String.format("Unsupported message version %d.", version));
+
+        int   kind  = in.readByte();
+        int   code  = in.readByte();
+        Route route = mRoutes.get(getRouteKey(kind, code));
+        if (route == null)
+            throw new Exception(String.format("Invalid message kind %d or code %d.", kind, code));
+
+        long id = in.readLong();
+        return new Envelope(route, id, readObject(in), version);
+    }
+
+    /**
+     * Returns the key of the route of the given kind and message codes.
+     */
+    private static int getRouteKey(int kind, int code) {
+        return (kind << 8) | (code & 0xFF);
+    }
+
+    /**
+     * Writes the fields of the given object with their type.
+     */
+    private static void writeObject(DataOutputStream out, JSONObject object) throws Exception {
+        out.writeInt(object.length());
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            writeString(out, key);
+            writeValue(out, object.get(key));
+        }
+    }
+
+    /**
+     * Reads an object written by {@link MessageCodec#writeObject(DataOutputStream, JSONObject)}.
+     */
+    private static JSONObject readObject(DataInputStream in) throws Exception {
+        JSONObject object = new JSONObject();
+        for (int i = in.readInt(); i > 0; --i) {
+            String key = readString(in);
+            object.put(key, readValue(in));
+        }
+        return object;
+    }
+
+    /**
+     * Writes the given value preceded by its type.
+     */
+    private static void writeValue(DataOutputStream out, Object value) throws Exception {
+        if (value == null || value == JSONObject.NULL) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(TYPE_INT);
+            out.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Number) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof JSONObject) {
+            out.writeByte(TYPE_OBJECT);
+            writeObject(out, (JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            out.writeByte(TYPE_ARRAY);
+            out.writeInt(array.length());
+            for (int i = 0; i < array.length(); ++i)
+                writeValue(out, array.get(i));
+        } else {
+            out.writeByte(TYPE_STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    /**
+     * Reads a value written by {@link MessageCodec#writeValue(DataOutputStream, Object)}.
+     */
+    private static Object readValue(DataInputStream in) throws Exception {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return JSONObject.NULL;
+            case TYPE_FALSE:
+                return false;
+            case TYPE_TRUE:
+                return true;
+            case TYPE_INT:
+                return in.readInt();
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_DOUBLE:
+                return in.readDouble();
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_OBJECT:
+                return readObject(in);
+            case TYPE_ARRAY: {
+                JSONArray array = new JSONArray();
+                for (int i = in.readInt(); i > 0; --i)
+                    array.put(readValue(in));
+                return array;
+            }
+            default:
+                throw new Exception(String.format("Invalid value type %d.", type));
+        }
+    }
+
+    /**
+     * Writes the given string as its UTF-8 length and bytes, since writeUTF is limited to 64 KB.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link MessageCodec#writeString(DataOutputStream, String)}.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Returns if the given string only contains digits from the given index.
+     */
+    private static boolean isNumber(String value, int start) {
+        if (start >= value.length())
+            return false;
+        for (int i = start; i < value.length(); ++i)
+            if (!Character.isDigit(value.charAt(i)))
+                return false;
+        return true;
+    }
+}
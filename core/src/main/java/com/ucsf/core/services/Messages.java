@@ -1,113 +1,74 @@
 package com.ucsf.core.services;
 
-import android.util.Log;
-
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
- * Definitions of the different type of message exchanged between all the devices.
+ * Definitions of the different type of message exchanged between all the devices. See
+ * {@link MessageCodec} for their encoding.
  *
  * @author  Julien Jacquemot
  * @version 1.0
  */
 public abstract class Messages {
-    public  static final String  SERVICE_ID           = "SERVICE_ID";
-    public  static final String  PARAMETER_ID         = "PARAMETER_ID";
-    public  static final String  VALUE                = "VALUE";
-    private static final String  TAG                  = "ucsf:Messages";
-    private static final String  REQUEST              = "REQUEST";
-    private static final String  REQUEST_REPLY        = "REQUEST_REPLY";
-    private static final String  REQUEST_FORMAT       = REQUEST + ":%s";
-    private static final String  REQUEST_REPLY_FORMAT = REQUEST_REPLY + ":%s";
-    private static final Pattern REQUEST_PATTERN;
-    private static final Pattern REQUEST_REPLY_PATTERN;
-
-    static {
-        Pattern requestPattern = null;
-        Pattern requestReplyPattern = null;
-
-        try {
-            requestPattern = Pattern.compile(REQUEST + ":(\\w+)");
-            requestReplyPattern = Pattern.compile(REQUEST_REPLY + ":(\\w+)");
-        } catch (Exception e) {
-            Log.wtf(TAG, "Failed to initialize request patterns: ", e);
-            System.exit(-1);
-        }
-
-        REQUEST_PATTERN = requestPattern;
-        REQUEST_REPLY_PATTERN = requestReplyPattern;
-    }
-
-    /**
-     * Checks if the given message tag corresponds to a request.
-     */
-    public static boolean isRequestMessage(String message) {
-        return REQUEST_PATTERN.matcher(message).find();
-    }
-
-    /**
-     * Checks if the given message tag corresponds to a request answer.
-     */
-    public static boolean isRequestReplyMessage(String message) {
-        return REQUEST_REPLY_PATTERN.matcher(message).find();
-    }
-
-    /**
-     * Returns the request corresponding to the given request message tag. Returns
-     * {@link Messages.Request#INVALID} if no atch is found.
-     */
-    public static Request getRequestFromRequestMessage(String message) {
-        Matcher matcher = REQUEST_PATTERN.matcher(message);
-        if (matcher.find())
-            return Request.fromTag(matcher.group(1));
-        return Request.INVALID;
-    }
-
-    /**
-     * Returns the request corresponding to the given request answer message tag. Returns
-     * {@link Messages.Request#INVALID} if no atch is found.
-     */
-    public static Request getRequestFromRequestReplyMessage(String message) {
-        Matcher matcher = REQUEST_REPLY_PATTERN.matcher(message);
-        if (matcher.find())
-            return Request.fromTag(matcher.group(1));
-        return Request.INVALID;
-    }
+    public  static final String SERVICE_ID           = "SERVICE_ID";
+    public  static final String PARAMETER_ID         = "PARAMETER_ID";
+    public  static final String VALUE                = "VALUE";
+    public  static final String CONFIG_HASH          = "CONFIG_HASH";
+    public  static final String CODEC_VERSION        = "CODEC_VERSION";
+    private static final String REQUEST              = "REQUEST";
+    private static final String REQUEST_REPLY        = "REQUEST_REPLY";
+    private static final String REQUEST_FORMAT       = REQUEST + ":%s";
+    private static final String REQUEST_REPLY_FORMAT = REQUEST_REPLY + ":%s";
+    private static final String REQUEST_ID_FORMAT    = "%s:%d";
 
     /**
      * Enumeration of all possible events.
      */
     public enum Event implements Message {
         /** The device battery is critically low. Contains the battery level. */
-        LOW_BATTERY               ("LB"),
+        LOW_BATTERY               ("LB", 0),
         /** The device battery is now okay. */
-        BATTERY_OKAY              ("BOK"),
+        BATTERY_OKAY              ("BOK", 1),
         /** The patient is not wearing the watch. */
-        NO_WATCH                  ("NW"),
+        NO_WATCH                  ("NW", 2),
         /** The patient is not wearing the watch (during the morning). */
-        NO_WATCH_ON_MORNING       ("NWM"),
+        NO_WATCH_ON_MORNING       ("NWM", 3),
         /** The patient is now wearing the watch. */
-        WATCH_OKAY                ("WO"),
+        WATCH_OKAY                ("WO", 4),
         /** The patient is not at home. */
-        PATIENT_OUTSIDE           ("PLH"),
+        PATIENT_OUTSIDE           ("PLH", 5),
         /** The patient is now at home. */
-        PATIENT_INSIDE            ("PIH"),
+        PATIENT_INSIDE            ("PIH", 6),
         /** No connection between watch and phone. */
-        WATCH_CONNECTION_LOST     ("WCL"),
+        WATCH_CONNECTION_LOST     ("WCL", 7),
         /** Connection between watch and phone reestablished. */
-        WATCH_CONNECTION_RETRIEVED("WCR"),
+        WATCH_CONNECTION_RETRIEVED("WCR", 8),
         /** The patient's profile has changed. Contains the new patient unique id. */
-        PROFILE_CHANGED           ("PPC"),
+        PROFILE_CHANGED           ("PPC", 9),
         /** Services need to be toggled. Contains if the services have to be enabled or not. */
-        TOGGLE_SERVICES           ("TS"),
+        TOGGLE_SERVICES           ("TS", 10),
+        /**
+         * The SensorTag configuration has changed. Contains the new configuration and its hash
+         * (key: {@link Messages#CONFIG_HASH}). Replaced by the
+         * {@link Request#SENSORTAG_CONFIG} request, which is retried until received.
+         */
+        SENSORTAG_CONFIG_CHANGED  ("STC", 11),
         /** Invalid event. */
-        INVALID                   ("INVALID");
+        INVALID                   ("INVALID", -1);
 
-        private final String mTag;
+        private static final Map<String, Event> mEvents = new HashMap<>();
+        private final        String             mTag;
+        private final        int                mCode;
 
-        Event(String tag) {
-            mTag = tag;
+        static {
+            for (Event event : Event.values())
+                mEvents.put(event.mTag, event);
+        }
+
+        Event(String tag, int code) {
+            mTag  = tag;
+            mCode = code;
         }
 
         /**
@@ -115,17 +76,19 @@ public abstract class Messages {
          * match is found.
          */
         public static Event fromTag(String tag) {
-            for (Event event : Event.values()) {
-                if (event.mTag.equals(tag))
-                    return event;
-            }
-            return INVALID;
+            Event event = mEvents.get(tag);
+            return event == null ? INVALID : event;
         }
 
         @Override
         public String getTag() {
             return mTag;
         }
+
+        @Override
+        public int getCode() {
+            return mCode;
+        }
     }
 
     /**
@@ -133,39 +96,60 @@ public abstract class Messages {
      */
     public enum Request implements Message {
         /** Requests the patient information, i.e. its unique id. */
-        PATIENT_INFO    ("patient_info"),
-        SENSORTAG_INFO  ("sensortag_info"),
+        PATIENT_INFO    ("patient_info", 0),
+        /**
+         * Requests the SensorTag configuration. Can contain the hash of the configuration already
+         * known (key: {@link Messages#CONFIG_HASH}), in which case the answer only contains the
+         * hash if the configuration has not changed.
+         */
+        SENSORTAG_INFO  ("sensortag_info", 1),
         /** Requests all the available services. The answer is a list of {@link ServiceDescriptor}. */
-        SERVICES        ("services"),
+        SERVICES        ("services", 2),
         /**
          * Requests a service (key: {@link Messages#SERVICE_ID})
          * {@link ServiceDescriptor.Status status}.
          * */
-        SERVICES_STATUS ("services_status"),
+        SERVICES_STATUS ("services_status", 3),
         /**
          * Requests a service parameter update (keys: {@link Messages#SERVICE_ID},
          * {@link Messages#PARAMETER_ID}, {@link Messages#VALUE}).
          */
-        PARAMETER_UPDATE("update"),
+        PARAMETER_UPDATE("update", 4),
         /**
          * Requests a service parameter reset (keys: {@link Messages#SERVICE_ID},
          * {@link Messages#PARAMETER_ID}).
          */
-        PARAMETER_RESET ("reset"),
+        PARAMETER_RESET ("reset", 5),
         /**
          * Requests a service callback execution (keys: {@link Messages#SERVICE_ID},
          * {@link Messages#PARAMETER_ID}).
          */
-        CALLBACK_EXEC   ("exec"),
-        /** Ping! */
-        PING            ("ping"),
+        CALLBACK_EXEC   ("exec", 6),
+        /**
+         * Ping! The request and its answer contain the {@link MessageCodec} version of the sender
+         * (key: {@link Messages#CODEC_VERSION}), to know if it can decode the binary format.
+         */
+        PING            ("ping", 7),
+        /**
+         * Requests the SensorTag configuration to be updated. Contains the new configuration and
+         * its hash (key: {@link Messages#CONFIG_HASH}), so that applying it twice has no effect.
+         */
+        SENSORTAG_CONFIG("sensortag_config", 8),
         /** Invalid request. */
-        INVALID         ("INVALID");
+        INVALID         ("INVALID", -1);
 
-        private final String mTag;
+        private static final Map<String, Request> mRequests = new HashMap<>();
+        private final        String               mTag;
+        private final        int                  mCode;
 
-        Request(String tag) {
-            mTag = tag;
+        static {
+            for (Request request : Request.values())
+                mRequests.put(request.mTag, request);
+        }
+
+        Request(String tag, int code) {
+            mTag  = tag;
+            mCode = code;
         }
 
         /**
@@ -173,37 +157,55 @@ public abstract class Messages {
          * match is found.
          */
         public static Request fromTag(String tag) {
-            for (Request request : Request.values()) {
-                if (request.mTag.equals(tag))
-                    return request;
-            }
-            return INVALID;
+            Request request = mRequests.get(tag);
+            return request == null ? INVALID : request;
         }
 
         @Override
         public String getTag() {
             return mTag;
         }
+
+        @Override
+        public int getCode() {
+            return mCode;
+        }
     }
 
     /** Message interface. For now only events and requests are supported. */
     public interface Message {
         /** Returns the tag corresponding to this message. */
         String getTag();
+
+        /**
+         * Returns the code identifying this message in the binary format, or -1 if it cannot be
+         * sent. Codes must never change nor be reused, since the devices may not run the same
+         * version of the application.
+         */
+        int getCode();
     }
 
     /** Request message. */
     public static class RequestMessage implements Message {
         /** Request associated to this message. */
         public final Request request;
+        /** Correlation id of the request, echoed by its answer. 0 if none. */
+        public final long    id;
 
-        public RequestMessage(Request request) {
+        public RequestMessage(Request request, long id) {
             this.request = request;
+            this.id      = id;
         }
 
         @Override
         public String getTag() {
-            return String.format(REQUEST_FORMAT, request.getTag());
+            String tag = String.format(REQUEST_FORMAT, request.getTag());
+            return id == 0 ? tag : String.format(REQUEST_ID_FORMAT, tag, id);
+        }
+
+        @Override
+        public int getCode() {
+            return request.getCode();
         }
     }
 
@@ -211,14 +213,23 @@ public abstract class Messages {
     public static class RequestReplyMessage implements Message {
         /** Request for which this answer is. */
         public final Request request;
+        /** Correlation id of the answered request. 0 if none. */
+        public final long    id;
 
-        public RequestReplyMessage(Request request) {
+        public RequestReplyMessage(Request request, long id) {
             this.request = request;
+            this.id      = id;
         }
 
         @Override
         public String getTag() {
-            return String.format(REQUEST_REPLY_FORMAT, request.getTag());
+            String tag = String.format(REQUEST_REPLY_FORMAT, request.getTag());
+            return id == 0 ? tag : String.format(REQUEST_ID_FORMAT, tag, id);
+        }
+
+        @Override
+        public int getCode() {
+            return request.getCode();
         }
     }
 
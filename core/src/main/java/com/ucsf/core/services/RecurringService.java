@@ -14,7 +14,8 @@ import com.ucsf.core.data.PersistentParameter;
 /**
  * Abstract service called on a regular interval. Between two calls, the application may have
  * been shut down, therefore it's not possible to rely on regular variables. To store values, use
- * instead a {@link PersistentParameter}.
+ * instead a {@link PersistentParameter}. The executions of all the recurring services are
+ * scheduled by the {@link WakeupScheduler}, which shares the wakeups between them.
  *
  * @author  Julien Jacquemot
  * @version 1.0
@@ -34,10 +35,18 @@ public abstract class RecurringService extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        // Alarm registered by the previous versions of the application
         PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
         PowerManager.WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "");
         wl.acquire();
+        run(context);
+        wl.release();
+    }
 
+    /**
+     * Executes the service. The caller holds a wake lock, see {@link WakeupScheduler}.
+     */
+    void run(Context context) {
         mContext = context;
 
         try {
@@ -46,8 +55,6 @@ public abstract class RecurringService extends BroadcastReceiver {
             Log.e(TAG, String.format("Failed to execute service '%s': ",
                     getProvider().getServiceName()), e);
         }
-
-        wl.release();
     }
 
     /** Method called each time the service is executed. */
@@ -72,36 +79,54 @@ public abstract class RecurringService extends BroadcastReceiver {
 
         @Override
         public boolean isServiceRunning() {
-            return PendingIntent.getBroadcast(context, 0, new Intent(context, mServiceClass),
-                    PendingIntent.FLAG_NO_CREATE) != null;
+            return WakeupScheduler.isScheduled(context, mServiceClass);
         }
 
         @Override
         public void startService(ResponseListener listener) {
             try {
                 // Register the service
-                AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-                Intent intent = new Intent(context, mServiceClass);
-                PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent, 0);
-                am.setRepeating(
-                        AlarmManager.RTC_WAKEUP,
-                        System.currentTimeMillis(),
-                        getInterval(),
-                        pendingIntent);
+                cancelLegacyAlarm();
+                WakeupScheduler.schedule(context, mServiceClass, getInterval(),
+                        System.currentTimeMillis());
 
                 // Notify the listener that the service is now running
                 listener.onSuccess();
             } catch (Exception e) {
-                listener.onFailure("Failed to create a recurring intent: ", e);
+                listener.onFailure("Failed to schedule the recurring service: ", e);
             }
         }
 
         @Override
         public void stopService() {
+            cancelLegacyAlarm();
+            WakeupScheduler.cancel(context, mServiceClass);
+        }
+
+        @Override
+        protected boolean onParameterChanged(ServiceParameter<?> parameter) throws Exception {
+            if (parameter != mInterval)
+                return super.onParameterChanged(parameter);
+
+            // The scheduling replaces the previous one
+            WakeupScheduler.schedule(context, mServiceClass, getInterval(),
+                    System.currentTimeMillis() + getInterval());
+            return true;
+        }
+
+        /**
+         * Cancels the alarm registered for this service by the previous versions of the
+         * application, before the {@link WakeupScheduler}.
+         */
+        private void cancelLegacyAlarm() {
+            PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0,
+                    new Intent(context, mServiceClass), PendingIntent.FLAG_NO_CREATE);
+            if (pendingIntent == null)
+                return;
+
             AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-            Intent intent = new Intent(context, mServiceClass);
-            PendingIntent sender = PendingIntent.getBroadcast(context, 0, intent, 0);
-            am.cancel(sender);
+            am.cancel(pendingIntent);
+            pendingIntent.cancel();
         }
     }
 }
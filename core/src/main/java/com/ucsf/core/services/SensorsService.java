@@ -130,27 +130,7 @@ public abstract class SensorsService extends FrequentRecurringService {
             try {
                 mManager =
                         (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-
-                mSensors[0] = resetSensor(mIsAccelerometerEnabled.get(),
-                        Sensor.TYPE_ACCELEROMETER);
-                mSensors[1] = resetSensor(mIsGyroscopeEnabled.get(),
-                        Sensor.TYPE_ROTATION_VECTOR);
-                mSensors[2] = resetSensor(mIsStepCounterEnabled.get(),
-                        Sensor.TYPE_STEP_COUNTER);
-                if (android.os.Build.VERSION.SDK_INT >= 20) {
-                    mSensors[3] = resetSensor(mIsHeartMonitorEnabled.get(),
-                            Sensor.TYPE_HEART_RATE);
-
-                    if (!(mIsHeartMonitorEnabled.get()))
-                        mData.isHeartRateValid = false; // Make sure to invalidate heart rate monitoring
-                } else
-                    mData.isHeartRateValid = false; // The sensor is not available
-
-                for (Sensor sensor : mSensors) {
-                    if (sensor != null)
-                        mManager.registerListener(mListener, sensor, (int) getInterval() * 100,
-                                (int) getInterval() * 1000); // Only one update per interval to preserve battery life
-                }
+                registerSensors();
 
                 super.startService(listener);
             } catch (Exception e) {
@@ -169,6 +149,46 @@ public abstract class SensorsService extends FrequentRecurringService {
             return super.isServiceRunning() && mManager != null;
         }
 
+        @Override
+        protected boolean onParameterChanged(ServiceParameter<?> parameter) throws Exception {
+            boolean isSensorParameter = parameter == mIsAccelerometerEnabled ||
+                    parameter == mIsGyroscopeEnabled || parameter == mIsStepCounterEnabled ||
+                    parameter == mIsHeartMonitorEnabled;
+            if (!isSensorParameter && !super.onParameterChanged(parameter))
+                return false;
+
+            // Register the enabled sensors again, at the current interval
+            mManager.unregisterListener(mListener);
+            registerSensors();
+            return true;
+        }
+
+        /**
+         * Registers the listener of the enabled sensors.
+         */
+        private void registerSensors() {
+            mSensors[0] = resetSensor(mIsAccelerometerEnabled.get(),
+                    Sensor.TYPE_ACCELEROMETER);
+            mSensors[1] = resetSensor(mIsGyroscopeEnabled.get(),
+                    Sensor.TYPE_ROTATION_VECTOR);
+            mSensors[2] = resetSensor(mIsStepCounterEnabled.get(),
+                    Sensor.TYPE_STEP_COUNTER);
+            if (android.os.Build.VERSION.SDK_INT >= 20) {
+                mSensors[3] = resetSensor(mIsHeartMonitorEnabled.get(),
+                        Sensor.TYPE_HEART_RATE);
+
+                if (!(mIsHeartMonitorEnabled.get()))
+                    mData.isHeartRateValid = false; // Make sure to invalidate heart rate monitoring
+            } else
+                mData.isHeartRateValid = false; // The sensor is not available
+
+            for (Sensor sensor : mSensors) {
+                if (sensor != null)
+                    mManager.registerListener(mListener, sensor, (int) getInterval() * 100,
+                            (int) getInterval() * 1000); // Only one update per interval to preserve battery life
+            }
+        }
+
         /**
          * Returns the sensor corresponding to the given type if enabled or null otherwise.
          */
@@ -176,8 +196,8 @@ public abstract class SensorsService extends FrequentRecurringService {
             if (isEnabled)
                 return mManager.getDefaultSensor(sensorType);
             /*
-             * No need to unregister previously registered sensor since the service starts only if
-             * it's not running, i.e. if the method stopService() was called.
+             * No need to unregister previously registered sensor since the listener is unregistered
+             * before, either by stopService() or when a sensor parameter changes.
              */
 
             return null;
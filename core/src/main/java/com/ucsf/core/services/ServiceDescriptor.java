@@ -2,18 +2,27 @@ package com.ucsf.core.services;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
 import android.util.Log;
 
-import com.ucsf.core.data.Entry;
-import com.ucsf.core.data.JSON;
-
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.io.Serializable;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
 
 /**
  * Class describing a service and its properties (i.e. callbacks and parameters).
@@ -32,12 +41,16 @@ public class ServiceDescriptor {
     private static final String KEY_VALUE            = "VALUE";
     private static final String KEY_DEFAULT_VALUE    = "DEFAULT_VALUE";
     private static final String KEY_IS_DEFAULT_VALUE = "IS_DEFAULT";
+    private static final String KEY_VERSIONS         = "VERSIONS";
 
     /** Unique {@link ServiceId identifier} of the described service. */
     public final ServiceId             service;
     /** List of properties of the described service. */
     public final List<ServiceProperty> properties;
-    /** Current {@link Status status} of the described service. */
+    /**
+     * Current {@link Status status} of the described service. Null in the changes of a service
+     * whose status is unchanged (see {@link ServiceDescriptor#update(ServiceDescriptor)}).
+     */
     public       Status                status;
 
     private ServiceDescriptor(ServiceId service, List<ServiceProperty> properties, Status status) {
@@ -67,87 +80,325 @@ public class ServiceDescriptor {
     }
 
     /**
-     * Saves a list of descriptors in a JSON array
+     * Saves a list of descriptors in a JSON array, written by
+     * {@link ServiceDescriptor#writeDescriptors(Writer, Collection)}. The array is embedded as is
+     * in the returned object, so that it is not escaped once more when the object is sent.
      */
     public static JSONObject saveDescriptors(final Collection<ServiceDescriptor> descriptors) {
-        return JSON.create(new Entry(KEY_DESCRIPTORS, JSON.create(descriptors,
-                new JSON.Delegate() {
-                    @Override
-                    public Object wrap(Object value) throws Exception {
-                        if (value instanceof ServiceDescriptor) {
-                            ServiceDescriptor descriptor = (ServiceDescriptor) value;
-                            return JSON.create(
-                                    new Entry(KEY_SERVICE_ID, descriptor.service),
-                                    new Entry(KEY_PROPERTIES, JSON.create(descriptor.properties, this).toString()),
-                                    new Entry(KEY_STATUS, descriptor.status.toString())
-                            );
-                        }
-                        if (value instanceof ServiceParameter) {
-                            ServiceParameter parameter = (ServiceParameter) value;
-                            return JSON.create(
-                                    new Entry(KEY_TAG, parameter.tag),
-                                    new Entry(KEY_DESCRIPTION, parameter.description),
-                                    new Entry(KEY_VALUE, parameter.get()),
-                                    new Entry(KEY_DEFAULT_VALUE, parameter.defaultValue()),
-                                    new Entry(KEY_IS_DEFAULT_VALUE, parameter.isDefault())
-                            );
-                        }
-                        if (value instanceof ServiceCallback) {
-                            ServiceCallback callback = (ServiceCallback) value;
-                            return JSON.create(
-                                    new Entry(KEY_TAG, callback.tag),
-                                    new Entry(KEY_DESCRIPTION, callback.description),
-                                    new Entry(KEY_VALUE, callback.get())
-                            );
-                        }
-                        return super.wrap(value);
-                    }
-                }).toString()));
+        JSONObject   jsonObject = new JSONObject();
+        StringWriter out        = new StringWriter();
+        try {
+            writeDescriptors(out, descriptors);
+            jsonObject.put(KEY_DESCRIPTORS, new JSONArray(out.toString()));
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to save service descriptors: ", e);
+        }
+        return jsonObject;
     }
 
     /**
-     * Loads a list of descriptors from a JSON array.
+     * Loads a list of descriptors from a JSON array. The array may also be given as a string,
+     * as sent by the devices saving the array as text.
      */
     public static List<ServiceDescriptor> loadDescriptors(Context context,
                                                           @NonNull JSONObject jsonObject) {
-        List<ServiceDescriptor> descriptors = new LinkedList<>();
         try {
-            JSONArray jsonArray = new JSONArray(jsonObject.getString(KEY_DESCRIPTORS));
-            for (int i = 0; i < jsonArray.length(); ++i) {
-                try {
-                    JSONObject descr = (JSONObject) jsonArray.get(i);
-                    ServiceId service = ServiceId.valueOf(descr.getString(KEY_SERVICE_ID));
-                    Status status = Status.valueOf(descr.getString(KEY_STATUS));
-                    JSONArray props = new JSONArray(descr.getString(KEY_PROPERTIES));
-
-                    List<ServiceProperty> properties = new LinkedList<>();
-                    for (int j = 0; j < props.length(); ++j) {
-                        JSONObject prop = (JSONObject) props.get(j);
-                        String tag = prop.getString(KEY_TAG);
-                        String description = prop.getString(KEY_DESCRIPTION);
-                        Serializable value = (Serializable) prop.get(KEY_VALUE);
-                        Serializable defaultValue = (Serializable) prop.opt(KEY_DEFAULT_VALUE);
-
-                        if (defaultValue != null) {
-                            properties.add(new ServiceParameter(context, service, tag,
-                                    description, value, defaultValue,
-                                    prop.optBoolean(KEY_IS_DEFAULT_VALUE)));
-                        } else
-                            properties.add(new ServiceCallback(context, service, tag,
-                                    description, (String) value));
-                    }
+            return readDescriptors(context,
+                    new StringReader(jsonObject.get(KEY_DESCRIPTORS).toString()));
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to load service descriptors: ", e);
+            return new LinkedList<>();
+        }
+    }
 
-                    descriptors.add(new ServiceDescriptor(service, properties, status));
-                } catch (Exception e) {
-                    Log.e(TAG, "Failed to load service descriptor: ", e);
-                }
+    /**
+     * Saves the versions of the given descriptors, i.e. the status of each service and the hash
+     * of each of its properties, so that the other device can only send what has changed (see
+     * {@link ServiceDescriptor#saveChanges(Collection, JSONObject)}).
+     */
+    public static JSONObject saveVersions(Collection<? extends ServiceDescriptor> descriptors) {
+        JSONObject jsonObject = new JSONObject();
+        JSONObject versions   = new JSONObject();
+        try {
+            for (ServiceDescriptor descriptor : descriptors) {
+                JSONObject hashes = new JSONObject();
+                for (ServiceProperty property : descriptor.properties)
+                    hashes.put(property.tag, getHash(property));
+                versions.put(descriptor.service.toString(), new JSONObject()
+                        .put(KEY_STATUS, String.valueOf(descriptor.status))
+                        .put(KEY_PROPERTIES, hashes));
             }
+            jsonObject.put(KEY_VERSIONS, versions);
         } catch (Exception e) {
-            Log.e(TAG, "Failed to load service descriptors: ", e);
+            Log.e(TAG, "Failed to save service versions: ", e);
+        }
+        return jsonObject;
+    }
+
+    /**
+     * Saves what has changed in the given descriptors since the given versions, saved by
+     * {@link ServiceDescriptor#saveVersions(Collection)}. The descriptors of the unknown services
+     * are saved entirely, and only the status if it changed and the changed properties are saved
+     * for the other ones. The unchanged descriptors are omitted, the list being empty if nothing
+     * has changed. All the descriptors are saved if no versions are given.
+     * @param versions Versions known by the other device. Can be null.
+     */
+    public static JSONObject saveChanges(Collection<ServiceDescriptor> descriptors,
+                                         JSONObject versions)
+    {
+        JSONObject known = versions == null ? null : versions.optJSONObject(KEY_VERSIONS);
+        if (known == null)
+            return saveDescriptors(descriptors);
+
+        List<ServiceDescriptor> changes = new LinkedList<>();
+        for (ServiceDescriptor descriptor : descriptors) {
+            JSONObject version = known.optJSONObject(descriptor.service.toString());
+            if (version == null) {
+                changes.add(descriptor);
+                continue;
+            }
+
+            JSONObject            hashes     = version.optJSONObject(KEY_PROPERTIES);
+            List<ServiceProperty> properties = new LinkedList<>();
+            for (ServiceProperty property : descriptor.properties)
+                if (hashes == null || !hashes.has(property.tag) ||
+                        hashes.optInt(property.tag) != getHash(property))
+                    properties.add(property);
+
+            Status status = descriptor.status.toString().equals(version.optString(KEY_STATUS)) ?
+                    null : descriptor.status;
+            if (status != null || !properties.isEmpty())
+                changes.add(new ServiceDescriptor(descriptor.service, properties, status));
+        }
+        return saveDescriptors(changes);
+    }
+
+    /**
+     * Applies the changes of this service received from another device, saved by
+     * {@link ServiceDescriptor#saveChanges(Collection, JSONObject)}: the status if any, and the
+     * properties, which replace the properties with the same tag. Must only be called on
+     * descriptors loaded from another device, whose properties are not used by a provider.
+     */
+    public void update(ServiceDescriptor changes) {
+        if (changes.status != null)
+            status = changes.status;
+
+        for (ServiceProperty property : changes.properties) {
+            boolean isReplaced = false;
+            for (ListIterator<ServiceProperty> it = properties.listIterator(); it.hasNext(); ) {
+                if (it.next().tag.equals(property.tag)) {
+                    it.set(property);
+                    isReplaced = true;
+                    break;
+                }
+            }
+            if (!isReplaced)
+                properties.add(property);
         }
+    }
+
+    /**
+     * Returns the hash of the given property, which changes with its value or its description.
+     * Values are compared as text, since their type may change when sent to another device.
+     */
+    public static int getHash(ServiceProperty property) {
+        String defaultValue = null;
+        String isDefault    = null;
+        if (property instanceof ServiceParameter) {
+            defaultValue = String.valueOf(((ServiceParameter) property).defaultValue());
+            isDefault    = String.valueOf(((ServiceParameter) property).isDefault());
+        }
+        return Arrays.hashCode(new String[] {property.tag, property.description,
+                String.valueOf(property.get()), defaultValue, isDefault});
+    }
+
+    /**
+     * Writes the given descriptors as a JSON array in a single pass, the properties of each
+     * descriptor being nested in it as an array.
+     */
+    public static void writeDescriptors(Writer out, Collection<ServiceDescriptor> descriptors)
+            throws IOException
+    {
+        JsonWriter writer = new JsonWriter(out);
+        writer.setLenient(true); // Allows NaN and infinite parameters
+        writer.beginArray();
+        for (ServiceDescriptor descriptor : descriptors) {
+            writer.beginObject();
+            writeValue(writer, KEY_SERVICE_ID, descriptor.service.toString());
+            writeValue(writer, KEY_STATUS,
+                    descriptor.status == null ? null : descriptor.status.toString());
+            writer.name(KEY_PROPERTIES);
+            writer.beginArray();
+            for (ServiceProperty property : descriptor.properties) {
+                writer.beginObject();
+                writeValue(writer, KEY_TAG, property.tag);
+                writeValue(writer, KEY_DESCRIPTION, property.description);
+                writeValue(writer, KEY_VALUE, property.get());
+                if (property instanceof ServiceParameter) {
+                    ServiceParameter parameter = (ServiceParameter) property;
+                    writeValue(writer, KEY_DEFAULT_VALUE, parameter.defaultValue());
+                    writeValue(writer, KEY_IS_DEFAULT_VALUE, parameter.isDefault());
+                }
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.flush();
+    }
+
+    /**
+     * Reads a list of descriptors written by
+     * {@link ServiceDescriptor#writeDescriptors(Writer, Collection)} in a single pass. The
+     * descriptors sent by the previous versions of the application, whose properties are nested
+     * as JSON text, are also supported. Invalid descriptors are ignored.
+     */
+    public static List<ServiceDescriptor> readDescriptors(Context context, Reader in)
+            throws IOException
+    {
+        List<ServiceDescriptor> descriptors = new LinkedList<>();
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String                          service    = null;
+            String                          status     = null;
+            List<Map<String, Serializable>> properties = new LinkedList<>();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case KEY_SERVICE_ID:
+                        service = reader.nextString();
+                        break;
+                    case KEY_STATUS:
+                        status = reader.nextString();
+                        break;
+                    case KEY_PROPERTIES:
+                        if (reader.peek() == JsonToken.STRING) { // Previous versions
+                            JsonReader nested =
+                                    new JsonReader(new StringReader(reader.nextString()));
+                            nested.setLenient(true);
+                            readProperties(nested, properties);
+                        } else
+                            readProperties(reader, properties);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+
+            try {
+                ServiceId serviceId = ServiceId.valueOf(service);
+                descriptors.add(new ServiceDescriptor(serviceId,
+                        createProperties(context, serviceId, properties),
+                        status == null ? null : Status.valueOf(status)));
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to load service descriptor: ", e);
+            }
+        }
+        reader.endArray();
         return descriptors;
     }
 
+    /**
+     * Reads the fields of each property of the array pointed by the given reader.
+     */
+    private static void readProperties(JsonReader reader,
+                                       List<Map<String, Serializable>> properties)
+            throws IOException
+    {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Map<String, Serializable> fields = new HashMap<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                fields.put(name, readValue(reader));
+            }
+            reader.endObject();
+            properties.add(fields);
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Creates the properties of the given service from their fields. A property with a default
+     * value is a parameter, and a callback otherwise.
+     */
+    private static List<ServiceProperty> createProperties(
+            Context context, ServiceId service, List<Map<String, Serializable>> properties)
+            throws Exception
+    {
+        List<ServiceProperty> result = new LinkedList<>();
+        for (Map<String, Serializable> fields : properties) {
+            String       tag          = (String) fields.get(KEY_TAG);
+            String       description  = (String) fields.get(KEY_DESCRIPTION);
+            Serializable value        = fields.get(KEY_VALUE);
+            Serializable defaultValue = fields.get(KEY_DEFAULT_VALUE);
+            if (tag == null || value == null)
+                throw new Exception("Invalid property of service " + service);
+
+            if (defaultValue != null) {
+                Serializable isDefault = fields.get(KEY_IS_DEFAULT_VALUE);
+                result.add(new ServiceParameter(context, service, tag, description, value,
+                        defaultValue, isDefault instanceof Boolean && (Boolean) isDefault));
+            } else
+                result.add(new ServiceCallback(context, service, tag, description,
+                        value.toString()));
+        }
+        return result;
+    }
+
+    /**
+     * Writes the given value with the given name, unless the value is null.
+     */
+    private static void writeValue(JsonWriter writer, String name, Serializable value)
+            throws IOException
+    {
+        if (value == null)
+            return;
+
+        writer.name(name);
+        if (value instanceof Boolean)
+            writer.value((Boolean) value);
+        else if (value instanceof Number)
+            writer.value((Number) value);
+        else
+            writer.value(value.toString());
+    }
+
+    /**
+     * Reads the value pointed by the given reader. Numbers are read as integers if possible, then
+     * as longs and as doubles otherwise, like with {@link JSONObject}.
+     */
+    private static Serializable readValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER: {
+                String number = reader.nextString();
+                try {
+                    return Integer.valueOf(number);
+                } catch (NumberFormatException e) {
+                    try {
+                        return Long.valueOf(number);
+                    } catch (NumberFormatException e2) {
+                        return Double.valueOf(number);
+                    }
+                }
+            }
+            case STRING:
+                return reader.nextString();
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+
     /**
      * Possible states of a service.
      */
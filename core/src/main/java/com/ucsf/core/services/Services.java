@@ -248,6 +248,20 @@ public abstract class Services {
          */
         public abstract boolean isServiceRunning();
 
+        /**
+         * Method called when the given parameter has changed while the service is running, its new
+         * value being already set. Providers able to apply some parameters to the running service
+         * (intervals, scan periods, enabled sensors...) override this method, so that the service
+         * doesn't have to be restarted, which would interrupt its acquisitions. Don't call this
+         * method directly, use {@link Provider#updateParameter(ServiceParameter, Serializable)}
+         * or {@link Provider#resetParameter(ServiceParameter)} instead.
+         * @return True if the change has been applied, false if the service has to be restarted
+         *         (default).
+         */
+        protected boolean onParameterChanged(ServiceParameter<?> parameter) throws Exception {
+            return false;
+        }
+
         /**
          * Add a new {@link ServiceParameter service parameter} to the service.
          */
@@ -425,6 +439,64 @@ public abstract class Services {
             }
         }
 
+        /**
+         * Sets the given parameter of this provider and applies it to the service. If the service
+         * is running, the change is applied in place when the provider supports it (see
+         * {@link Provider#onParameterChanged(ServiceParameter)}), and by restarting the service
+         * otherwise.
+         */
+        public final void updateParameter(ServiceParameter parameter, Serializable value) {
+            changeParameter(parameter, value, false);
+        }
+
+        /**
+         * Resets the given parameter of this provider and applies it to the service, like
+         * {@link Provider#updateParameter(ServiceParameter, Serializable)}.
+         */
+        public final void resetParameter(ServiceParameter parameter) {
+            changeParameter(parameter, null, true);
+        }
+
+        /**
+         * Sets or resets the given parameter and applies it to the service.
+         */
+        private void changeParameter(ServiceParameter parameter, Serializable value,
+                                     boolean reset)
+        {
+            boolean isRunning = isServiceRunning();
+            boolean isEnabled = isServiceEnabled();
+            if (isRunning && parameter != mIsEnabled) {
+                if (reset)
+                    parameter.reset();
+                else
+                    parameter.set(value);
+
+                try {
+                    if (onParameterChanged(parameter)) {
+                        Log.d(TAG, String.format("Parameter '%s:%s' applied in place.",
+                                getServiceName(), parameter.tag));
+                        return;
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, String.format("Failed to apply parameter '%s:%s': ",
+                            getServiceName(), parameter.tag), e);
+                }
+
+                // Fall back on restarting the service
+                stop();
+                start();
+                return;
+            }
+
+            stop();
+            if (reset)
+                parameter.reset();
+            else
+                parameter.set(value);
+            if (isRunning || (!isEnabled && isServiceEnabled()))
+                start();
+        }
+
     }
 
 }
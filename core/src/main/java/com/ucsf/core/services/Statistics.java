@@ -0,0 +1,116 @@
+package com.ucsf.core.services;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects counters and latencies, for instance the round trip time of the requests exchanged
+ * between the devices. Statistics are kept in memory only and can be dumped to the logs with
+ * {@link Statistics#log()}.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public class Statistics {
+    private final String              mTag;
+    private final Map<String, Metric> mMetrics = new TreeMap<>();
+
+    public Statistics(String tag) {
+        mTag = tag;
+    }
+
+    /**
+     * Statistics of a single measure: number of samples, sum, minimum, maximum and last value.
+     */
+    public static class Metric {
+        private long mCount = 0;
+        private long mTotal = 0;
+        private long mMin   = Long.MAX_VALUE;
+        private long mMax   = Long.MIN_VALUE;
+        private long mLast  = 0;
+
+        private synchronized void add(long value) {
+            ++mCount;
+            mTotal += value;
+            mMin    = Math.min(mMin, value);
+            mMax    = Math.max(mMax, value);
+            mLast   = value;
+        }
+
+        /** Returns the number of samples. */
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        /** Returns the sum of all the samples. */
+        public synchronized long getTotal() {
+            return mTotal;
+        }
+
+        /** Returns the mean value of the samples, or 0 if there is no sample. */
+        public synchronized double getMean() {
+            return mCount == 0 ? 0 : (double) mTotal / mCount;
+        }
+
+        /** Returns the smallest sample, or 0 if there is no sample. */
+        public synchronized long getMin() {
+            return mCount == 0 ? 0 : mMin;
+        }
+
+        /** Returns the largest sample, or 0 if there is no sample. */
+        public synchronized long getMax() {
+            return mCount == 0 ? 0 : mMax;
+        }
+
+        /** Returns the last sample. */
+        public synchronized long getLast() {
+            return mLast;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("count=%d mean=%.1f min=%d max=%d last=%d",
+                    mCount, getMean(), getMin(), getMax(), mLast);
+        }
+    }
+
+    /**
+     * Returns the metric registered under the given name, creating it if needed.
+     */
+    public Metric get(String name) {
+        synchronized (mMetrics) {
+            Metric metric = mMetrics.get(name);
+            if (metric == null) {
+                metric = new Metric();
+                mMetrics.put(name, metric);
+            }
+            return metric;
+        }
+    }
+
+    /**
+     * Adds a sample (typically a duration in milliseconds or a size in bytes) to the given metric.
+     */
+    public void record(String name, long value) {
+        get(name).add(value);
+    }
+
+    /**
+     * Increments the given counter.
+     */
+    public void increment(String name) {
+        get(name).add(1);
+    }
+
+    /**
+     * Dumps all the metrics to the logs.
+     */
+    public void log() {
+        synchronized (mMetrics) {
+            for (Map.Entry<String, Metric> entry : mMetrics.entrySet())
+                Log.d(mTag, String.format("%s: %s", entry.getKey(), entry.getValue()));
+        }
+    }
+}
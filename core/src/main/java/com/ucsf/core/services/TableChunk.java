@@ -0,0 +1,319 @@
+package com.ucsf.core.services;
+
+import android.content.Context;
+
+import com.google.android.gms.wearable.DataMap;
+import com.ucsf.core.data.DataManager;
+import com.ucsf.core.data.Entry;
+import com.ucsf.core.data.Settings;
+
+/**
+ * Rows of a table with consecutive row ids, sent between the devices as a single data item. Each
+ * column is packed into an array (reals being stored as their long bits since data maps have no
+ * double arrays), so that a data item carries up to {@link TableChunk#MAX_ROWS} rows instead of
+ * one. The path of the data item identifies the table and the range of row ids, which is
+ * acknowledged as a whole. The chunk also carries the {@link Settings#getDataEpoch(Context)
+ * epoch} of the sender database, since the row ids of a new database start over.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public class TableChunk {
+    public  static final int    MAX_ROWS  = 500;
+    private static final int    MAX_BYTES = 81920; // Data items are limited to 100 KB
+    private static final String KEY_COUNT = "row_count";
+    private static final String KEY_EPOCH = "data_epoch";
+
+    public final DataManager.Table table;      /**< Table of the rows. */
+    public final long              firstRowId; /**< Row id of the first row. */
+    public final long              lastRowId;  /**< Row id of the last row. */
+    public final int               count;      /**< Number of rows. */
+    public final long              epoch;      /**< Epoch of the sender database, 0 if unknown. */
+
+    private final Object[] mColumns; /**< Packed values of each field, local fields excepted. */
+
+    private TableChunk(DataManager.Table table, long firstRowId, int count, long epoch,
+                       Object[] columns)
+    {
+        this.table      = table;
+        this.firstRowId = firstRowId;
+        this.lastRowId  = firstRowId + count - 1;
+        this.count      = count;
+        this.epoch      = epoch;
+        mColumns        = columns;
+    }
+
+    /**
+     * Reads the next rows of the given cursor, which must point to a row, until a gap in the row
+     * ids or until the chunk is full. The cursor is left on the first row after the chunk.
+     * @param epoch Epoch of the database, see {@link Settings#getDataEpoch(Context)}.
+     */
+    public static TableChunk read(DataManager.Table table, DataManager.Cursor cursor,
+                                  long epoch)
+    {
+        // Find the end of the chunk
+        int  first      = cursor.getPosition();
+        long firstRowId = cursor.getLong(DataManager.KEY_ROW_ID);
+        int  count      = 0;
+        int  bytes      = 0;
+        do {
+            if (cursor.getLong(DataManager.KEY_ROW_ID) != firstRowId + count)
+                break;
+            for (DataManager.TableField field : table.fields)
+                if (!isLocal(field))
+                    bytes += getSize(field, cursor);
+            ++count;
+        } while (count < MAX_ROWS && bytes < MAX_BYTES && cursor.moveToNext());
+
+        // Pack the columns
+        Object[] columns = new Object[table.fields.length];
+        for (int i = 0; i < table.fields.length; ++i) {
+            DataManager.TableField field = table.fields[i];
+            if (isLocal(field))
+                continue;
+
+            cursor.moveToPosition(first);
+            switch (field.type) {
+                case Text:
+                case UniqueText: {
+                    String[] values = new String[count];
+                    for (int row = 0; row < count; ++row, cursor.moveToNext()) {
+                        String value = cursor.getString(field.tag);
+                        values[row] = value == null ? "" : value;
+                    }
+                    columns[i] = values;
+                    break;
+                }
+                case Integer:
+                case Boolean:
+                case Long: {
+                    long[] values = new long[count];
+                    for (int row = 0; row < count; ++row, cursor.moveToNext())
+                        values[row] = cursor.getLong(field.tag);
+                    columns[i] = values;
+                    break;
+                }
+                case Real: {
+                    long[] values = new long[count];
+                    for (int row = 0; row < count; ++row, cursor.moveToNext())
+                        values[row] = Double.doubleToRawLongBits(cursor.getDouble(field.tag));
+                    columns[i] = values;
+                    break;
+                }
+                case Blob: {
+                    byte[][] values = new byte[count][];
+                    for (int row = 0; row < count; ++row, cursor.moveToNext())
+                        values[row] = cursor.getBlob(field.tag);
+                    columns[i] = values;
+                    break;
+                }
+            }
+        }
+        cursor.moveToPosition(first + count);
+
+        return new TableChunk(table, firstRowId, count, epoch, columns);
+    }
+
+    /**
+     * Reads the table and the range of row ids of the chunk sent as the data item with the given
+     * path, without its rows.
+     */
+    public static TableChunk fromPath(String path) throws Exception {
+        if (!isChunkPath(path))
+            throw new Exception("Invalid chunk path format: " + path);
+
+        String[]          tags  = path.split("/");
+        String[]          range = tags[2].split("-");
+        DataManager.Table table = DataManager.getTable(tags[1]);
+        if (table == null)
+            throw new Exception(String.format("Invalid table name(%s).", tags[1]));
+
+        long firstRowId = Long.valueOf(range[0]);
+        return new TableChunk(table, firstRowId,
+                (int) (Long.valueOf(range[1]) - firstRowId + 1), 0, null);
+    }
+
+    /**
+     * Reads the chunk sent as the data item with the given path and content.
+     */
+    public static TableChunk fromDataMap(String path, DataMap map) throws Exception {
+        TableChunk        header  = fromPath(path);
+        DataManager.Table table   = header.table;
+        int               count   = map.getInt(KEY_COUNT);
+        Object[]          columns = new Object[table.fields.length];
+        for (int i = 0; i < table.fields.length; ++i) {
+            DataManager.TableField field = table.fields[i];
+            if (isLocal(field))
+                continue;
+
+            switch (field.type) {
+                case Text:
+                case UniqueText:
+                    columns[i] = map.getStringArray(field.tag);
+                    break;
+                case Integer:
+                case Boolean:
+                case Long:
+                case Real:
+                    columns[i] = map.getLongArray(field.tag);
+                    break;
+                case Blob: {
+                    byte[][] values = new byte[count][];
+                    for (int row = 0; row < count; ++row)
+                        values[row] = map.getByteArray(getBlobKey(field, row));
+                    columns[i] = values;
+                    break;
+                }
+            }
+            if (columns[i] == null)
+                throw new Exception(String.format("Missing column '%s' in chunk '%s'.",
+                        field.tag, path));
+        }
+
+        if (count != header.count)
+            throw new Exception(String.format("Invalid row count %d in chunk '%s'.", count, path));
+        return new TableChunk(table, header.firstRowId, count, map.getLong(KEY_EPOCH, 0),
+                columns);
+    }
+
+    /**
+     * Reads the chunk with the given path serialized by {@link TableChunk#toByteArray()}.
+     */
+    public static TableChunk fromByteArray(String path, byte[] data) throws Exception {
+        return fromDataMap(path, DataMap.fromByteArray(data));
+    }
+
+    /**
+     * Returns if the given data item path identifies a chunk, i.e. "/table/first-last".
+     */
+    public static boolean isChunkPath(String path) {
+        return path.matches("/[^/]+/\\d+-\\d+");
+    }
+
+    /**
+     * Returns the path of the data item carrying this chunk.
+     */
+    public String getPath() {
+        return String.format("/%s/%d-%d", table.tag, firstRowId, lastRowId);
+    }
+
+    /**
+     * Writes the packed columns to the given data item content.
+     */
+    public void writeTo(DataMap map) {
+        map.putInt(KEY_COUNT, count);
+        map.putLong(KEY_EPOCH, epoch);
+        for (int i = 0; i < table.fields.length; ++i) {
+            DataManager.TableField field = table.fields[i];
+            if (mColumns[i] instanceof String[])
+                map.putStringArray(field.tag, (String[]) mColumns[i]);
+            else if (mColumns[i] instanceof long[])
+                map.putLongArray(field.tag, (long[]) mColumns[i]);
+            else if (mColumns[i] instanceof byte[][])
+                for (int row = 0; row < count; ++row)
+                    map.putByteArray(getBlobKey(field, row), ((byte[][]) mColumns[i])[row]);
+        }
+    }
+
+    /**
+     * Returns the estimated size, in bytes, of the packed columns, or 0 if the chunk has been read
+     * from a path only.
+     */
+    public int getSize() {
+        if (mColumns == null)
+            return 0;
+
+        int size = 0;
+        for (Object column : mColumns) {
+            if (column instanceof long[])
+                size += 8 * count;
+            else if (column instanceof String[])
+                for (String value : (String[]) column)
+                    size += value.length();
+            else if (column instanceof byte[][])
+                for (byte[] value : (byte[][]) column)
+                    size += value == null ? 0 : value.length;
+        }
+        return size;
+    }
+
+    /**
+     * Serializes the packed columns, for instance to send them through a stream.
+     */
+    public byte[] toByteArray() {
+        DataMap map = new DataMap();
+        writeTo(map);
+        return map.toByteArray();
+    }
+
+    /**
+     * Returns the values of the given row, the committed flag being reset and the source being
+     * set to the given device, the epoch of its database and the row id of the row on that device.
+     * @param node Identifier of the device which sent the chunk.
+     */
+    public Entry[] getEntries(int row, String node) {
+        Entry[] entries = new Entry[table.fields.length];
+        for (int i = 0; i < table.fields.length; ++i) {
+            DataManager.TableField field = table.fields[i];
+            if (field.tag.equals(DataManager.KEY_IS_COMMITTED))
+                entries[i] = new Entry(field.tag, 0);
+            else if (field.tag.equals(DataManager.KEY_SOURCE))
+                entries[i] = new Entry(field.tag, getSource(node, epoch, firstRowId + row));
+            else if (field.type == DataManager.Type.Real)
+                entries[i] = new Entry(field.tag,
+                        Double.longBitsToDouble(((long[]) mColumns[i])[row]));
+            else if (mColumns[i] instanceof String[])
+                entries[i] = new Entry(field.tag, ((String[]) mColumns[i])[row]);
+            else if (mColumns[i] instanceof long[])
+                entries[i] = new Entry(field.tag, ((long[]) mColumns[i])[row]);
+            else
+                entries[i] = new Entry(field.tag, ((byte[][]) mColumns[i])[row]);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the value of the {@link DataManager#KEY_SOURCE source} field of a row received from
+     * the given device, which makes the row unique across the transfers, and across the databases
+     * of the device since the row ids of a new database start over.
+     * @param epoch Epoch of the device database, or 0 if unknown (previous versions of the
+     *              application).
+     */
+    public static String getSource(String node, long epoch, long rowId) {
+        if (epoch == 0)
+            return String.format("%s/%d", node, rowId);
+        return String.format("%s/%d/%d", node, epoch, rowId);
+    }
+
+    /**
+     * Returns if the given field is specific to each device, and therefore not sent.
+     */
+    private static boolean isLocal(DataManager.TableField field) {
+        return field.tag.equals(DataManager.KEY_IS_COMMITTED) ||
+                field.tag.equals(DataManager.KEY_SOURCE);
+    }
+
+    /**
+     * Returns the estimated size, in bytes, of the given field of the row pointed by the cursor.
+     */
+    private static int getSize(DataManager.TableField field, DataManager.Cursor cursor) {
+        switch (field.type) {
+            case Text:
+            case UniqueText:
+                String value = cursor.getString(field.tag);
+                return value == null ? 0 : value.length();
+            case Blob:
+                byte[] blob = cursor.getBlob(field.tag);
+                return blob == null ? 0 : blob.length;
+            default:
+                return 8;
+        }
+    }
+
+    /**
+     * Returns the key of the given blob field for the given row.
+     */
+    private static String getBlobKey(DataManager.TableField field, int row) {
+        return String.format("%s/%d", field.tag, row);
+    }
+}
@@ -0,0 +1,169 @@
+package com.ucsf.core.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Format of the bulk transfer of tables between the devices, used instead of the data items when
+ * a large backlog has to be sent. The sender streams {@link TableChunk chunks} as frames holding
+ * the chunk path, the deflated chunk content and its checksum. The receiver first sends, for each
+ * table, the row id of the last row received by a previous transfer (the resume offset), along
+ * with the epoch of the sender database these offsets refer to (key: {@link TableStream#EPOCH}),
+ * then acknowledges each stored frame, and the stream ends with an empty path in both directions.
+ * The sender ignores the offsets of another epoch.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public abstract class TableStream {
+    public  static final String PATH    = "/bulk_sync";
+    public  static final String EPOCH   = "#epoch";
+    private static final int    MAGIC   = 0x55435346; // "UCSF"
+    private static final int    VERSION = 1;
+    private static final String END     = "";
+
+    /**
+     * Writes the frames of a transfer.
+     */
+    public static class Writer implements AutoCloseable {
+        private final DataOutputStream mOut;
+
+        public Writer(OutputStream out) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(out));
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+        }
+
+        /**
+         * Writes the given chunk as a compressed frame.
+         */
+        public void write(TableChunk chunk) throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try (DeflaterOutputStream out = new DeflaterOutputStream(buffer)) {
+                out.write(chunk.toByteArray());
+            }
+            byte[] payload = buffer.toByteArray();
+
+            mOut.writeUTF(chunk.getPath());
+            mOut.writeInt(payload.length);
+            mOut.writeLong(getChecksum(payload));
+            mOut.write(payload);
+            mOut.flush();
+        }
+
+        /**
+         * Writes the end of the transfer.
+         */
+        @Override
+        public void close() throws IOException {
+            mOut.writeUTF(END);
+            mOut.flush();
+        }
+    }
+
+    /**
+     * Reads the frames of a transfer.
+     */
+    public static class Reader {
+        private final DataInputStream mIn;
+
+        public Reader(InputStream in) throws Exception {
+            mIn = new DataInputStream(new BufferedInputStream(in));
+            if (mIn.readInt() != MAGIC)
+                throw new Exception("Invalid bulk transfer header.");
+            int version = mIn.readInt();
+            if (version != VERSION)
+                throw new Exception(String.format("Unsupported bulk transfer version %d.",
+                        version));
+        }
+
+        /**
+         * Reads the next frame.
+         * @return Returns null at the end of the transfer.
+         * @throws Exception If the frame checksum doesn't match its content.
+         */
+        public TableChunk read() throws Exception {
+            String path = mIn.readUTF();
+            if (path.equals(END))
+                return null;
+
+            byte[] payload  = new byte[mIn.readInt()];
+            long   checksum = mIn.readLong();
+            mIn.readFully(payload);
+            if (getChecksum(payload) != checksum)
+                throw new Exception(String.format("Checksum mismatch for frame '%s'.", path));
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try (InflaterInputStream in = new InflaterInputStream(
+                    new java.io.ByteArrayInputStream(payload))) {
+                byte[] block = new byte[8192];
+                int    read;
+                while ((read = in.read(block)) != -1)
+                    buffer.write(block, 0, read);
+            }
+            return TableChunk.fromByteArray(path, buffer.toByteArray());
+        }
+    }
+
+    /**
+     * Sends the resume offsets, i.e. the row id of the last row received for each table tag.
+     */
+    public static void writeOffsets(DataOutputStream out, Map<String, Long> offsets)
+            throws IOException
+    {
+        out.writeInt(offsets.size());
+        for (Map.Entry<String, Long> offset : offsets.entrySet()) {
+            out.writeUTF(offset.getKey());
+            out.writeLong(offset.getValue());
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads the resume offsets sent by {@link TableStream#writeOffsets(DataOutputStream, Map)}.
+     */
+    public static Map<String, Long> readOffsets(DataInputStream in) throws IOException {
+        Map<String, Long> offsets = new HashMap<>();
+        for (int i = in.readInt(); i > 0; --i)
+            offsets.put(in.readUTF(), in.readLong());
+        return offsets;
+    }
+
+    /**
+     * Acknowledges the given stored chunk, or the end of the transfer if null.
+     */
+    public static void writeAck(DataOutputStream out, TableChunk chunk) throws IOException {
+        out.writeUTF(chunk == null ? END : chunk.getPath());
+        out.flush();
+    }
+
+    /**
+     * Reads the next acknowledgement.
+     * @return Returns the acknowledged chunk, without its rows, or null at the end of the
+     *         transfer.
+     */
+    public static TableChunk readAck(DataInputStream in) throws Exception {
+        String path = in.readUTF();
+        return path.equals(END) ? null : TableChunk.fromPath(path);
+    }
+
+    /**
+     * Returns the checksum of the given frame content.
+     */
+    private static long getChecksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+}
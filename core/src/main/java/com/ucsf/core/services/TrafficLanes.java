@@ -0,0 +1,54 @@
+package com.ucsf.core.services;
+
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Executors separating the exchanges between the devices into two lanes, so that the control
+ * messages (events, requests and their answers) are never queued behind the table sync.
+ * The control lane runs the short tasks of the requests (retries, timeouts) at the default
+ * priority. The bulk lane runs the sending and the storage of the tables content, one task at a
+ * time, at the background priority. Neither lane must be used for tasks of the other one.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public abstract class TrafficLanes {
+    /** Lane of the control messages. */
+    public static final ScheduledExecutorService CONTROL =
+            Executors.newSingleThreadScheduledExecutor(
+                    new LaneThreadFactory("ucsf:ControlLane", Process.THREAD_PRIORITY_DEFAULT));
+
+    /** Lane of the tables content. */
+    public static final ExecutorService          BULK    =
+            Executors.newSingleThreadExecutor(
+                    new LaneThreadFactory("ucsf:BulkLane", Process.THREAD_PRIORITY_BACKGROUND));
+
+    /**
+     * Creates the thread of a lane with the given name and priority.
+     */
+    private static class LaneThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final int    mPriority;
+
+        public LaneThreadFactory(String name, int priority) {
+            mName     = name;
+            mPriority = priority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(mPriority);
+                    runnable.run();
+                }
+            }, mName);
+        }
+    }
+}
@@ -41,6 +41,12 @@ public abstract class UserMonitoringService extends RecurringService {
                     R.string.parameter_battery_threshold, 20.0f);
         }
 
+        @Override
+        protected boolean onParameterChanged(ServiceParameter<?> parameter) throws Exception {
+            // The threshold is read at each check
+            return parameter == mBatteryLevelThreshold || super.onParameterChanged(parameter);
+        }
+
         /**
          * Runs all the verifications you need to execute.
          */
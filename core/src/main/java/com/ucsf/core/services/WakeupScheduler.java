@@ -0,0 +1,173 @@
+package com.ucsf.core.services;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.PowerManager;
+import android.util.Log;
+
+import com.ucsf.core.data.PersistentParameter;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single alarm waking the device up for all the {@link RecurringService recurring services}.
+ * Each service is registered as a job, identified by its class, with its interval. The scheduler
+ * sets one alarm at the next due time of all the jobs and, when it fires, runs every job due
+ * within {@link WakeupScheduler#TOLERANCE} under a single wake lock, so that jobs due at close
+ * times share the same wakeup. The jobs are persisted, since the application may have been shut
+ * down between two alarms.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public class WakeupScheduler extends BroadcastReceiver {
+    private static final String           TAG       = "ucsf:WakeupScheduler";
+    private static final long             TOLERANCE = 300000; // 5 minutes
+    private static       Map<String, Job> mJobs     = null;
+
+    private static final PersistentParameter<HashMap<String, Job>> mSavedJobs =
+            new PersistentParameter<>("WAKEUP_JOBS", new HashMap<String, Job>());
+
+    /** Scheduling of a recurring service. */
+    private static class Job implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public long interval; /**< Interval between two executions, in milliseconds. */
+        public long due;      /**< Time of the next execution, in milliseconds. */
+
+        public Job(long interval, long due) {
+            this.interval = interval;
+            this.due      = due;
+        }
+
+        /**
+         * Returns how early the job can run to share the wakeup of another job.
+         */
+        public long getTolerance() {
+            return Math.min(TOLERANCE, interval / 2);
+        }
+    }
+
+    /**
+     * Schedules the given service at the given interval, from the given time. Replaces the
+     * previous scheduling of the service if any.
+     */
+    public static synchronized void schedule(Context context,
+                                             Class<? extends RecurringService> service,
+                                             long interval, long firstTime)
+    {
+        getJobs(context).put(service.getName(), new Job(interval, firstTime));
+        save(context);
+        setAlarm(context);
+    }
+
+    /**
+     * Stops scheduling the given service.
+     */
+    public static synchronized void cancel(Context context,
+                                           Class<? extends RecurringService> service)
+    {
+        if (getJobs(context).remove(service.getName()) == null)
+            return;
+        save(context);
+        setAlarm(context);
+    }
+
+    /**
+     * Indicates if the given service is scheduled.
+     */
+    public static synchronized boolean isScheduled(Context context,
+                                                   Class<? extends RecurringService> service)
+    {
+        return getJobs(context).containsKey(service.getName());
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        PowerManager.WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        wl.acquire();
+
+        // Get the due jobs and schedule their next execution
+        List<String> dueJobs = new ArrayList<>();
+        long         now     = System.currentTimeMillis();
+        synchronized (WakeupScheduler.class) {
+            for (Map.Entry<String, Job> entry : getJobs(context).entrySet()) {
+                Job job = entry.getValue();
+                if (job.due - now > job.getTolerance())
+                    continue;
+
+                dueJobs.add(entry.getKey());
+                job.due += job.interval;
+                if (job.due <= now)
+                    job.due = now + job.interval; // Missed executions are not caught up
+            }
+            save(context);
+            setAlarm(context);
+        }
+
+        Log.d(TAG, String.format("Running %d recurring services.", dueJobs.size()));
+        for (String name : dueJobs) {
+            try {
+                RecurringService service = (RecurringService) Class.forName(name).newInstance();
+                service.run(context);
+            } catch (Exception e) {
+                Log.e(TAG, String.format("Failed to run recurring service '%s': ", name), e);
+            }
+        }
+
+        wl.release();
+    }
+
+    /**
+     * Returns the scheduled jobs, loading them if needed. The saved jobs are discarded if the
+     * alarm doesn't exist anymore, e.g. after a reboot, so that the services are started again.
+     */
+    private static Map<String, Job> getJobs(Context context) {
+        if (mJobs == null) {
+            mJobs = new HashMap<>();
+            if (PendingIntent.getBroadcast(context, 0, new Intent(context, WakeupScheduler.class),
+                    PendingIntent.FLAG_NO_CREATE) != null)
+                mJobs.putAll(mSavedJobs.get(context));
+        }
+        return mJobs;
+    }
+
+    /**
+     * Saves the scheduled jobs.
+     */
+    private static void save(Context context) {
+        mSavedJobs.set(context, new HashMap<>(mJobs));
+    }
+
+    /**
+     * Sets the alarm at the next due time, or cancels it if no job is scheduled. The alarm can be
+     * delayed by the smallest tolerance of the jobs, so that the system batches it with the
+     * wakeups of the other applications.
+     */
+    private static void setAlarm(Context context) {
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0,
+                new Intent(context, WakeupScheduler.class), 0);
+        if (mJobs.isEmpty()) {
+            am.cancel(pendingIntent);
+            pendingIntent.cancel();
+            return;
+        }
+
+        long next   = Long.MAX_VALUE;
+        long window = Long.MAX_VALUE;
+        for (Job job : mJobs.values()) {
+            next   = Math.min(next, job.due);
+            window = Math.min(window, job.getTolerance());
+        }
+        am.setWindow(AlarmManager.RTC_WAKEUP, next, window, pendingIntent);
+    }
+}
@@ -0,0 +1,274 @@
+package com.ucsf.core.services;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.wearable.MessageApi;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.NodeApi;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Long-lived connection to the Google API shared by all the exchanges between the devices. The
+ * client stays connected as long as it is used, and disconnects after
+ * {@link WearableClient#IDLE_TIMEOUT} without activity. The connected nodes are cached, refreshed
+ * when the client connects and kept up to date by the node listeners, instead of being fetched
+ * before each message. Messages sent while the client is connecting are queued and sent once it
+ * is connected, so that no thread blocks on the connection.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public class WearableClient implements GoogleApiClient.ConnectionCallbacks,
+        GoogleApiClient.OnConnectionFailedListener, NodeApi.NodeListener
+{
+    private static final String         TAG             = "ucsf:WearableClient";
+    private static final long           IDLE_TIMEOUT    = 60000; // 1 minute
+    private static final int            MAX_QUEUED      = 100;
+    private static       WearableClient mInstance       = null;
+
+    private final GoogleApiClient       mClient;
+    private final Handler               mHandler;
+    private final Queue<PendingMessage> mQueue          = new LinkedList<>();
+    private final Set<String>           mNodes          = new HashSet<>();
+    private       boolean               mAreNodesKnown  = false;
+    private       boolean               mIsConnecting   = false;
+    private       int                   mUsers          = 0;
+
+    /** Message waiting for the client to be connected. */
+    private static class PendingMessage {
+        public final String path;
+        public final byte[] data;
+
+        public PendingMessage(String path, byte[] data) {
+            this.path = path;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Returns the shared client.
+     */
+    public static synchronized WearableClient get(Context context) {
+        if (mInstance == null)
+            mInstance = new WearableClient(context.getApplicationContext());
+        return mInstance;
+    }
+
+    private WearableClient(Context context) {
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mClient  = new GoogleApiClient.Builder(context)
+                .addApi(Wearable.API)
+                .addConnectionCallbacks(this)
+                .addOnConnectionFailedListener(this)
+                .setHandler(mHandler)
+                .build();
+    }
+
+    /**
+     * Sends a message to all the connected nodes. Doesn't block: if the client is not connected
+     * yet, the message is queued until it is.
+     */
+    public synchronized void sendMessage(String path, byte[] data) {
+        if (mClient.isConnected() && mAreNodesKnown) {
+            dispatch(path, data);
+            scheduleDisconnection();
+            return;
+        }
+
+        if (mQueue.size() >= MAX_QUEUED) {
+            Log.w(TAG, String.format("Too many queued messages, dropping '%s'.",
+                    mQueue.poll().path));
+        }
+        mQueue.add(new PendingMessage(path, data));
+        connect();
+    }
+
+    /**
+     * Returns the connected client, connecting it if needed. The client stays connected until
+     * {@link WearableClient#release()} is called. Must not be called from the main thread.
+     * @param timeout Maximal time, in milliseconds, to wait for the connection.
+     */
+    public GoogleApiClient acquire(long timeout) throws Exception {
+        synchronized (this) {
+            ++mUsers;
+            mHandler.removeCallbacks(mDisconnection);
+            connect();
+
+            long end = System.currentTimeMillis() + timeout;
+            while (mIsConnecting) { // Until the client is connected and the nodes are known
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0)
+                    break;
+                wait(remaining);
+            }
+
+            if (!mClient.isConnected()) {
+                --mUsers;
+                scheduleDisconnection();
+                throw new Exception("Google Api Client connection timed out!");
+            }
+        }
+        return mClient;
+    }
+
+    /**
+     * Releases the client acquired with {@link WearableClient#acquire(long)}.
+     */
+    public synchronized void release() {
+        if (mUsers > 0)
+            --mUsers;
+        scheduleDisconnection();
+    }
+
+    /**
+     * Returns the ids of the nodes currently connected.
+     */
+    public synchronized Collection<String> getNodes() {
+        return new ArrayList<>(mNodes);
+    }
+
+    @Override
+    public void onConnected(Bundle bundle) {
+        Log.d(TAG, "Google Api Client connected.");
+        Wearable.NodeApi.addListener(mClient, this);
+        Wearable.NodeApi.getConnectedNodes(mClient).setResultCallback(
+                new ResultCallback<NodeApi.GetConnectedNodesResult>() {
+                    @Override
+                    public void onResult(NodeApi.GetConnectedNodesResult result) {
+                        List<String> nodes = new ArrayList<>();
+                        for (Node node : result.getNodes())
+                            nodes.add(node.getId());
+                        onNodesReceived(nodes);
+                        ConnectivityTracker.onPeersReceived(nodes);
+                    }
+                });
+    }
+
+    @Override
+    public void onConnectionSuspended(int cause) {
+        Log.w(TAG, "Google Api Client connection suspended, cause: " + cause);
+        synchronized (this) {
+            mAreNodesKnown = false;
+        }
+    }
+
+    @Override
+    public void onConnectionFailed(ConnectionResult result) {
+        Log.e(TAG, "Google Api Client connection failed, error code: " + result.getErrorCode());
+        synchronized (this) {
+            mIsConnecting = false;
+            if (!mQueue.isEmpty()) {
+                Log.w(TAG, String.format("Dropping %d queued messages.", mQueue.size()));
+                mQueue.clear();
+            }
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void onPeerConnected(Node node) {
+        synchronized (this) {
+            mNodes.add(node.getId());
+        }
+        ConnectivityTracker.onPeerConnected(node.getId());
+    }
+
+    @Override
+    public void onPeerDisconnected(Node node) {
+        synchronized (this) {
+            mNodes.remove(node.getId());
+        }
+        ConnectivityTracker.onPeerDisconnected(node.getId());
+    }
+
+    /**
+     * Updates the connected nodes, and sends the queued messages.
+     */
+    private synchronized void onNodesReceived(List<String> nodes) {
+        mNodes.clear();
+        mNodes.addAll(nodes);
+        mAreNodesKnown = true;
+        mIsConnecting  = false;
+        notifyAll();
+
+        while (!mQueue.isEmpty()) {
+            PendingMessage message = mQueue.poll();
+            dispatch(message.path, message.data);
+        }
+        scheduleDisconnection();
+    }
+
+    /**
+     * Starts connecting the client if it is neither connected nor connecting.
+     */
+    private synchronized void connect() {
+        mHandler.removeCallbacks(mDisconnection);
+        if (mIsConnecting || mClient.isConnected())
+            return;
+        mIsConnecting = true;
+        mClient.connect();
+    }
+
+    /**
+     * Disconnects the client after the idle timeout, unless it is used in the meantime.
+     */
+    private synchronized void scheduleDisconnection() {
+        mHandler.removeCallbacks(mDisconnection);
+        if (mUsers == 0)
+            mHandler.postDelayed(mDisconnection, IDLE_TIMEOUT);
+    }
+
+    private final Runnable mDisconnection = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (WearableClient.this) {
+                if (mUsers > 0 || !mQueue.isEmpty() || mIsConnecting)
+                    return;
+                Log.d(TAG, "Disconnecting idle Google Api Client.");
+                if (mClient.isConnected())
+                    Wearable.NodeApi.removeListener(mClient, WearableClient.this);
+                mClient.disconnect();
+                mAreNodesKnown = false;
+            }
+        }
+    };
+
+    /**
+     * Sends the given message to all the known nodes.
+     */
+    private void dispatch(final String path, byte[] data) {
+        Log.d(TAG, String.format("Sending to %d nodes the message %s", mNodes.size(), path));
+        for (String node : mNodes) {
+            Wearable.MessageApi.sendMessage(mClient, node, path, data).setResultCallback(
+                    new ResultCallback<MessageApi.SendMessageResult>() {
+                        @Override
+                        public void onResult(MessageApi.SendMessageResult result) {
+                            if (!result.getStatus().isSuccess())
+                                Log.e(TAG, String.format(
+                                        "Failed to send message '%s' with status code: %s",
+                                        path, result.getStatus().getStatusCode()));
+                            else
+                                Log.d(TAG, String.format("Message '%s' successfully sent.",
+                                        path));
+                        }
+                    });
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.ucsf.core_phone.services;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chooses the number of entries to send in each upload request. Each kind of upload (typically
+ * a file type and a table) has its own batch size, adapted after each request in an AIMD fashion:
+ * the size grows additively as long as requests stay under the payload and latency targets, and
+ * is halved when a request exceeds one of the targets or fails. The size is also bounded by the
+ * number of entries that fit in the payload target, so that wide entries (logs) get smaller
+ * batches than narrow ones (sensors).
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public class BatchSizeController {
+    public  static final String METRIC_BATCH_SIZE  = "batch_size";
+    public  static final String METRIC_BATCH_BYTES = "batch_bytes";
+    public  static final String METRIC_DECREASE    = "batch_decreases";
+    private static final String TAG                = "ucsf:BatchSize";
+
+    private final int                mInitialSize;
+    private final int                mMinSize;
+    private final int                mMaxSize;
+    private final int                mIncrement;
+    private final long               mTargetBytes;
+    private final long               mTargetLatency;
+    private final ServerStatistics   mStatistics;
+    private final Map<String, State> mStates = new HashMap<>();
+
+    /**
+     * Creates a controller.
+     * @param initialSize   Batch size used before any measure.
+     * @param minSize       Smallest batch size.
+     * @param maxSize       Largest batch size.
+     * @param increment     Number of entries added after each request under the targets.
+     * @param targetBytes   Payload size, in bytes, that a request should not exceed.
+     * @param targetLatency Duration, in milliseconds, that a request should not exceed.
+     */
+    public BatchSizeController(int initialSize, int minSize, int maxSize, int increment,
+                               long targetBytes, long targetLatency, ServerStatistics statistics)
+    {
+        mInitialSize   = initialSize;
+        mMinSize       = minSize;
+        mMaxSize       = maxSize;
+        mIncrement     = increment;
+        mTargetBytes   = targetBytes;
+        mTargetLatency = targetLatency;
+        mStatistics    = statistics;
+    }
+
+    /**
+     * Batch size and last measures of an upload kind.
+     */
+    private static class State {
+        public int    size;
+        public double bytesPerEntry = 0;
+
+        public State(int size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * Returns the state of the given kind of upload, creating it if needed.
+     */
+    private State getState(String key) {
+        State state = mStates.get(key);
+        if (state == null) {
+            state = new State(mInitialSize);
+            mStates.put(key, state);
+        }
+        return state;
+    }
+
+    /**
+     * Returns the number of entries to send in the next request of the given kind of upload.
+     */
+    public synchronized int getBatchSize(String key) {
+        return getState(key).size;
+    }
+
+    /**
+     * Updates the batch size of the given kind of upload after a successful request.
+     * @param entries  Number of entries sent.
+     * @param bytes    Size of the sent payload, in bytes.
+     * @param duration Duration of the request, in milliseconds.
+     */
+    public synchronized void onSuccess(String key, int entries, long bytes, long duration) {
+        State state = getState(key);
+        if (entries > 0)
+            state.bytesPerEntry = (double) bytes / entries;
+        mStatistics.record(METRIC_BATCH_BYTES, bytes);
+
+        int size;
+        String reason;
+        if (bytes > mTargetBytes || duration > mTargetLatency) {
+            size   = state.size / 2;
+            reason = String.format("over target (%d bytes in %d ms)", bytes, duration);
+            mStatistics.increment(METRIC_DECREASE);
+        } else {
+            size   = state.size + mIncrement;
+            reason = String.format("under target (%d bytes in %d ms)", bytes, duration);
+        }
+
+        // Never plan more entries than the payload target can hold
+        if (state.bytesPerEntry > 0)
+            size = (int) Math.min(size, mTargetBytes / state.bytesPerEntry);
+        setSize(key, state, size, reason);
+    }
+
+    /**
+     * Halves the batch size of the given kind of upload after a failed or timed out request.
+     */
+    public synchronized void onFailure(String key) {
+        State state = getState(key);
+        mStatistics.increment(METRIC_DECREASE);
+        setSize(key, state, state.size / 2, "request failed");
+    }
+
+    /**
+     * Applies and reports a new batch size.
+     */
+    private void setSize(String key, State state, int size, String reason) {
+        size = Math.max(mMinSize, Math.min(mMaxSize, size));
+        if (size != state.size)
+            Log.d(TAG, String.format("Batch size of '%s': %d -> %d, %s.", key, state.size, size,
+                    reason));
+        state.size = size;
+        mStatistics.record(String.format("%s[%s]", METRIC_BATCH_SIZE, key), size);
+    }
+}
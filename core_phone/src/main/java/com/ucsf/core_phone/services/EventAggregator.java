@@ -0,0 +1,207 @@
+package com.ucsf.core_phone.services;
+
+import android.util.Log;
+
+import com.ucsf.core.data.DataManager;
+import com.ucsf.core.data.Entry;
+import com.ucsf.core.data.JSON;
+import com.ucsf.core.data.Sender;
+import com.ucsf.core.data.Settings;
+import com.ucsf.core.data.Timestamp;
+import com.ucsf.core.services.Messages.Event;
+import com.ucsf.core.services.ResponseListener;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups the events sent to the server. Events of the same sender are buffered during
+ * {@link EventAggregator#BUFFER_WINDOW} and sent as a single file listing all of them. A single
+ * buffered event is sent as a regular event file.                                               <br/>
+ * State events (for instance the patient being inside or outside) are edge-triggered: they are
+ * only sent when the state changes, the last sent state being persisted in the settings. The
+ * previous state is restored if the event cannot be sent, so that the next event is not
+ * suppressed.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public class EventAggregator {
+    public  static final String KEY_EVENTS        = "events";
+    public  static final String KEY_EVENT         = "event";
+    public  static final String METRIC_SUPPRESSED = "events_suppressed";
+    public  static final String METRIC_BATCHED    = "events_batched";
+    private static final String TAG               = "ucsf:EventAggregator";
+    private static final String MULTI_EVENT_TAG   = "EVENTS";
+    private static final String STATE_PREFIX      = "EVENT_STATE";
+    private static final long   BUFFER_WINDOW     = 10000; // 10 seconds
+
+    private final ServerUploaderService.Provider mProvider;
+    private final ScheduledExecutorService       mExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, Batch>             mBatches  = new HashMap<>();
+
+    public EventAggregator(ServerUploaderService.Provider provider) {
+        mProvider = provider;
+    }
+
+    /**
+     * Events of a sender waiting to be sent.
+     */
+    private static class Batch {
+        public final Sender                 sender;
+        public final List<Event>            events    = new ArrayList<>();
+        public final List<JSONObject>       data      = new ArrayList<>();
+        public final List<String>           times     = new ArrayList<>();
+        public final List<ResponseListener> listeners = new ArrayList<>();
+
+        public Batch(Sender sender) {
+            this.sender = sender;
+        }
+    }
+
+    /**
+     * Buffers the given event. The listener is notified when the file containing the event has
+     * been received by the server.
+     */
+    public synchronized void add(Sender sender, Event event, ResponseListener listener,
+                                 Entry... entries)
+    {
+        final String key   = getSenderKey(sender);
+        Batch        batch = mBatches.get(key);
+        if (batch == null) {
+            batch = new Batch(sender);
+            mBatches.put(key, batch);
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush(key);
+                }
+            }, BUFFER_WINDOW, TimeUnit.MILLISECONDS);
+        }
+
+        batch.events.add(event);
+        batch.data.add(entries.length > 0 ? JSON.create(entries) : null);
+        batch.times.add(Timestamp.getTimestamp());
+        batch.listeners.add(listener);
+    }
+
+    /**
+     * Buffers the given event if it differs from the last event sent for the given state of the
+     * sender. Otherwise, the listener is immediately notified of the success.
+     * @param state Name of the state described by the event, for instance "location" for the
+     *              inside/outside events.
+     */
+    public void addState(Sender sender, String state, Event event,
+                         final ResponseListener listener, Entry... entries)
+    {
+        final String key      = String.format("%s:%s:%s", STATE_PREFIX, getSenderKey(sender),
+                state);
+        final String value    = event.getTag() + JSON.create(entries).toString();
+        String       previous = "";
+        try {
+            previous = (String) Settings.loadParameter(mProvider.context, key, "");
+            if (value.equals(previous)) {
+                mProvider.mProtocol.getStatistics().increment(METRIC_SUPPRESSED);
+                listener.onSuccess();
+                return;
+            }
+            Settings.saveParameter(mProvider.context, key, value);
+        } catch (Exception e) {
+            Log.e(TAG, String.format("Failed to access the last state '%s': ", key), e);
+        }
+
+        final String previousValue = previous;
+        add(sender, event, new ResponseListener() {
+            @Override
+            public void onSuccess() {
+                listener.onSuccess();
+            }
+
+            @Override
+            public void onFailure(String error, Throwable e) {
+                // Restore the previous state, unless a newer one has been saved since
+                try {
+                    if (value.equals(Settings.loadParameter(mProvider.context, key, "")))
+                        Settings.saveParameter(mProvider.context, key, previousValue);
+                } catch (Exception ex) {
+                    Log.e(TAG, String.format("Failed to restore the last state '%s': ", key), ex);
+                }
+                listener.onFailure(error, e);
+            }
+        }, entries);
+    }
+
+    /**
+     * Sends the buffered events of the given sender.
+     */
+    private void flush(String key) {
+        Batch batch;
+        synchronized (this) {
+            batch = mBatches.remove(key);
+        }
+        if (batch == null)
+            return;
+
+        final List<ResponseListener> listeners = batch.listeners;
+        ResponseListener listener = new ResponseListener() {
+            @Override
+            public void onSuccess() {
+                for (ResponseListener l : listeners)
+                    l.onSuccess();
+            }
+
+            @Override
+            public void onFailure(String error, Throwable e) {
+                for (ResponseListener l : listeners)
+                    l.onFailure(error, e);
+            }
+        };
+
+        // A single event is sent as usual. The file name identifies this very event, so that it
+        // is not queued twice, whereas another event of the same type is queued as well
+        if (batch.events.size() == 1) {
+            String filename = mProvider.makeServerFilename(batch.sender,
+                    batch.events.get(0).getTag());
+            mProvider.sendData(FileType.Event, filename, batch.data.get(0), filename, listener);
+            return;
+        }
+
+        JSONObject file = new JSONObject();
+        try {
+            JSONArray events = new JSONArray();
+            for (int i = 0; i < batch.events.size(); ++i) {
+                JSONObject event = batch.data.get(i) == null ? new JSONObject() : batch.data.get(i);
+                event.put(KEY_EVENT, batch.events.get(i).getTag());
+                event.put(DataManager.KEY_TIMESTAMP, batch.times.get(i));
+                events.put(event);
+            }
+            file.put(KEY_EVENTS, events);
+        } catch (Exception e) {
+            listener.onFailure("Failed to create the events file: ", e);
+            return;
+        }
+
+        mProvider.mProtocol.getStatistics().record(METRIC_BATCHED, batch.events.size());
+        mProvider.sendData(FileType.Event,
+                mProvider.makeServerFilename(batch.sender, MULTI_EVENT_TAG),
+                file,
+                null,
+                listener);
+    }
+
+    /**
+     * Returns the key identifying the given sender.
+     */
+    private static String getSenderKey(Sender sender) {
+        return String.format("%s:%s", sender.id, sender.location);
+    }
+}
@@ -28,6 +28,7 @@ public class GcmInstance extends InstanceIDListenerService {
     private static final String  KEY_REGISTRATION_ID              = "REGISTRATION_ID";
     private static final String  KEY_REGISTRATION_VERSION         = "REGISTRATION_VERSION";
     private static final long    DEFAULT_RETRY_DELAY              = 500;
+    private static final long    MAX_RETRY_DELAY                  = 3600000; // 1 hour
     private static final int     PLAY_SERVICES_RESOLUTION_REQUEST = 9000;
     private static       String  REGISTRATION_ID                  = null;
     private static       Integer LAST_REGISTRATION_VERSION        = null;
@@ -182,8 +183,7 @@ public class GcmInstance extends InstanceIDListenerService {
                                                 }
                                             }.execute();
                                         }
-                                    }, RETRY_DELAY);
-                                    RETRY_DELAY *= 2;
+                                    }, nextRetryDelay());
                                 }
                             });
                 }
@@ -201,13 +201,23 @@ public class GcmInstance extends InstanceIDListenerService {
                             }
                         }.execute();
                     }
-                }, RETRY_DELAY);
-                RETRY_DELAY *= 2;
+                }, nextRetryDelay());
             }
         } else
             listener.onTokenReceived(REGISTRATION_ID);
     }
 
+    /**
+     * Returns the delay before the next attempt to update the registration id. The delay doubles
+     * after each failure up to {@link GcmInstance#MAX_RETRY_DELAY}, and a random part is removed
+     * so that the attempts of several devices are spread.
+     */
+    private static long nextRetryDelay() {
+        long delay  = RETRY_DELAY;
+        RETRY_DELAY = Math.min(RETRY_DELAY * 2, MAX_RETRY_DELAY);
+        return delay / 2 + (long) (Math.random() * delay / 2);
+    }
+
     /**
      * Checks the device to make sure it has the Google Play Service APK. If
      * it doesn't, display a dialog that allows users to download the APK from
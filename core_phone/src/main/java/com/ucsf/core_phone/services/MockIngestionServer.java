@@ -0,0 +1,294 @@
+package com.ucsf.core_phone.services;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local server receiving the files sent by a {@link ServerLocalProtocol}, used to measure the
+ * uploads without the remote server. The server either speaks the multipart "uploadedfile" POST
+ * expected by the http server (see {@link ServerHttpClient}), or acts as an 'scp -t' sink (see
+ * {@link ServerScpProtocol}) directly on top of tcp, since no ssh server is available on the
+ * device. A latency, a bandwidth limit and a failure rate can be injected to reproduce a slow or
+ * unreliable network. The received files are discarded, only their size and number of lines are
+ * counted.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public class MockIngestionServer implements AutoCloseable {
+    public  static final String METRIC_FILES    = "mock_files";
+    public  static final String METRIC_BYTES    = "mock_bytes";
+    public  static final String METRIC_FAILURES = "mock_failures";
+    private static final String TAG             = "ucsf:MockServer";
+    private static final String FIELD_NAME      = "name=\"uploadedfile\"";
+    private static final String LINE_END        = "\r\n";
+    private static final int    BUFFER_SIZE     = 8192;
+
+    /** Protocol spoken by the server. */
+    public enum Mode {
+        Http,
+        Scp
+    }
+
+    private final Mode             mMode;
+    private final long             mLatency;
+    private final long             mBandwidth;
+    private final double           mFailureRate;
+    private final Random           mRandom     = new Random();
+    private final ExecutorService  mExecutor   = Executors.newCachedThreadPool();
+    private final ServerStatistics mStatistics = new ServerStatistics(TAG);
+    private final AtomicLong       mLines      = new AtomicLong(0);
+    private       ServerSocket     mSocket;
+
+    /**
+     * Creates a server.
+     * @param latency     Delay, in milliseconds, added before answering each file.
+     * @param bandwidth   Maximal number of bytes read per second on each connection, or 0 for no
+     *                    limit.
+     * @param failureRate Probability, between 0 and 1, to reject a file.
+     */
+    public MockIngestionServer(Mode mode, long latency, long bandwidth, double failureRate) {
+        mMode        = mode;
+        mLatency     = latency;
+        mBandwidth   = bandwidth;
+        mFailureRate = failureRate;
+    }
+
+    /**
+     * Starts listening on a free local port.
+     * @return Returns the port on which one the server listens.
+     */
+    public synchronized int start() throws Exception {
+        mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!mSocket.isClosed()) {
+                    final Socket client;
+                    try {
+                        client = mSocket.accept();
+                    } catch (Exception e) {
+                        break; // The server has been stopped
+                    }
+                    mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(client);
+                        }
+                    });
+                }
+            }
+        });
+        return mSocket.getLocalPort();
+    }
+
+    /**
+     * Stops the server and closes all the connections.
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            if (mSocket != null)
+                mSocket.close();
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to close the server socket: ", e);
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the number of files, bytes and failures of the server.
+     */
+    public ServerStatistics getStatistics() {
+        return mStatistics;
+    }
+
+    /**
+     * Returns the number of lines of all the files successfully received.
+     */
+    public long getLineCount() {
+        return mLines.get();
+    }
+
+    /**
+     * Handles all the requests of the given connection.
+     */
+    private void serve(Socket client) {
+        try (Socket socket = client) {
+            InputStream  in  = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            if (mMode == Mode.Http) {
+                while (serveHttp(in, out)) {
+                    // Keep the connection alive until the client closes it
+                }
+            } else {
+                serveScp(in, out);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Connection closed: ", e);
+        }
+    }
+
+    /**
+     * Handles a single http request.
+     * @return Returns false if the connection has to be closed.
+     */
+    private boolean serveHttp(InputStream in, OutputStream out) throws Exception {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.isEmpty())
+            return false;
+
+        // Read the headers
+        int     length    = 0;
+        boolean keepAlive = true;
+        String  header;
+        while ((header = readLine(in)) != null && !header.isEmpty()) {
+            String lower = header.toLowerCase();
+            if (lower.startsWith("content-length:"))
+                length = Integer.parseInt(header.substring(header.indexOf(':') + 1).trim());
+            else if (lower.startsWith("connection:") && lower.contains("close"))
+                keepAlive = false;
+        }
+
+        byte[] body = read(in, length);
+        delay();
+
+        // Extract the file from the multipart form
+        String content = new String(body, "ISO-8859-1");
+        int    field   = content.indexOf(FIELD_NAME);
+        int    start   = field < 0 ? -1 : content.indexOf(LINE_END + LINE_END, field);
+        int    end     = content.lastIndexOf(LINE_END + "--");
+        String status;
+        if (!requestLine.startsWith("POST") || start < 0 || end < start) {
+            status = "400 Bad Request";
+            mStatistics.increment(METRIC_FAILURES);
+        } else if (isFailing()) {
+            status = "500 Internal Server Error";
+        } else {
+            status = "200 OK";
+            onFileReceived(body, start + 2 * LINE_END.length(), end);
+        }
+
+        out.write(String.format("HTTP/1.1 %s%sContent-Length: 0%sConnection: %s%s%s", status,
+                LINE_END, LINE_END, keepAlive ? "keep-alive" : "close", LINE_END, LINE_END)
+                .getBytes());
+        out.flush();
+        return keepAlive;
+    }
+
+    /**
+     * Handles a single scp copy: the 'scp -t' command line, then the file header, the file
+     * content and the final acknowledgements.
+     */
+    private void serveScp(InputStream in, OutputStream out) throws Exception {
+        if (readLine(in) == null)
+            return;
+        out.write(0);
+        out.flush();
+
+        // "C0644 filesize filename"
+        String command = readLine(in);
+        if (command == null || !command.startsWith("C")) {
+            mStatistics.increment(METRIC_FAILURES);
+            out.write(String.format("\1Unexpected command '%s'\n", command).getBytes());
+            out.flush();
+            return;
+        }
+        int length = Integer.parseInt(command.split(" ")[1]);
+        out.write(0);
+        out.flush();
+
+        byte[] data = read(in, length + 1); // Followed by a null byte
+        delay();
+        if (isFailing()) {
+            out.write("\1Injected failure\n".getBytes());
+        } else {
+            onFileReceived(data, 0, length);
+            out.write(0);
+        }
+        out.flush();
+    }
+
+    /**
+     * Counts the given received file.
+     */
+    private void onFileReceived(byte[] data, int start, int end) {
+        long lines = 0;
+        for (int i = start; i < end; ++i)
+            if (data[i] == '\n')
+                ++lines;
+        mLines.addAndGet(lines);
+        mStatistics.increment(METRIC_FILES);
+        mStatistics.record(METRIC_BYTES, end - start);
+    }
+
+    /**
+     * Randomly decides if the current file has to be rejected.
+     */
+    private boolean isFailing() {
+        boolean isFailing;
+        synchronized (mRandom) {
+            isFailing = mRandom.nextDouble() < mFailureRate;
+        }
+        if (isFailing)
+            mStatistics.increment(METRIC_FAILURES);
+        return isFailing;
+    }
+
+    /**
+     * Waits for the injected latency.
+     */
+    private void delay() throws InterruptedException {
+        if (mLatency > 0)
+            Thread.sleep(mLatency);
+    }
+
+    /**
+     * Reads the given number of bytes, no faster than the injected bandwidth.
+     */
+    private byte[] read(InputStream in, int length) throws Exception {
+        byte[] data  = new byte[length];
+        long   start = System.currentTimeMillis();
+        int    count = 0;
+        while (count < length) {
+            int read = in.read(data, count, Math.min(BUFFER_SIZE, length - count));
+            if (read < 0)
+                throw new Exception("Connection closed before the end of the data.");
+            count += read;
+
+            if (mBandwidth > 0) {
+                long expected = count * 1000L / mBandwidth;
+                long elapsed  = System.currentTimeMillis() - start;
+                if (expected > elapsed)
+                    Thread.sleep(expected - elapsed);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Reads a line ended by "\n" or "\r\n".
+     * @return Returns null if the connection has been closed.
+     */
+    private static String readLine(InputStream in) throws Exception {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n')
+            line.write(b);
+        if (b == -1 && line.size() == 0)
+            return null;
+
+        String value = line.toString("ISO-8859-1");
+        return value.endsWith("\r") ? value.substring(0, value.length() - 1) : value;
+    }
+}
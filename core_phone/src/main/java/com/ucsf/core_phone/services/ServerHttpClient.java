@@ -0,0 +1,240 @@
+package com.ucsf.core_phone.services;
+
+import android.util.Log;
+
+import com.ucsf.core.services.ResponseListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Http client posting files to the server using the multipart "uploadedfile" form expected by the
+ * server. Bodies are streamed with a fixed length instead of being buffered by
+ * {@link HttpURLConnection}, and responses are fully consumed so that the underlying connection
+ * goes back to the keep-alive pool and is reused by the next request. Each request is timed
+ * (DNS, connection, TLS handshake, first byte and total) in the given {@link ServerStatistics}.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public class ServerHttpClient {
+    public  static final String METRIC_DNS        = "http_dns_ms";
+    public  static final String METRIC_CONNECT    = "http_connect_ms";
+    public  static final String METRIC_TLS        = "http_tls_ms";
+    public  static final String METRIC_FIRST_BYTE = "http_first_byte_ms";
+    public  static final String METRIC_TOTAL      = "http_total_ms";
+    public  static final String METRIC_SENT_BYTES = "http_sent_bytes";
+    private static final String TAG               = "ucsf:HttpClient";
+    private static final int    TIMEOUT           = 60000;
+    private static final String BOUNDARY          = "*****";
+    private static final String LINE_END          = "\r\n";
+    private static final String TWO_HYPHENS       = "--";
+    private static final String DATA_HEADER       = TWO_HYPHENS + BOUNDARY + LINE_END;
+    private static final String DATA_CONTENT_DESCRIPTION =
+            "Content-Disposition: form-data; name=\"uploadedfile\";filename=\"%s\"" + LINE_END;
+    private static final String DATA_FOOTER       = TWO_HYPHENS + BOUNDARY + TWO_HYPHENS + LINE_END;
+    private static final String CONTENT_TYPE_PROPERTY = "multipart/form-data;boundary=" + BOUNDARY;
+
+    private final ServerStatistics mStatistics;
+    private final SSLSocketFactory mSocketFactory;
+
+    /**
+     * Creates a client for plain http connections.
+     */
+    public ServerHttpClient(ServerStatistics statistics) {
+        this(statistics, null);
+    }
+
+    /**
+     * Creates a client for https connections using the given socket factory. The factory should
+     * be shared between requests so that TLS sessions can be resumed.
+     */
+    public ServerHttpClient(ServerStatistics statistics, SSLSocketFactory socketFactory) {
+        mStatistics    = statistics;
+        mSocketFactory = socketFactory == null ? null : new TimedSocketFactory(socketFactory);
+    }
+
+    /**
+     * Posts the given data as the file with the given name to the given url. The listener is
+     * notified once the server has answered.
+     */
+    public void post(URL url, String filename, byte[] data, ResponseListener listener) {
+        final long start = System.currentTimeMillis();
+
+        // Resolve the host first to measure the DNS lookup, the result is cached by the system
+        try {
+            InetAddress.getAllByName(url.getHost());
+        } catch (Exception e) {
+            listener.onFailure(String.format("Failed to resolve host '%s': ", url.getHost()), e);
+            return;
+        }
+        long resolved = System.currentTimeMillis();
+        mStatistics.record(METRIC_DNS, resolved - start);
+
+        byte[] header = (DATA_HEADER + String.format(DATA_CONTENT_DESCRIPTION, filename) +
+                LINE_END).getBytes();
+        byte[] footer = (LINE_END + DATA_FOOTER).getBytes();
+        int    length = header.length + data.length + footer.length;
+
+        HttpURLConnection connection = null;
+        long sent;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setDoInput(true);
+            connection.setDoOutput(true);
+            connection.setUseCaches(false);
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setFixedLengthStreamingMode(length);
+            if (mSocketFactory != null && connection instanceof HttpsURLConnection)
+                ((HttpsURLConnection) connection).setSSLSocketFactory(mSocketFactory);
+
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Connection", "Keep-Alive");
+            connection.setRequestProperty("Content-Type", CONTENT_TYPE_PROPERTY);
+
+            connection.connect();
+            mStatistics.record(METRIC_CONNECT, System.currentTimeMillis() - resolved);
+
+            OutputStream out = connection.getOutputStream();
+            out.write(header);
+            out.write(data);
+            out.write(footer);
+            out.flush();
+            out.close();
+            sent = System.currentTimeMillis();
+            mStatistics.record(METRIC_SENT_BYTES, length);
+        } catch (Exception e) {
+            if (connection != null)
+                connection.disconnect();
+            listener.onFailure(String.format("Client Message error(%s): ", e.getClass()), e);
+            return;
+        }
+
+        try {
+            int responseCode = connection.getResponseCode();
+            mStatistics.record(METRIC_FIRST_BYTE, System.currentTimeMillis() - sent);
+
+            // Consume the response so that the connection can be reused
+            consume(responseCode < 400 ? connection.getInputStream() : connection.getErrorStream());
+            mStatistics.record(METRIC_TOTAL, System.currentTimeMillis() - start);
+
+            if (responseCode != 200)
+                listener.onFailure(String.format("Wrong response code(%d): %s", responseCode,
+                        connection.getResponseMessage()), null);
+            else
+                listener.onSuccess();
+        } catch (Exception e) {
+            connection.disconnect();
+            listener.onFailure("Connection error: ", e);
+        }
+    }
+
+    /**
+     * Reads and closes the given stream.
+     */
+    private static void consume(InputStream in) {
+        if (in == null)
+            return;
+
+        byte[] buffer = new byte[1024];
+        try {
+            while (in.read(buffer) != -1) {
+                // Discard the response body
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to read server response: ", e);
+        } finally {
+            try {
+                in.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * Socket factory measuring the duration of the TLS handshakes.
+     */
+    private class TimedSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory mDelegate;
+
+        public TimedSocketFactory(SSLSocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        /**
+         * Registers a listener recording the handshake duration of the given socket.
+         */
+        private Socket timed(Socket socket) {
+            final long start = System.currentTimeMillis();
+            if (socket instanceof SSLSocket) {
+                ((SSLSocket) socket).addHandshakeCompletedListener(
+                        new HandshakeCompletedListener() {
+                            @Override
+                            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                                mStatistics.record(METRIC_TLS,
+                                        System.currentTimeMillis() - start);
+                            }
+                        });
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+                throws IOException
+        {
+            return timed(mDelegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return timed(mDelegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return timed(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException
+        {
+            return timed(mDelegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return timed(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                                   int localPort) throws IOException
+        {
+            return timed(mDelegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
@@ -3,25 +3,48 @@ package com.ucsf.core_phone.services;
 
 import android.content.Context;
 import android.os.AsyncTask;
+import android.util.Log;
 
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.Session;
 import com.ucsf.core.services.ResponseListener;
 
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Abstract {@link ServerProtocol protocol} using a JSch connection.
+ * Abstract {@link ServerProtocol protocol} using a JSch connection. The SSH session is kept alive
+ * between two executions of the protocol, so that events, requests and uploads share the same
+ * handshake. The session is checked before each use, reconnected if broken, and closed after
+ * {@link ServerJSchProtocol#SESSION_IDLE_TIMEOUT} without any activity.
  *
  * @author  Julien Jacquemot
  * @version 1.0
  */
 public abstract class ServerJSchProtocol extends ServerProtocol {
-    protected final String  mHost;
-    protected final int     mPort;
-    protected final String  mUsername;
-    protected final String  mPassword;
-    protected       Session mSession;
+    public  static final String METRIC_HANDSHAKE         = "ssh_handshake_ms";
+    public  static final String METRIC_HANDSHAKE_FAILURE = "ssh_handshake_failures";
+    public  static final String METRIC_SESSION_REUSED    = "ssh_session_reused";
+    public  static final String METRIC_SESSION_LOST      = "ssh_session_lost";
+    private static final String TAG                      = "ucsf:JSchProtocol";
+    private static final int    CONNECT_TIMEOUT          = 30000;   // 30 seconds
+    private static final int    SERVER_ALIVE_INTERVAL    = 300000;  // 5 minutes
+    private static final int    SERVER_ALIVE_COUNT_MAX   = 3;
+    private static final long   SESSION_IDLE_TIMEOUT     = 3900000; // 65 minutes
+
+    private static final ScheduledExecutorService mIdleExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    protected final String          mHost;
+    protected final int             mPort;
+    protected final String          mUsername;
+    protected final String          mPassword;
+    protected       Session         mSession;
+    private         boolean         mInUse          = false;
+    private         ScheduledFuture mIdleDisconnect = null;
 
     protected ServerJSchProtocol(String host, int port, String username, String password) {
         mHost     = host;
@@ -31,27 +54,111 @@ public abstract class ServerJSchProtocol extends ServerProtocol {
     }
 
     @Override
-    protected void openConnection(Context context) throws Exception {
-        JSch jsch = new JSch();
+    protected synchronized void openConnection(Context context) throws Exception {
+        mInUse = true;
+        cancelIdleDisconnect();
+
+        // Reuse the current session if it is still alive
+        if (isSessionHealthy()) {
+            mStatistics.increment(METRIC_SESSION_REUSED);
+            return;
+        }
+        disconnectSession();
+
+        long    start   = System.currentTimeMillis();
+        Session session = null;
         try {
-            mSession = jsch.getSession(mUsername, mHost, mPort);
-            mSession.setPassword(mPassword);
+            session = new JSch().getSession(mUsername, mHost, mPort);
+            session.setPassword(mPassword);
 
             Properties config = new Properties();
             config.put("StrictHostKeyChecking", "no");
-            mSession.setConfig(config);
+            session.setConfig(config);
+            session.setServerAliveInterval(SERVER_ALIVE_INTERVAL);
+            session.setServerAliveCountMax(SERVER_ALIVE_COUNT_MAX);
 
-            mSession.connect();
+            session.connect(CONNECT_TIMEOUT);
+            mSession = session;
+            onSessionCreated(session);
         } catch (Exception e) {
-            if (mSession != null && mSession.isConnected())
-                mSession.disconnect();
+            if (session != null && session.isConnected())
+                session.disconnect();
+            mSession = null;
+            mInUse   = false;
+            mStatistics.increment(METRIC_HANDSHAKE_FAILURE);
             throw e;
         }
+
+        long duration = System.currentTimeMillis() - start;
+        mStatistics.record(METRIC_HANDSHAKE, duration);
+        Log.d(TAG, String.format("SSH session opened with '%s' in %d ms.", mHost, duration));
     }
 
+    /**
+     * Method called each time a new SSH session is established, for instance to set up port
+     * forwarding. Not called when an existing session is reused.
+     */
+    protected void onSessionCreated(Session session) throws Exception {}
+
     @Override
-    public void closeConnection() {
-        mSession.disconnect();
+    protected synchronized void closeConnection() {
+        mInUse = false;
+        cancelIdleDisconnect();
+        mIdleDisconnect = mIdleExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ServerJSchProtocol.this) {
+                    if (!mInUse) {
+                        Log.d(TAG, "Closing idle SSH session.");
+                        disconnectSession();
+                        mStatistics.log();
+                    }
+                }
+            }
+        }, SESSION_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks that the current session is still connected by sending a keep-alive message.
+     */
+    private boolean isSessionHealthy() {
+        if (mSession == null)
+            return false;
+
+        if (mSession.isConnected()) {
+            try {
+                mSession.sendKeepAliveMsg();
+                return true;
+            } catch (Exception e) {
+                Log.w(TAG, "SSH session is no longer valid: ", e);
+            }
+        }
+        mStatistics.increment(METRIC_SESSION_LOST);
+        return false;
+    }
+
+    /**
+     * Disconnects the current session, if any. Also removes the associated port forwarding.
+     */
+    private void disconnectSession() {
+        if (mSession != null) {
+            try {
+                mSession.disconnect();
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to disconnect SSH session: ", e);
+            }
+            mSession = null;
+        }
+    }
+
+    /**
+     * Cancels the pending disconnection of an idle session.
+     */
+    private void cancelIdleDisconnect() {
+        if (mIdleDisconnect != null) {
+            mIdleDisconnect.cancel(false);
+            mIdleDisconnect = null;
+        }
     }
 
     @Override
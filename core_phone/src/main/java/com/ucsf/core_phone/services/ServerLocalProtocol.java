@@ -0,0 +1,97 @@
+package com.ucsf.core_phone.services;
+
+import android.content.Context;
+
+import com.ucsf.core.services.ResponseListener;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link ServerProtocol Protocol} sending the files to a {@link MockIngestionServer} running on the
+ * device, with the same http client or scp exchange as the protocols used for the remote server.
+ * The duration of each request is kept to compute latency percentiles.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public class ServerLocalProtocol extends ServerProtocol {
+    private final MockIngestionServer.Mode mMode;
+    private final int                      mPort;
+    private final ServerHttpClient         mClient;
+    private final List<Long>               mLatencies = new ArrayList<>();
+
+    public ServerLocalProtocol(MockIngestionServer.Mode mode, int port) {
+        mMode   = mode;
+        mPort   = port;
+        mClient = new ServerHttpClient(mStatistics);
+    }
+
+    @Override
+    public void writeData(String folder, String filename, byte[] data,
+                          ResponseListener listener)
+    {
+        long start = System.currentTimeMillis();
+        if (mMode == MockIngestionServer.Mode.Http)
+            post(folder, filename, data, listener);
+        else
+            copy(folder, filename, data, listener);
+
+        synchronized (mLatencies) {
+            mLatencies.add(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Returns the durations, in milliseconds, of all the requests sent so far.
+     */
+    public List<Long> getLatencies() {
+        synchronized (mLatencies) {
+            return new ArrayList<>(mLatencies);
+        }
+    }
+
+    /**
+     * Posts the given file with the multipart form expected by the http server.
+     */
+    private void post(String folder, String filename, byte[] data, ResponseListener listener) {
+        URL url;
+        try {
+            url = new URL(String.format("http://127.0.0.1:%d/%s", mPort, folder));
+        } catch (Exception e) {
+            listener.onFailure("Client Message error: ", e);
+            return;
+        }
+
+        mClient.post(url, filename, data, listener);
+    }
+
+    /**
+     * Copies the given file to the scp sink, the 'scp -t' command being sent first since there is
+     * no ssh channel to carry it.
+     */
+    private void copy(String folder, String filename, byte[] data, ResponseListener listener) {
+        try (Socket socket = new Socket("127.0.0.1", mPort)) {
+            InputStream  in  = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            out.write(String.format("scp -t %s/%s\n", folder, filename).getBytes());
+            out.flush();
+            ServerScpProtocol.copy(in, in, out, filename, data);
+        } catch (Exception e) {
+            listener.onFailure("Failed to send data to the server: ", e);
+            return;
+        }
+
+        listener.onSuccess();
+    }
+
+    @Override
+    protected void openConnection(Context context) throws Exception {}
+
+    @Override
+    protected void closeConnection() {}
+}
@@ -0,0 +1,291 @@
+package com.ucsf.core_phone.services;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.ucsf.core.data.DataManager;
+import com.ucsf.core.data.DataManager.Condition;
+import com.ucsf.core.data.DeviceLocation;
+import com.ucsf.core.data.Entry;
+import com.ucsf.core.services.ResponseListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable queue of the files to send to the server. Files are stored in the database before being
+ * sent, so that they are not lost if the server cannot be reached, and are sent one at a time, in
+ * order, by a single thread. A file that cannot be sent is retried after an exponential delay
+ * (with jitter, and capped to {@link ServerOutbox#MAX_RETRY_DELAY}), until its maximal number of
+ * attempts is reached if it has one. Meanwhile the next files are sent, so that a file rejected
+ * by the server doesn't block the queue.                                                        <br/>
+ * A file queued with a deduplication key replaces the pending file with the same key, if any.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public class ServerOutbox {
+    public  static final String METRIC_SENT        = "outbox_sent";
+    public  static final String METRIC_RETRIED     = "outbox_retried";
+    public  static final String METRIC_DROPPED     = "outbox_dropped";
+    public  static final String METRIC_REPLACED    = "outbox_replaced";
+    public  static final String METRIC_QUEUE_TIME  = "outbox_queue_ms";
+    public  static final int    UNLIMITED_ATTEMPTS = 0;
+    private static final String TAG                = "ucsf:ServerOutbox";
+    private static final String KEY_CATEGORY       = "category";
+    private static final String KEY_FILENAME       = "filename";
+    private static final String KEY_DATA           = "data";
+    private static final String KEY_DEDUP_KEY      = "dedup_key";
+    private static final String KEY_ATTEMPTS       = "attempts";
+    private static final String KEY_MAX_ATTEMPTS   = "max_attempts";
+    private static final String KEY_CREATED        = "created";
+    private static final String KEY_NEXT_ATTEMPT   = "next_attempt";
+    private static final long   MIN_RETRY_DELAY    = 1000;    // 1 second
+    private static final long   MAX_RETRY_DELAY    = 3600000; // 1 hour
+
+    private static DataManager.Table mOutboxTable = null;
+
+    private final Context                           mContext;
+    private final ServerProtocol                    mProtocol;
+    private final ScheduledExecutorService          mSender    =
+            Executors.newSingleThreadScheduledExecutor();
+    private final Map<Long, List<ResponseListener>> mListeners = new HashMap<>();
+    private final Random                            mRandom    = new Random();
+    private       ScheduledFuture                   mNextDrain = null;
+    private       long                              mNextDrainTime;
+
+    public ServerOutbox(Context context, ServerProtocol protocol) {
+        mContext  = context.getApplicationContext();
+        mProtocol = protocol;
+    }
+
+    private static DataManager.Table getTable(DataManager instance) throws Exception {
+        if (mOutboxTable == null)
+            mOutboxTable = instance.createTable(
+                    "server_outbox",
+                    DeviceLocation.Unknown,
+                    new DataManager.TableField(KEY_CATEGORY, DataManager.Type.Text),
+                    new DataManager.TableField(KEY_FILENAME, DataManager.Type.Text),
+                    new DataManager.TableField(KEY_DATA, DataManager.Type.Blob),
+                    new DataManager.TableField(KEY_DEDUP_KEY, DataManager.Type.Text),
+                    new DataManager.TableField(KEY_ATTEMPTS, DataManager.Type.Integer, 0),
+                    new DataManager.TableField(KEY_MAX_ATTEMPTS, DataManager.Type.Integer),
+                    new DataManager.TableField(KEY_CREATED, DataManager.Type.Integer),
+                    new DataManager.TableField(KEY_NEXT_ATTEMPT, DataManager.Type.Integer, 0)
+            );
+        return mOutboxTable;
+    }
+
+    /**
+     * Queues the given file and wakes up the sender.
+     * @param dedupKey    If not null, the pending file queued with the same key is removed, and
+     *                    its listeners are notified when this file is sent.
+     * @param maxAttempts Number of attempts after which one the file is dropped and the listener
+     *                    notified of the failure, or {@link ServerOutbox#UNLIMITED_ATTEMPTS} to
+     *                    retry the file until it is sent.
+     */
+    public void enqueue(final FileType fileType, final String filename, final byte[] data,
+                        final String dedupKey, final int maxAttempts,
+                        final ResponseListener listener)
+    {
+        mSender.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<ResponseListener> listeners = new ArrayList<>();
+                listeners.add(listener);
+
+                long id;
+                try (DataManager instance = DataManager.get(mContext)) {
+                    DataManager.Table table = getTable(instance);
+
+                    // Remove the pending file with the same key, the new one replaces it
+                    if (dedupKey != null) {
+                        Condition keyCond = new Condition.Equal<>(KEY_DEDUP_KEY, dedupKey);
+                        DataManager.Cursor cursor = table.fetch(
+                                new String[]{DataManager.KEY_ROW_ID}, keyCond);
+                        if (cursor != null && cursor.moveToFirst()) {
+                            do {
+                                List<ResponseListener> replaced = mListeners.remove(
+                                        cursor.getLong(DataManager.KEY_ROW_ID));
+                                if (replaced != null)
+                                    listeners.addAll(replaced);
+                                mProtocol.getStatistics().increment(METRIC_REPLACED);
+                            } while (cursor.moveToNext());
+                            table.erase(keyCond);
+                        }
+                    }
+
+                    table.add(
+                            new Entry(KEY_CATEGORY    , fileType.toString()),
+                            new Entry(KEY_FILENAME    , filename),
+                            new Entry(KEY_DATA        , data),
+                            new Entry(KEY_DEDUP_KEY   , dedupKey == null ? "" : dedupKey),
+                            new Entry(KEY_MAX_ATTEMPTS, maxAttempts),
+                            new Entry(KEY_CREATED     , System.currentTimeMillis())
+                    );
+                    DataManager.Cursor cursor = table.fetchOrdered(1,
+                            new String[]{DataManager.KEY_ROW_ID}, DataManager.KEY_ROW_ID + " DESC");
+                    if (cursor == null || !cursor.moveToFirst())
+                        throw new Exception("Queued file not found.");
+                    id = cursor.getLong(DataManager.KEY_ROW_ID);
+                } catch (Exception e) {
+                    for (ResponseListener l : listeners)
+                        l.onFailure(String.format("Failed to queue file '%s': ", filename), e);
+                    return;
+                }
+
+                mListeners.put(id, listeners);
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Wakes up the sender, for instance at startup to send the files queued before.
+     */
+    public void flush() {
+        mSender.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Sends in order the queued files due for an attempt, then schedules the next drain at the
+     * next attempt of the remaining files, if any. Must be called from the sender thread.
+     */
+    private void drain() {
+        cancelNextDrain();
+
+        try (DataManager instance = DataManager.get(mContext)) {
+            DataManager.Table table = getTable(instance);
+            while (true) {
+                long now = System.currentTimeMillis();
+                DataManager.Cursor cursor = table.fetchOrdered(1, DataManager.KEY_ROW_ID,
+                        new Condition.LessEqual<>(KEY_NEXT_ATTEMPT, now));
+                if (cursor == null || !cursor.moveToFirst()) {
+                    DataManager.Cursor next = table.fetchOrdered(1,
+                            new String[]{KEY_NEXT_ATTEMPT}, KEY_NEXT_ATTEMPT);
+                    if (next != null && next.moveToFirst())
+                        scheduleDrain(Math.max(0, next.getLong(KEY_NEXT_ATTEMPT) - now));
+                    return;
+                }
+                long id = cursor.getLong(DataManager.KEY_ROW_ID);
+
+                final String[]    error     = new String[1];
+                final Throwable[] throwable = new Throwable[1];
+                try (ServerProtocol protocol = (ServerProtocol) mProtocol.open(mContext)) {
+                    protocol.writeData(cursor.getString(KEY_CATEGORY),
+                            cursor.getString(KEY_FILENAME), cursor.getBlob(KEY_DATA),
+                            new ResponseListener() {
+                                @Override
+                                public void onSuccess() {}
+
+                                @Override
+                                public void onFailure(String e, Throwable t) {
+                                    error[0]     = e;
+                                    throwable[0] = t;
+                                }
+                            });
+                } catch (Exception e) {
+                    error[0]     = "Failed to connect to the server: ";
+                    throwable[0] = e;
+                }
+
+                Condition idCond = new Condition.Equal<>(DataManager.KEY_ROW_ID, id);
+                if (error[0] == null) {
+                    table.erase(idCond);
+                    mProtocol.getStatistics().increment(METRIC_SENT);
+                    mProtocol.getStatistics().record(METRIC_QUEUE_TIME,
+                            now - cursor.getLong(KEY_CREATED));
+                    notifySuccess(id);
+                    continue;
+                }
+
+                int attempts    = cursor.getInt(KEY_ATTEMPTS) + 1;
+                int maxAttempts = cursor.getInt(KEY_MAX_ATTEMPTS);
+                if (maxAttempts != UNLIMITED_ATTEMPTS && attempts >= maxAttempts) {
+                    Log.e(TAG, String.format("Dropping file '%s' after %d attempts.",
+                            cursor.getString(KEY_FILENAME), attempts));
+                    table.erase(idCond);
+                    mProtocol.getStatistics().increment(METRIC_DROPPED);
+                    notifyFailure(id, error[0], throwable[0]);
+                    continue;
+                }
+
+                long delay = getRetryDelay(attempts);
+                Log.w(TAG, String.format("Failed to send file '%s' (attempt %d), retrying in %d ms: %s",
+                        cursor.getString(KEY_FILENAME), attempts, delay, error[0]), throwable[0]);
+                table.update(new Entry[]{
+                        new Entry(KEY_ATTEMPTS    , attempts),
+                        new Entry(KEY_NEXT_ATTEMPT, System.currentTimeMillis() + delay)
+                }, idCond);
+                mProtocol.getStatistics().increment(METRIC_RETRIED);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to read the outbox: ", e);
+            scheduleDrain(MAX_RETRY_DELAY);
+        }
+    }
+
+    /**
+     * Returns the delay before the given attempt: an exponential delay, capped to
+     * {@link ServerOutbox#MAX_RETRY_DELAY}, of which one a random part is removed so that
+     * devices failing at the same time don't retry at the same time.
+     */
+    private long getRetryDelay(int attempts) {
+        long delay = MIN_RETRY_DELAY << Math.min(attempts - 1, 30);
+        if (delay <= 0 || delay > MAX_RETRY_DELAY)
+            delay = MAX_RETRY_DELAY;
+        return delay / 2 + (long) (mRandom.nextDouble() * delay / 2);
+    }
+
+    /**
+     * Schedules the next drain of the queue after the given delay, unless one is already planned
+     * sooner.
+     */
+    private void scheduleDrain(long delay) {
+        long time = System.currentTimeMillis() + delay;
+        if (mNextDrain != null && mNextDrainTime <= time)
+            return;
+        cancelNextDrain();
+        mNextDrainTime = time;
+        mNextDrain     = mSender.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mNextDrain = null;
+                drain();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelNextDrain() {
+        if (mNextDrain != null) {
+            mNextDrain.cancel(false);
+            mNextDrain = null;
+        }
+    }
+
+    private void notifySuccess(long id) {
+        List<ResponseListener> listeners = mListeners.remove(id);
+        if (listeners != null)
+            for (ResponseListener listener : listeners)
+                listener.onSuccess();
+    }
+
+    private void notifyFailure(long id, String error, Throwable e) {
+        List<ResponseListener> listeners = mListeners.remove(id);
+        if (listeners != null)
+            for (ResponseListener listener : listeners)
+                listener.onFailure(error, e);
+    }
+}
@@ -12,19 +12,33 @@ import com.ucsf.core.services.ResponseListener;
  * @version 1.0
  */
 public abstract class ServerProtocol extends AbstractConnection {
+    public static final String METRIC_EXECUTE = "execute_ms";
+
+    protected final ServerStatistics mStatistics = new ServerStatistics("ucsf:ServerProtocol");
+
     /**
      * Writes the given data to the given server file.
      */
     public abstract void writeData(String category, String id, byte[] data, ResponseListener listener);
 
     /**
-     * Opens, executes and closes the protocol.
+     * Returns the statistics (connection times, reused connections, ...) of this protocol.
+     */
+    public ServerStatistics getStatistics() {
+        return mStatistics;
+    }
+
+    /**
+     * Opens, executes and closes the protocol. Several executions can run at the same time, the
+     * connection being shared until the last one is done.
      */
-    public synchronized void execute(Context context, Runnable runnable, ResponseListener listener) {
+    public void execute(Context context, Runnable runnable, ResponseListener listener) {
+        long start = System.currentTimeMillis();
         try (ServerProtocol instance = (ServerProtocol) open(context)) {
             runnable.run();
         } catch (Exception e) {
             listener.onFailure("An error occurred while sending data to the server: ", e);
         }
+        mStatistics.record(METRIC_EXECUTE, System.currentTimeMillis() - start);
     }
 }
@@ -36,22 +36,7 @@ public class ServerScpProtocol extends ServerJSchProtocol {
             InputStream in = channel.getInputStream();
             channel.connect();
 
-            // Make sure that the command is sent
-            checkAck(in, stderr);
-
-            // Send "C0644 filesize filename", where filename should not include '/'
-            String command = String.format("C0644 %d %s\n", data.length, filename);
-            out.write(command.getBytes());
-            out.flush();
-
-            checkAck(in, stderr);
-
-            // Send the buffer to the server
-            out.write(data);
-            out.write(0);
-            out.flush();
-
-            checkAck(in, stderr);
+            copy(in, stderr, out, filename, data);
         } catch (Exception e) {
             listener.onFailure("Failed to send data to the server: ", e);
             return;
@@ -68,10 +53,34 @@ public class ServerScpProtocol extends ServerJSchProtocol {
         listener.onSuccess();
     }
 
+    /**
+     * Sends the given file to a remote 'scp -t' sink through the given streams.
+     */
+    static void copy(InputStream in, InputStream stderr, OutputStream out, String filename,
+                     byte[] data) throws Exception
+    {
+        // Make sure that the command is sent
+        checkAck(in, stderr);
+
+        // Send "C0644 filesize filename", where filename should not include '/'
+        String command = String.format("C0644 %d %s\n", data.length, filename);
+        out.write(command.getBytes());
+        out.flush();
+
+        checkAck(in, stderr);
+
+        // Send the buffer to the server
+        out.write(data);
+        out.write(0);
+        out.flush();
+
+        checkAck(in, stderr);
+    }
+
     /**
      * Verifies that a file is successfully sent through JSch.
      */
-    private void checkAck(InputStream in, InputStream stderr) throws Exception {
+    private static void checkAck(InputStream in, InputStream stderr) throws Exception {
         // b may be 0 for success,  1 for error, 2 for fatal error, -1
         int b = in.read();
 
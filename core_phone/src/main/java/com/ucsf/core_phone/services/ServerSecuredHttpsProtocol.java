@@ -11,7 +11,6 @@ import com.ucsf.core.services.ResponseListener;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.net.URL;
@@ -23,7 +22,6 @@ import java.security.cert.X509Certificate;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.TrustManagerFactory;
@@ -32,83 +30,44 @@ import javax.net.ssl.TrustManagerFactory;
  * Server protocol implementation using a secured Https connection with certificate.
  */
 public class ServerSecuredHttpsProtocol extends ServerProtocol {
-    private static final int    TIMEOUT       = 60000;
-    private static final String TAG           = "ucsf:HttpsProtocol";
-    private static final String BOUNDARY      = "*****";
-    private static final String LINE_END      = "\r\n";
-    private static final String TWO_HYPHENS   = "--";
-    private static final String DATA_HEADER   = TWO_HYPHENS + BOUNDARY + LINE_END;
-    private static final String DATA_CONTENT_DESCRIPTION =
-            "Content-Disposition: form-data; name=\"uploadedfile\";filename=\"%s\"" + LINE_END;
-    private static final String DATA_FOOTER   = TWO_HYPHENS + BOUNDARY + TWO_HYPHENS + LINE_END;
-    private static final String CONTENT_TYPE_PROPERTY = "multipart/form-data;boundary=" + BOUNDARY;
+    private static final String TAG                 = "ucsf:HttpsProtocol";
+    private static final int    SSL_SESSION_TIMEOUT = 86400; // One day, in seconds
 
-    protected final String     mHost;
-    protected       Context    mContext;
-    protected       SSLContext mSSLContext;
+    protected final String           mHost;
+    protected       Context          mContext;
+    protected       SSLContext       mSSLContext;
+    protected       ServerHttpClient mClient;
 
     protected ServerSecuredHttpsProtocol(String host) {
         mHost = host;
     }
 
     @Override
-    public synchronized void writeData(String folder, String filename, byte[] data,
-                                       ResponseListener listener)
+    public void writeData(String folder, String filename, byte[] data,
+                          ResponseListener listener)
     {
-        HttpsURLConnection connection;
+        URL url;
         try {
-            URL url = new URL(String.format("https://%s/%s", mHost, folder));
-
-            connection = (HttpsURLConnection) url.openConnection();
-            connection.setDoInput(true);
-            connection.setDoOutput(true);
-            connection.setUseCaches(false);
-            connection.setConnectTimeout(TIMEOUT);
-            connection.setReadTimeout(TIMEOUT);
-
-            connection.setSSLSocketFactory(mSSLContext.getSocketFactory());
-
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Connection", "Keep-Alive");
-            connection.setRequestProperty("Content-Type", CONTENT_TYPE_PROPERTY);
-
-            DataOutputStream dos = new DataOutputStream(connection.getOutputStream());
-            dos.writeBytes(DATA_HEADER);
-            dos.writeBytes(String.format(DATA_CONTENT_DESCRIPTION, filename));
-            dos.writeBytes(LINE_END);
-
-            dos.write(data);
-
-            dos.writeBytes(LINE_END);
-            dos.writeBytes(DATA_FOOTER);
-
-            dos.flush();
-            dos.close();
+            url = new URL(String.format("https://%s/%s", mHost, folder));
         } catch (Exception e) {
             listener.onFailure(String.format("Client Message error(%s): ", e.getClass()), e);
             return;
         }
 
-        try {
-            int responseCode = connection.getResponseCode();
-            if (responseCode != 200)
-                listener.onFailure(String.format("Wrong response code(%d): %s", responseCode,
-                        connection.getResponseMessage()), null);
-            else
-                listener.onSuccess();
-        } catch (Exception e) {
-            listener.onFailure("Connection error: ", e);
-        }
+        mClient.post(url, filename, data, listener);
     }
 
     @Override
     protected synchronized void openConnection(Context context) throws Exception {
         mContext = context;
 
-        // Create the ssl context if needed
+        // Create the ssl context if needed. The context is kept so that its client session
+        // cache allows TLS sessions to be resumed by the next connections.
         if (mSSLContext == null) {
-            mSSLContext = SSLContext.getInstance("SSLv3");
+            mSSLContext = SSLContext.getInstance("TLS");
             mSSLContext.init(null, null, null);
+            mSSLContext.getClientSessionContext().setSessionTimeout(SSL_SESSION_TIMEOUT);
+            mClient = new ServerHttpClient(mStatistics, mSSLContext.getSocketFactory());
         }
     }
 
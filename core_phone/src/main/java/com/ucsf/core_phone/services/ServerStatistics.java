@@ -0,0 +1,16 @@
+package com.ucsf.core_phone.services;
+
+import com.ucsf.core.services.Statistics;
+
+/**
+ * Collects counters and latencies of a {@link ServerProtocol protocol}, for instance the time
+ * spent in handshakes or the number of reused connections. See {@link Statistics}.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public class ServerStatistics extends Statistics {
+    public ServerStatistics(String tag) {
+        super(tag);
+    }
+}
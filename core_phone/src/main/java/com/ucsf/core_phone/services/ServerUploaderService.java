@@ -15,11 +15,15 @@ import com.ucsf.core.data.Timestamp;
 import com.ucsf.core.services.Messages.Event;
 import com.ucsf.core.services.ResponseListener;
 import com.ucsf.core.services.ServiceId;
+import com.ucsf.core.services.ServiceParameter;
 import com.ucsf.core.services.UploaderService;
+import com.ucsf.core_phone.R;
 import com.ucsf.core_phone.data.CaregiverInfo;
 
 import org.json.JSONObject;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 /**
  * Service responsible of pushing data daily to a remote server.
@@ -43,18 +47,33 @@ public abstract class ServerUploaderService extends UploaderService {
     private   static final String KEY_USE_PHONE_NUMBER      = "use_phone_number";
     private   static final String KEY_CAREGIVER_ID          = "caregiver";
     private   static final int    SERVER_TIMEOUT            = 60000;
+    private   static final int    UPLOAD_CONCURRENCY        = 3;
+    private   static final int    REQUEST_MAX_ATTEMPTS      = 3;
 
     public static abstract class Provider extends UploaderService.Provider {
         //protected final ServerProtocol mProtocol = new ServerSecuredHttpsProtocol(SERVER_HOST);
         //TODO: Switch the server back to the UCSF server eventually for the merged integration
         protected final ServerProtocol mProtocol = new ServerHttpsProtocol("198.199.116.85", 22, 8000, "root", "MoncaTLee");
-        private int mIncr = 0;
+        protected final ServerOutbox   mOutbox;
+        private final EventAggregator           mEvents = new EventAggregator(this);
+        private final AtomicInteger             mIncr = new AtomicInteger(0);
+        private final ServiceParameter<Integer> mUploadConcurrency;
+        private final ServiceParameter<Long>    mUploadBandwidth;
+
         protected Provider(Context context, Class<? extends ServerUploaderService> serviceClass,
                            ServiceId service) {
             //TODO: Switch the uploading interval back to HALF_DAY.
             //TODO: Remember to restart the phone after doing so for the change to take effect.
             //super(context, serviceClass, service, AlarmManager.INTERVAL_HALF_DAY);
             super(context, serviceClass, service, AlarmManager.INTERVAL_HOUR);
+            mUploadConcurrency = addParameter("UPLOAD_CONCURRENCY",
+                    R.string.parameter_upload_concurrency, UPLOAD_CONCURRENCY);
+            mUploadBandwidth   = addParameter("UPLOAD_BANDWIDTH",
+                    R.string.parameter_upload_bandwidth, 0L);
+
+            // Send the files queued before the application was stopped
+            mOutbox = new ServerOutbox(context, mProtocol);
+            mOutbox.flush();
         }
 
         public abstract ServerListenerService.Provider getServerListenerServiceProvider();
@@ -64,6 +83,24 @@ public abstract class ServerUploaderService extends UploaderService {
         @Override
         public void commit() {}
 
+        @Override
+        protected boolean onParameterChanged(ServiceParameter<?> parameter) throws Exception {
+            // The upload scheduler is created for each upload
+            return parameter == mUploadConcurrency || parameter == mUploadBandwidth ||
+                    super.onParameterChanged(parameter);
+        }
+
+        /**
+         * Creates a scheduler to upload independent streams of data in parallel, using the
+         * concurrency and bandwidth cap of the service parameters. Must be used from within
+         * {@link ServerProtocol#execute} so that the connection stays open until
+         * {@link UploadScheduler#await()} returns.
+         */
+        protected UploadScheduler createUploadScheduler() {
+            return new UploadScheduler(mUploadConcurrency.get(), mUploadBandwidth.get(),
+                    mProtocol.getStatistics());
+        }
+
         /**
          * Send the given data to the server. Used to send short files (events, requests, config).
          */
@@ -71,20 +108,58 @@ public abstract class ServerUploaderService extends UploaderService {
                                 final String filename,
                                 final JSONObject data,
                                 final ResponseListener listener) {
-            mProtocol.execute(context, new Runnable() {
-                @Override
-                public void run() {
-                    mProtocol.writeData(fileType.toString(), filename,
-                            data == null ? new byte[0] : data.toString().getBytes(), listener);
-                }
-            }, listener);
+            sendData(fileType, filename, data, null, listener);
+        }
+
+        /**
+         * Send the given data to the server through the {@link ServerOutbox outbox}, so that it
+         * is retried until the server receives it. Requests are only retried a few times since
+         * their sender waits for the answer.
+         * @param dedupKey If not null, replaces the pending file queued with the same key.
+         */
+        protected void sendData(final FileType fileType,
+                                final String filename,
+                                final JSONObject data,
+                                final String dedupKey,
+                                final ResponseListener listener) {
+            mOutbox.enqueue(fileType, filename,
+                    data == null ? new byte[0] : data.toString().getBytes(), dedupKey,
+                    fileType == FileType.Request ? REQUEST_MAX_ATTEMPTS
+                            : ServerOutbox.UNLIMITED_ATTEMPTS,
+                    listener);
         }
 
         /**
          * Sends the given event to the server with the optional given extra data.
          */
         public void sendEvent(final Sender sender, final Event event, Entry... entries) {
-            sendEvent(sender, event, new ResponseListener() {
+            sendEvent(sender, event, createEventListener(event), entries);
+        }
+
+        /**
+         * Sends the given event to the server with the optional given extra data. Events sent
+         * within a short period are grouped in a single file (see {@link EventAggregator}).
+         */
+        public void sendEvent(final Sender sender, final Event event,
+                              ResponseListener handler, Entry... entries) {
+            mEvents.add(sender, event, handler, entries);
+        }
+
+        /**
+         * Sends the given event to the server only if it differs from the last event sent for the
+         * given state of the sender, for instance to notify that the patient is outside only when
+         * they were inside before.
+         */
+        public void sendStateEvent(final Sender sender, final String state, final Event event,
+                                   Entry... entries) {
+            mEvents.addState(sender, state, event, createEventListener(event), entries);
+        }
+
+        /**
+         * Creates a listener logging the delivery of the given event.
+         */
+        private ResponseListener createEventListener(final Event event) {
+            return new ResponseListener() {
                 @Override
                 public void onSuccess() {
                     Log.d(TAG, String.format("Event '%s' successfully sent to the server.",
@@ -96,18 +171,7 @@ public abstract class ServerUploaderService extends UploaderService {
                     Log.e(TAG, String.format("Failed to send event '%s' to the server: %s",
                             event, error), e);
                 }
-            }, entries);
-        }
-
-        /**
-         * Sends the given event to the server with the optional given extra data.
-         */
-        public void sendEvent(final Sender sender, final Event event,
-                              ResponseListener handler, Entry... entries) {
-            JSONObject data = null;
-            if (entries.length > 0)
-                data = JSON.create(entries);
-            sendData(FileType.Event, makeServerFilename(sender, event.getTag()), data, handler);
+            };
         }
 
         /**
@@ -124,6 +188,7 @@ public abstract class ServerUploaderService extends UploaderService {
             sendData(FileType.Config,
                     makeServerFilename(new Sender("admin", device), "REGID"),
                     configObject,
+                    String.format("admin:%s:REGID", device),
                     listener
             );
         }
@@ -241,7 +306,7 @@ public abstract class ServerUploaderService extends UploaderService {
             String timestamp = Timestamp.getTimestamp(Timestamp.Format.YYYYMMDD_HHMMSS);
 
             return String.format("%s_%s_%s_%s_%d", sender.id, timestamp, sender.location.toString(),
-                    tag, mIncr++);
+                    tag, mIncr.getAndIncrement());
         }
 
         /**
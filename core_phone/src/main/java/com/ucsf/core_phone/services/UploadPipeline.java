@@ -0,0 +1,157 @@
+package com.ucsf.core_phone.services;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Three stages pipeline used to upload a stream of batches: the next batch is read while the
+ * current one is encoded and the previous one is sent to the server. The stages are connected by
+ * queues holding a single batch, so at most one batch per stage is kept in memory. Batches are
+ * sent in the order they were read, and the pipeline stops at the first batch that cannot be
+ * sent.
+ *
+ * @param <B> Type of the batches read.
+ * @param <E> Type of the encoded batches.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public abstract class UploadPipeline<B, E> {
+    public  static final String METRIC_READ      = "pipeline_read_ms";
+    public  static final String METRIC_ENCODE    = "pipeline_encode_ms";
+    public  static final String METRIC_SEND      = "pipeline_send_ms";
+    public  static final String METRIC_SEND_IDLE = "pipeline_send_idle_ms";
+    private static final int    QUEUE_CAPACITY   = 1;
+
+    private static final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    private final ServerStatistics mStatistics;
+
+    protected UploadPipeline(ServerStatistics statistics) {
+        mStatistics = statistics;
+    }
+
+    /**
+     * Reads the next batch to upload.
+     * @return Returns null if there is no more batch.
+     */
+    protected abstract B read() throws Exception;
+
+    /**
+     * Encodes the given batch to the format sent to the server.
+     */
+    protected abstract E encode(B batch) throws Exception;
+
+    /**
+     * Sends the given encoded batch to the server.
+     * @return Returns if the batch has been successfully sent. If not, the pipeline stops.
+     */
+    protected abstract boolean send(E batch) throws Exception;
+
+    /**
+     * Runs the pipeline until all the batches have been sent or until a batch cannot be sent.
+     * The read and encode stages run on their own thread while the send stage runs on the
+     * calling thread.
+     */
+    public void run() throws Exception {
+        final BlockingQueue<Slot<B>> readQueue    = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final BlockingQueue<Slot<E>> encodedQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        Future<?> reader = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        long start = System.currentTimeMillis();
+                        B batch = read();
+                        if (batch == null)
+                            break;
+                        mStatistics.record(METRIC_READ, System.currentTimeMillis() - start);
+                        readQueue.put(new Slot<>(batch, null));
+                    }
+                    finish(readQueue, null);
+                } catch (InterruptedException e) {
+                    // The pipeline has been stopped
+                } catch (Exception e) {
+                    finish(readQueue, e);
+                }
+            }
+        });
+
+        Future<?> encoder = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Slot<B> slot = readQueue.take();
+                        if (slot.isLast()) {
+                            finish(encodedQueue, slot.error);
+                            break;
+                        }
+                        long start = System.currentTimeMillis();
+                        E batch = encode(slot.value);
+                        mStatistics.record(METRIC_ENCODE, System.currentTimeMillis() - start);
+                        encodedQueue.put(new Slot<>(batch, null));
+                    }
+                } catch (InterruptedException e) {
+                    // The pipeline has been stopped
+                } catch (Exception e) {
+                    finish(encodedQueue, e);
+                }
+            }
+        });
+
+        try {
+            while (true) {
+                long idle = System.currentTimeMillis();
+                Slot<E> slot = encodedQueue.take();
+                mStatistics.record(METRIC_SEND_IDLE, System.currentTimeMillis() - idle);
+                if (slot.error != null)
+                    throw slot.error;
+                if (slot.isLast())
+                    break;
+
+                long start = System.currentTimeMillis();
+                boolean isSent = send(slot.value);
+                mStatistics.record(METRIC_SEND, System.currentTimeMillis() - start);
+                if (!isSent)
+                    break;
+            }
+        } finally {
+            reader.cancel(true);
+            encoder.cancel(true);
+        }
+    }
+
+    /**
+     * Pushes the last element to the given queue, with the error that stopped the stage if any.
+     */
+    private static <T> void finish(BlockingQueue<Slot<T>> queue, Exception error) {
+        try {
+            queue.put(new Slot<T>(null, error));
+        } catch (InterruptedException e) {
+            // The pipeline has been stopped
+        }
+    }
+
+    /**
+     * Element of the queues between the stages. The last element of a queue holds no value, and
+     * the error that stopped the previous stage if any.
+     */
+    private static class Slot<T> {
+        public final T         value;
+        public final Exception error;
+
+        public Slot(T value, Exception error) {
+            this.value = value;
+            this.error = error;
+        }
+
+        public boolean isLast() {
+            return value == null;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.ucsf.core_phone.services;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs independent upload streams (typically one per table and patient) in parallel over a
+ * bounded number of connections. A stream is a {@link Runnable} pushing its batches one after the
+ * other, so the order of the batches within a stream is preserved while a slow stream doesn't
+ * stall the others. The total upload rate of all the streams can be capped with
+ * {@link UploadScheduler#acquire(int)}.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public class UploadScheduler {
+    public  static final String METRIC_STREAM    = "upload_stream_ms";
+    public  static final String METRIC_THROTTLED = "upload_throttled_ms";
+    private static final String TAG              = "ucsf:UploadScheduler";
+
+    private final ExecutorService  mExecutor;
+    private final ServerStatistics mStatistics;
+    private final long             mMaxBytesPerSecond;
+    private final List<Future<?>>  mStreams    = new ArrayList<>();
+    private final Object           mBucketLock = new Object();
+    private       double           mAvailableBytes;
+    private       long             mLastRefill;
+
+    /**
+     * Creates a scheduler running at most the given number of streams at the same time.
+     * @param maxBytesPerSecond Global bandwidth cap shared by all the streams, in bytes per
+     *                          second. A value lower or equal to 0 disables the cap.
+     */
+    public UploadScheduler(int concurrency, long maxBytesPerSecond, ServerStatistics statistics) {
+        mExecutor          = Executors.newFixedThreadPool(Math.max(1, concurrency));
+        mStatistics        = statistics;
+        mMaxBytesPerSecond = maxBytesPerSecond;
+        mAvailableBytes    = maxBytesPerSecond;
+        mLastRefill        = System.currentTimeMillis();
+    }
+
+    /**
+     * Queues the given stream. The stream starts as soon as a connection is available.
+     */
+    public void submit(final String name, final Runnable stream) {
+        mStreams.add(mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    stream.run();
+                } catch (Exception e) {
+                    Log.e(TAG, String.format("Upload stream '%s' failed: ", name), e);
+                }
+
+                long duration = System.currentTimeMillis() - start;
+                mStatistics.record(METRIC_STREAM, duration);
+                Log.d(TAG, String.format("Upload stream '%s' done in %d ms.", name, duration));
+            }
+        }));
+    }
+
+    /**
+     * Blocks the calling stream until the given number of bytes can be sent without exceeding
+     * the bandwidth cap. The bytes are reserved immediately so that concurrent streams are served
+     * in the order they asked.
+     */
+    public void acquire(int bytes) throws InterruptedException {
+        if (mMaxBytesPerSecond <= 0)
+            return;
+
+        long waitMillis;
+        synchronized (mBucketLock) {
+            long now = System.currentTimeMillis();
+            mAvailableBytes = Math.min(mMaxBytesPerSecond,
+                    mAvailableBytes + (now - mLastRefill) * mMaxBytesPerSecond / 1000.0);
+            mLastRefill      = now;
+            mAvailableBytes -= bytes;
+            waitMillis = mAvailableBytes >= 0 ? 0 :
+                    (long) Math.ceil(-mAvailableBytes * 1000.0 / mMaxBytesPerSecond);
+        }
+
+        if (waitMillis > 0) {
+            mStatistics.record(METRIC_THROTTLED, waitMillis);
+            Thread.sleep(waitMillis);
+        }
+    }
+
+    /**
+     * Waits for all the submitted streams to finish and releases the connection threads. The
+     * scheduler cannot be used anymore afterwards.
+     */
+    public void await() throws InterruptedException {
+        try {
+            for (Future<?> stream : mStreams) {
+                try {
+                    stream.get();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Upload stream failed: ", e);
+                }
+            }
+        } finally {
+            mExecutor.shutdownNow();
+        }
+    }
+}
@@ -5,7 +5,9 @@ import android.net.Uri;
 import android.util.Log;
 import android.util.Pair;
 
+import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.data.FreezableUtils;
+import com.google.android.gms.wearable.Channel;
 import com.google.android.gms.wearable.DataEvent;
 import com.google.android.gms.wearable.DataEventBuffer;
 import com.google.android.gms.wearable.DataMap;
@@ -15,18 +17,29 @@ import com.ucsf.core.data.DeviceLocation;
 import com.ucsf.core.data.Entry;
 import com.ucsf.core.data.JSON;
 import com.ucsf.core.data.Sender;
+import com.ucsf.core.services.ConnectivityTracker;
 import com.ucsf.core.services.Messages;
 import com.ucsf.core.services.Messages.Event;
 import com.ucsf.core.services.Messages.Request;
 import com.ucsf.core.services.ServiceId;
+import com.ucsf.core.services.TableChunk;
+import com.ucsf.core.services.TableStream;
+import com.ucsf.core.services.TrafficLanes;
 import com.ucsf.core.services.UserMonitoringService;
 import com.ucsf.data.Settings;
 import com.ucsf.ui.admin.SensorTagDBHelper;
 
 import org.json.JSONObject;
 
+import java.io.DataOutputStream;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Service responsible of the communication between the phone and the watch.
@@ -35,7 +48,12 @@ import java.util.List;
  * @version 1.0
  */
 public class DeviceInterface extends com.ucsf.core.services.DeviceInterface {
-    private static final String TAG = "ucsf:DeviceInterface";
+    private static final String TAG               = "ucsf:DeviceInterface";
+    private static final String KEY_STREAM_OFFSET = "STREAM_OFFSET:";
+    private static final String KEY_STREAM_EPOCH  = "STREAM_EPOCH:";
+    private static final String KEY_LEGACY_DONE   = "LEGACY_ROWS_ADOPTED";
+
+    private static final Set<String> mTablesWithoutLegacyRows = new HashSet<>();
 
     /**
      * Sends the patient information to the watch.
@@ -52,21 +70,39 @@ public class DeviceInterface extends com.ucsf.core.services.DeviceInterface {
     }
 
     /**
-     * Pings the watch.
+     * Pings the watch. The ping carries the patient information, so that the watch doesn't have
+     * to request it.
      */
     public static void pingWatch(Context context,
                                  com.ucsf.core.services.DeviceInterface.RequestListener listener)
     {
-        sendRequest(context, Request.PING, listener);
+        sendRequest(context, Request.PING, listener, getPatientInfo(context));
     }
 
     /**
-     * Requests watch services.
+     * Pushes the SensorTag configuration to the watch. Must be called each time the configuration
+     * changes, so that the watch doesn't have to poll it. The request is retried until the watch
+     * receives it, and supersedes the previous push if it is still running.
      */
-    public static void requestWatchServices(Context context,
-                                            com.ucsf.core.services.DeviceInterface.RequestListener listener)
+    public static void pushSensortagInfo(Context context) {
+        sendRequest(context, Request.SENSORTAG_CONFIG, new RequestListener() {
+            @Override
+            public void requestProcessed(Request request, JSONObject data) {
+                Log.d(TAG, "SensorTag configuration received by the watch.");
+            }
+        }, getSensortagInfo(context));
+    }
+
+    /**
+     * Requests watch services. The watch only answers what has changed since the given versions
+     * (see {@link com.ucsf.core.services.ServiceDescriptor#saveVersions(java.util.Collection)}).
+     * Returns the request id.
+     */
+    public static long requestWatchServices(
+            Context context, JSONObject versions,
+            com.ucsf.core.services.DeviceInterface.RequestListener listener)
     {
-        sendRequest(context, Request.SERVICES, listener);
+        return sendRequest(context, Request.SERVICES, listener, versions);
     }
 
     /**
@@ -158,9 +194,33 @@ public class DeviceInterface extends com.ucsf.core.services.DeviceInterface {
         );
     }
 
+    /**
+     * Creates a JSON object containing the SensorTag configuration to send to the watch, with its
+     * hash (key: {@link Messages#CONFIG_HASH}).
+     */
     private static JSONObject getSensortagInfo(Context context) {
         SensorTagDBHelper myDB = new SensorTagDBHelper(context);
-        return myDB.getJsonFromAllData();
+        JSONObject info = myDB.getJsonFromAllData();
+        myDB.close();
+        try {
+            info.put(Messages.CONFIG_HASH, Integer.toHexString(info.toString().hashCode()));
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to hash the SensorTag configuration: ", e);
+        }
+        return info;
+    }
+
+    /**
+     * Creates the answer to a SensorTag configuration request. Only the hash is sent if the watch
+     * already knows the current configuration.
+     */
+    private static JSONObject getSensortagInfo(Context context, JSONObject request) {
+        JSONObject info  = getSensortagInfo(context);
+        String     hash  = info.optString(Messages.CONFIG_HASH);
+        String     known = request == null ? null : request.optString(Messages.CONFIG_HASH);
+        if (!hash.isEmpty() && hash.equals(known))
+            return JSON.create(new Entry(Messages.CONFIG_HASH, hash));
+        return info;
     }
 
     @Override
@@ -199,7 +259,7 @@ public class DeviceInterface extends com.ucsf.core.services.DeviceInterface {
                 replyToRequest(this, request, getPatientInfo(this));
                 break;
             case SENSORTAG_INFO:
-                replyToRequest(this, request, getSensortagInfo(this));
+                replyToRequest(this, request, getSensortagInfo(this, data));
                 break;
             default:
                 Log.w(TAG, String.format("Unexpected request '%s'!", request.getTag()));
@@ -210,102 +270,330 @@ public class DeviceInterface extends com.ucsf.core.services.DeviceInterface {
     @Override
     public void onDataChanged(DataEventBuffer dataEvents) {
         // Get pending events
-
         final List<DataEvent> events = FreezableUtils.freezeIterable(dataEvents);
         dataEvents.release();
+        for (DataEvent event : events)
+            ConnectivityTracker.onTrafficReceived(event.getDataItem().getUri().getHost());
 
+        // Store them on the bulk lane, so that the messages received meanwhile are not delayed
+        final Context context = getApplicationContext();
+        TrafficLanes.BULK.execute(new Runnable() {
+            @Override
+            public void run() {
+                storeDataEvents(context, events);
+            }
+        });
+    }
 
+    /**
+     * Stores all the given events in a single transaction, and then removes them across devices.
+     */
+    private static void storeDataEvents(Context context, List<DataEvent> events) {
         // Make sure that the api is connected
-        try (Connection connection = openConnection(this)) {
-            // Loop through the events, store them, and remove across devices
-            try (DataManager instance = DataManager.get(this)) {
-                for (DataEvent event : events) {
-                    // Pull out relevant information
-                    DataMapItem dataMapItem = DataMapItem.fromDataItem(event.getDataItem());
-                    DataMap     dataMap     = dataMapItem.getDataMap();
-                    Uri         uri         = event.getDataItem().getUri();
-                    String      uriPath     = uri.getPath();
-
-                    Pair<String, Integer> p;
-                    try {
-                         p = parseMessagePath(uriPath);
-                    } catch (Exception e) {
-                        Log.e(TAG, "Invalid message path: ", e);
-                        continue;
+        try (Connection connection = openConnection(context)) {
+            List<Uri> processed = new ArrayList<>();
+            Map<DataManager.Table, DataManager.Table.Insertion> insertions = new HashMap<>();
+            try (DataManager instance = DataManager.get(context)) {
+                instance.beginTransaction();
+                try {
+                    for (DataEvent event : events) {
+                        Uri uri = event.getDataItem().getUri();
+                        try {
+                            if (storeDataItem(context, insertions, event))
+                                processed.add(uri);
+                        } catch (Exception e) {
+                            Log.e(TAG, String.format("Failed to process data item '%s'",
+                                    uri.getPath()), e);
+                        }
                     }
+                    instance.setTransactionSuccessful();
+                } finally {
+                    for (DataManager.Table.Insertion insertion : insertions.values())
+                        insertion.close();
+                    instance.endTransaction();
+                }
+            }
 
-                    // Get the appropriate table
-                    DataManager.Table table = DataManager.getTable(p.first);
-                    if (table == null) {
-                        Log.e(TAG, String.format("Invalid table name(%s).", p.first));
-                        continue;
-                    }
+            for (Uri uri : processed)
+                removeData(connection, uri);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to receive message data: ", e);
+        }
+    }
 
-                    try {
-                        // Read the entries and prepare them to be inserted into the table
-                        Entry[] timestamp_entry = new Entry[1];
-                        Entry[] entries         = new Entry[table.fields.length - 1];
-                        String  stringValue     = null;
-                        for (int i = 0, j = 0; i < table.fields.length; ++i) {
-                            final DataManager.TableField field = table.fields[i];
-
-                            if (field.tag.equals(DataManager.KEY_IS_COMMITTED)) {
-                                entries[j++] = new Entry(field.tag, 0);
-                                continue;
-                            }
-                            
-                            int     idx;
-                            Entry[] dst;
-                            if (field.tag.equals(DataManager.KEY_TIMESTAMP)) {
-                                idx = 0;
-                                dst = timestamp_entry;
-                            } else {
-                                idx = j++;
-                                dst = entries;
-                            }
-
-                            switch (field.type) {
-                                case Text:
-                                case UniqueText:
-                                    dst[idx] = new Entry(field.tag,
-                                            stringValue = dataMap.getString(field.tag));
-                                    break;
-                                case Integer:
-                                case Boolean:
-                                    dst[idx] = new Entry(field.tag, dataMap.getInt(field.tag));
-                                    break;
-                                case Real:
-                                    dst[idx] = new Entry(field.tag, dataMap.getDouble(field.tag));
-                                    break;
-                                case Long:
-                                    dst[idx] = new Entry(field.tag, dataMap.getLong(field.tag));
-                                    break;
-                                case Blob:
-                                    dst[idx] = new Entry(field.tag, dataMap.getByteArray(field.tag));
-                                    break;
-                            }
-                        }
+    /**
+     * Stores the rows carried by the given data item. The rows already received are ignored.
+     * @return Returns false if the data item has to be ignored.
+     */
+    private static boolean storeDataItem(Context context,
+            Map<DataManager.Table, DataManager.Table.Insertion> insertions, DataEvent event)
+            throws Exception
+    {
+        // Pull out relevant information
+        DataMap dataMap = DataMapItem.fromDataItem(event.getDataItem()).getDataMap();
+        Uri     uri     = event.getDataItem().getUri();
+        String  uriPath = uri.getPath();
+        String  node    = uri.getHost();
+
+        // Chunk of rows
+        if (TableChunk.isChunkPath(uriPath)) {
+            TableChunk chunk = TableChunk.fromDataMap(uriPath, dataMap);
+            storeChunk(context, getInsertion(insertions, chunk.table), chunk, node);
+            return true;
+        }
+
+        // Single row, sent by the previous versions of the watch application
+        Pair<String, Integer> p = parseMessagePath(uriPath);
+
+        // Get the appropriate table
+        DataManager.Table table = DataManager.getTable(p.first);
+        if (table == null)
+            throw new Exception(String.format("Invalid table name(%s).", p.first));
+
+        // Read the entries
+        Entry[] entries     = new Entry[table.fields.length];
+        String  stringValue = null;
+        for (int i = 0; i < table.fields.length; ++i) {
+            final DataManager.TableField field = table.fields[i];
+
+            if (field.tag.equals(DataManager.KEY_IS_COMMITTED)) {
+                entries[i] = new Entry(field.tag, 0);
+                continue;
+            } else if (field.tag.equals(DataManager.KEY_SOURCE)) {
+                entries[i] = new Entry(field.tag, TableChunk.getSource(node, 0, p.second));
+                continue;
+            }
 
-                        // Ignore the strange appearance of null entries
-                        if (stringValue == null || timestamp_entry[0] == null)
-                            continue;
+            switch (field.type) {
+                case Text:
+                case UniqueText:
+                    entries[i] = new Entry(field.tag,
+                            stringValue = dataMap.getString(field.tag));
+                    break;
+                case Integer:
+                case Boolean:
+                    entries[i] = new Entry(field.tag, dataMap.getInt(field.tag));
+                    break;
+                case Real:
+                    entries[i] = new Entry(field.tag, dataMap.getDouble(field.tag));
+                    break;
+                case Long:
+                    entries[i] = new Entry(field.tag, dataMap.getLong(field.tag));
+                    break;
+                case Blob:
+                    entries[i] = new Entry(field.tag, dataMap.getByteArray(field.tag));
+                    break;
+            }
+        }
 
-                        // Add entries to the table
-                        table.fetchAndAdd(timestamp_entry, entries);
+        // Ignore the strange appearance of null entries
+        if (stringValue == null)
+            return false;
 
-                        // Remove dataItem across all devices
-                        removeData(connection, uri);
-                    } catch (Exception e) {
-                        Log.e(TAG, String.format("Failed to process entry for table '%s'",
-                                table.tag), e);
+        getInsertion(insertions, table).insert(entries);
+        return true;
+    }
+
+    /**
+     * Returns the prepared insertion of the given table, preparing it if needed.
+     */
+    private static DataManager.Table.Insertion getInsertion(
+            Map<DataManager.Table, DataManager.Table.Insertion> insertions,
+            DataManager.Table table) throws Exception
+    {
+        DataManager.Table.Insertion insertion = insertions.get(table);
+        if (insertion == null) {
+            insertion = table.prepareInsertion();
+            insertions.put(table, insertion);
+        }
+        return insertion;
+    }
+
+    @Override
+    public void onChannelOpened(final Channel channel) {
+        ConnectivityTracker.onTrafficReceived(channel.getNodeId());
+        if (!channel.getPath().equals(TableStream.PATH)) {
+            super.onChannelOpened(channel);
+            return;
+        }
+
+        // Receive the stream on the bulk lane, it may last several minutes
+        final Context context = getApplicationContext();
+        TrafficLanes.BULK.execute(new Runnable() {
+            @Override
+            public void run() {
+                receiveStream(context, channel);
+            }
+        });
+    }
+
+    /**
+     * Receives the tables streamed by the watch through the given channel, see
+     * {@link TableStream}. Each frame is stored and acknowledged before reading the next one, the
+     * row id of its last row being persisted as the resume offset of the table. The offsets are
+     * kept per watch and per epoch of the watch database, the last epoch received from each
+     * watch being sent along with its offsets.
+     */
+    private static void receiveStream(Context context, Channel channel) {
+        try (Connection connection = openConnection(context)) {
+            GoogleApiClient client = connection.getClient();
+            try (DataManager instance = DataManager.get(context)) {
+                DataOutputStream control = new DataOutputStream(
+                        channel.getOutputStream(client).await().getOutputStream());
+                InputStream in = channel.getInputStream(client).await().getInputStream();
+
+                String            node    = channel.getNodeId();
+                long              epoch   = (Long) Settings.loadParameter(context,
+                        KEY_STREAM_EPOCH + node, 0L);
+                Map<String, Long> offsets = new HashMap<>();
+                offsets.put(TableStream.EPOCH, epoch);
+                for (DataManager.Table table : DataManager.getTables())
+                    if (table.location == DeviceLocation.PatientWatch)
+                        offsets.put(table.tag, (Long) Settings.loadParameter(context,
+                                getStreamOffsetKey(node, epoch, table), 0L));
+                TableStream.writeOffsets(control, offsets);
+
+                TableStream.Reader reader = new TableStream.Reader(in);
+                Map<DataManager.Table, DataManager.Table.Insertion> insertions = new HashMap<>();
+                try {
+                    TableChunk chunk;
+                    int count = 0;
+                    while ((chunk = reader.read()) != null) {
+                        instance.beginTransaction();
+                        try {
+                            storeChunk(context, getInsertion(insertions, chunk.table), chunk,
+                                    node);
+                            instance.setTransactionSuccessful();
+                        } finally {
+                            instance.endTransaction();
+                        }
+                        if (chunk.epoch != epoch) {
+                            epoch = chunk.epoch;
+                            Settings.saveParameter(context, KEY_STREAM_EPOCH + node, epoch);
+                        }
+                        Settings.saveParameter(context,
+                                getStreamOffsetKey(node, epoch, chunk.table), chunk.lastRowId);
+                        TableStream.writeAck(control, chunk);
+                        count += chunk.count;
                     }
+                    TableStream.writeAck(control, null);
+
+                    // The watch has pushed again all its rows, the rows stored before their
+                    // source was recorded which have not been matched never will
+                    Settings.saveParameter(context, KEY_LEGACY_DONE, true);
+                    Log.d(TAG, String.format("%d rows received from the watch stream.", count));
+                } finally {
+                    for (DataManager.Table.Insertion insertion : insertions.values())
+                        insertion.close();
                 }
+            } finally {
+                channel.close(client);
             }
         } catch (Exception e) {
-            Log.e(TAG, "Failed to receive message data: ", e);
+            Log.e(TAG, "Failed to receive the watch stream: ", e);
         }
     }
 
+    /**
+     * Returns the key of the resume offset of the given table of the given watch and epoch.
+     */
+    private static String getStreamOffsetKey(String node, long epoch, DataManager.Table table) {
+        return String.format("%s%s:%d:%s", KEY_STREAM_OFFSET, node, epoch, table.tag);
+    }
+
+    /**
+     * Stores the rows of the given chunk, sent by the given device. The rows stored before their
+     * source was recorded are matched by content, and get their source instead of being stored
+     * again, for instance when all the watch data is pushed again after an update.
+     */
+    private static void storeChunk(Context context, DataManager.Table.Insertion insertion,
+                                   TableChunk chunk, String node) throws Exception
+    {
+        Entry[][] rows = new Entry[chunk.count][];
+        for (int row = 0; row < chunk.count; ++row)
+            rows[row] = chunk.getEntries(row, node);
+
+        boolean hasLegacyRows = hasLegacyRows(context, chunk.table, rows);
+        for (Entry[] entries : rows)
+            if (!hasLegacyRows || !adoptLegacyRow(chunk.table, entries))
+                insertion.insert(entries);
+    }
+
+    /**
+     * Returns if the given table has rows without source in the time range of the given rows,
+     * through the source and timestamp index of the table. Once a table has no row without
+     * source, it never has again, so that the result is cached. Rows are no longer matched once
+     * a whole stream has been received, since the watch has then pushed again all its rows.
+     */
+    private static boolean hasLegacyRows(Context context, DataManager.Table table,
+                                         Entry[][] rows) throws Exception
+    {
+        if ((Boolean) Settings.loadParameter(context, KEY_LEGACY_DONE, false))
+            return false;
+        synchronized (mTablesWithoutLegacyRows) {
+            if (mTablesWithoutLegacyRows.contains(table.tag))
+                return false;
+        }
+
+        DataManager.Cursor cursor = table.fetch(1, new String[]{DataManager.KEY_ROW_ID},
+                new DataManager.Condition.IsNull(DataManager.KEY_SOURCE));
+        if (cursor == null || !cursor.moveToFirst()) {
+            synchronized (mTablesWithoutLegacyRows) {
+                mTablesWithoutLegacyRows.add(table.tag);
+            }
+            return false;
+        }
+
+        // Time range of the given rows
+        String first = null;
+        String last  = null;
+        for (Entry[] entries : rows) {
+            for (Entry entry : entries) {
+                if (!entry.tag.equals(DataManager.KEY_TIMESTAMP) || entry.value == null)
+                    continue;
+                String timestamp = entry.value.toString();
+                if (first == null || timestamp.compareTo(first) < 0)
+                    first = timestamp;
+                if (last == null || timestamp.compareTo(last) > 0)
+                    last = timestamp;
+            }
+        }
+        if (first == null)
+            return false;
+
+        cursor = table.fetch(1, new String[]{DataManager.KEY_ROW_ID},
+                new DataManager.Condition.IsNull(DataManager.KEY_SOURCE),
+                new DataManager.Condition.Range<>(DataManager.KEY_TIMESTAMP, first, last));
+        return cursor != null && cursor.moveToFirst();
+    }
+
+    /**
+     * Sets the source of the row without source matching the given entries, if any.
+     * @return Returns if such a row has been found.
+     */
+    private static boolean adoptLegacyRow(DataManager.Table table, Entry[] entries)
+            throws Exception
+    {
+        List<DataManager.Condition> conditions = new ArrayList<>();
+        conditions.add(new DataManager.Condition.IsNull(DataManager.KEY_SOURCE));
+        Entry source = null;
+        for (Entry entry : entries) {
+            if (entry.tag.equals(DataManager.KEY_SOURCE))
+                source = entry;
+            else if (!entry.tag.equals(DataManager.KEY_IS_COMMITTED) && entry.value != null &&
+                    !(entry.value instanceof byte[]))
+                conditions.add(new DataManager.Condition.Equal<>(entry.tag, entry.value));
+        }
+
+        DataManager.Cursor cursor = table.fetch(1, new String[]{DataManager.KEY_ROW_ID},
+                conditions.toArray(new DataManager.Condition[conditions.size()]));
+        if (source == null || cursor == null || !cursor.moveToFirst())
+            return false;
+
+        return table.update(new Entry[]{source}, new DataManager.Condition.Equal<>(
+                DataManager.KEY_ROW_ID, cursor.getLong(DataManager.KEY_ROW_ID)));
+    }
+
     private static abstract class RequestListener
             implements com.ucsf.core.services.DeviceInterface.RequestListener {
         @Override
@@ -136,6 +136,17 @@ public class GPSLocationService extends BackgroundService implements LocationLis
         locationManager.removeUpdates(this);
     }
 
+    @Override
+    protected boolean onParameterChanged(ServiceParameter<?> parameter) throws Exception {
+        if (parameter != getProvider().mInterval)
+            return super.onParameterChanged(parameter);
+
+        // Replace the location updates request
+        onStop();
+        onStart();
+        return true;
+    }
+
     /**
      * GPS location service provider class.
      */
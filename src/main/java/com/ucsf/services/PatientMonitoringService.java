@@ -6,6 +6,7 @@ import android.location.Location;
 import com.ucsf.core.data.DeviceLocation;
 import com.ucsf.core.data.Entry;
 import com.ucsf.core.data.Sender;
+import com.ucsf.core.services.ConnectivityTracker;
 import com.ucsf.core.services.Messages;
 import com.ucsf.core.services.ServiceId;
 import com.ucsf.core.services.UserMonitoringService;
@@ -22,8 +23,11 @@ import org.json.JSONObject;
  * @version 1.0
  */
 public class PatientMonitoringService extends UserMonitoringService {
-    private static final String   TAG       = "ucsf:PatientWatcher";
-    private static       Provider mInstance = null;
+    private static final String   TAG                    = "ucsf:PatientWatcher";
+    private static final String   STATE_LOCATION         = "location";
+    private static final String   STATE_WATCH_CONNECTION = "watch_connection";
+    private static final String   STATE_BATTERY          = "battery";
+    private static       Provider mInstance              = null;
 
     /**
      * Returns the service provider.
@@ -45,12 +49,25 @@ public class PatientMonitoringService extends UserMonitoringService {
     public static class Provider extends UserMonitoringService.Provider {
         private final PersistentParameter<Boolean> isWatchInRange;
         private final PersistentParameter<Boolean> isPatientAtHome;
+        private       boolean                      isPinging = false;
 
         public Provider(Context context) {
             super(context, PatientMonitoringService.class, ServiceId.PP_PatientWatcherService);
 
             isWatchInRange  = new PersistentParameter<>("IS_WATCH_IN_RANGE", true);
             isPatientAtHome = new PersistentParameter<>("IS_PATIENT_INSIDE", true);
+
+            // Report the watch connection as soon as it is retrieved. A lost connection is only
+            // reported once confirmed by a ping, since the watch often disconnects for a moment.
+            ConnectivityTracker.addListener(new ConnectivityTracker.Listener() {
+                @Override
+                public void onConnectivityChanged(boolean isConnected) {
+                    if (isConnected)
+                        setWatchInRange(true);
+                    else
+                        pingWatch();
+                }
+            });
         }
 
         @Override
@@ -61,36 +78,77 @@ public class PatientMonitoringService extends UserMonitoringService {
         }
 
         /**
-         * Checks if the patient watch is in range.
+         * Checks if the patient watch is in range. The connection state is pushed by the
+         * {@link ConnectivityTracker}, so the watch is only pinged if nothing has been received
+         * from it since the last check.
          */
         private void checkWatchConnection() {
+            if (ConnectivityTracker.isConnected() &&
+                    ConnectivityTracker.getSilence() < getInterval()) {
+                setWatchInRange(true);
+                return;
+            }
+            pingWatch();
+        }
+
+        /**
+         * Pings the watch and reports it as out of range if the ping times out. The ping is retried
+         * until then, so that a watch disconnecting for a moment is not reported. Only one ping is
+         * pending at a time.
+         */
+        private void pingWatch() {
+            synchronized (this) {
+                if (isPinging)
+                    return;
+                isPinging = true;
+            }
+
             DeviceInterface.pingWatch(context,
                     new com.ucsf.core.services.DeviceInterface.RequestListener() {
                         @Override
                         public void requestProcessed(Messages.Request request, JSONObject data)
                                 throws Exception
                         {
-                            isWatchInRange.set(true);
-                            ServerUploaderService.getProvider(context).sendEvent(
-                                    new Sender(com.ucsf.data.Settings.getCurrentUserId(context),
-                                            DeviceLocation.PatientPhone),
-                                    Messages.Event.WATCH_CONNECTION_RETRIEVED);
+                            onPingDone();
+                            setWatchInRange(true);
                         }
 
                         @Override
                         public void requestTimeout(Messages.Request request) throws Exception {
-                            isWatchInRange.set(false);
-                            ServerUploaderService.getProvider(context).sendEvent(
-                                    new Sender(com.ucsf.data.Settings.getCurrentUserId(context),
-                                            DeviceLocation.PatientPhone),
-                                    Messages.Event.WATCH_CONNECTION_LOST);
+                            // The ping is still pending while the listeners are notified, so that
+                            // the confirmed loss doesn't start another ping
+                            ConnectivityTracker.onPeersUnreachable();
+                            onPingDone();
+                            setWatchInRange(false);
                         }
 
                         @Override
-                        public void requestCancelled(Messages.Request request) throws Exception {}
+                        public void requestCancelled(Messages.Request request) throws Exception {
+                            onPingDone();
+                        }
                     });
         }
 
+        /**
+         * Method called when the pending ping is over.
+         */
+        private synchronized void onPingDone() {
+            isPinging = false;
+        }
+
+        /**
+         * Updates and reports the watch connection state. The server is only notified of changes.
+         */
+        private void setWatchInRange(boolean isInRange) {
+            isWatchInRange.set(isInRange);
+            ServerUploaderService.getProvider(context).sendStateEvent(
+                    new Sender(com.ucsf.data.Settings.getCurrentUserId(context),
+                            DeviceLocation.PatientPhone),
+                    STATE_WATCH_CONNECTION,
+                    isInRange ? Messages.Event.WATCH_CONNECTION_RETRIEVED :
+                            Messages.Event.WATCH_CONNECTION_LOST);
+        }
+
         /**
          * Checks if the patient is at home, i.e. if its GPS coordinates are not more that 100
          * meters away from his home location.
@@ -102,15 +160,17 @@ public class PatientMonitoringService extends UserMonitoringService {
             if (distance > 100) {
                 isPatientAtHome.set(false);
                 DeviceInterface.sendEvent(context, Messages.Event.PATIENT_OUTSIDE);
-                ServerUploaderService.getProvider(context).sendEvent(
+                ServerUploaderService.getProvider(context).sendStateEvent(
                         new Sender(profile.patientId, DeviceLocation.PatientPhone),
+                        STATE_LOCATION,
                         Messages.Event.PATIENT_OUTSIDE
                 );
             } else {
                 isPatientAtHome.set(true);
                 DeviceInterface.sendEvent(context, Messages.Event.PATIENT_INSIDE);
-                ServerUploaderService.getProvider(context).sendEvent(
+                ServerUploaderService.getProvider(context).sendStateEvent(
                         new Sender(profile.patientId, DeviceLocation.PatientPhone),
+                        STATE_LOCATION,
                         Messages.Event.PATIENT_INSIDE
                 );
             }
@@ -119,9 +179,10 @@ public class PatientMonitoringService extends UserMonitoringService {
 
         @Override
         protected void onLowBatteryEvent(int capacity) {
-            ServerUploaderService.getProvider(context).sendEvent(
+            ServerUploaderService.getProvider(context).sendStateEvent(
                     new Sender(com.ucsf.core.data.Settings.getCurrentUserId(context),
                             DeviceLocation.PatientPhone),
+                    STATE_BATTERY,
                     Messages.Event.LOW_BATTERY,
                     new Entry(KEY_CAPACITY, capacity)
             );
@@ -129,9 +190,10 @@ public class PatientMonitoringService extends UserMonitoringService {
 
         @Override
         protected void onBatteryOkayEvent() {
-            ServerUploaderService.getProvider(context).sendEvent(
+            ServerUploaderService.getProvider(context).sendStateEvent(
                     new Sender(com.ucsf.core.data.Settings.getCurrentUserId(context),
                             DeviceLocation.PatientPhone),
+                    STATE_BATTERY,
                     Messages.Event.BATTERY_OKAY
             );
         }
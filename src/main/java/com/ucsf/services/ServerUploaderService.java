@@ -9,16 +9,20 @@ import com.ucsf.R;
 import com.ucsf.core.data.DataManager;
 import com.ucsf.core.data.DataManager.Condition;
 import com.ucsf.core.data.DeviceLocation;
-import com.ucsf.core.data.Entry;
 import com.ucsf.core.data.RSSI;
 import com.ucsf.core.data.Sender;
 import com.ucsf.core.data.SharedTables;
 import com.ucsf.core.data.Timestamp;
+import com.ucsf.core.data.Watermarks;
 import com.ucsf.core.services.Annotations;
 import com.ucsf.core.services.ResponseListener;
 import com.ucsf.core.services.ServiceId;
+import com.ucsf.core_phone.services.BatchSizeController;
 import com.ucsf.core_phone.services.FileType;
 import com.ucsf.core_phone.services.GcmInstance;
+import com.ucsf.core_phone.services.ServerProtocol;
+import com.ucsf.core_phone.services.UploadPipeline;
+import com.ucsf.core_phone.services.UploadScheduler;
 import com.ucsf.data.PatientProfile;
 import com.ucsf.data.PatientProfile.Room;
 import com.ucsf.data.Settings;
@@ -26,8 +30,15 @@ import com.ucsf.data.Settings;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -41,7 +52,12 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class ServerUploaderService extends com.ucsf.core_phone.services.ServerUploaderService {
     private static final String   TAG            = "ucsf:ServerUploader";
     private static final String   KEY_PUSH_DATA  = "a";
-    private static final int      MAX_ENTRIES    = 1000;
+    private static final int      BATCH_INITIAL  = 1000;
+    private static final int      BATCH_MIN      = 50;
+    private static final int      BATCH_MAX      = 20000;
+    private static final int      BATCH_STEP     = 250;
+    private static final long     BATCH_BYTES    = 524288; // 512 KB
+    private static final long     BATCH_LATENCY  = 15000;  // 15 seconds
     private static       Provider mInstance      = null;
 
     /**
@@ -60,24 +76,51 @@ public class ServerUploaderService extends com.ucsf.core_phone.services.ServerUp
 
     /**
      * Class describing the entry to push to the server. Basically parse database entries to a
-     * string representation.
+     * string representation. An entry covers the consecutive rows of a single patient in a
+     * cursor which may hold the rows of several patients.
      */
-    private static class TableEntry {
+    static class TableEntry {
         /** Database {@link DataManager.Cursor cursor} */
         public  final DataManager.Cursor cursor;
 
         /** Patient unique identifier. */
         public  final String             patientId;
 
+        /** Position in the cursor of the first entry. */
+        public  final int                firstPosition;
+
+        /** Number of entries. */
+        public  final int                count;
+
+        /** Row id of the last entry. */
+        public  final long               lastRowId;
+
         /** Unique identifier of the data type. */
         public        String             tag;
 
+        /** Encoded content, to be sent to the server. */
+        public        byte[]             data;
+
         private final StringBuffer       mBuffer;
 
-        public TableEntry(DataManager.Cursor cursor, String patientId) {
+        public TableEntry(DataManager.Cursor cursor, String patientId, int firstPosition,
+                          int count, long lastRowId) {
             this.cursor = cursor;
             this.mBuffer = new StringBuffer();
             this.patientId = patientId;
+            this.firstPosition = firstPosition;
+            this.count = count;
+            this.lastRowId = lastRowId;
+        }
+
+        /** Moves the cursor to the first entry. */
+        public boolean moveToFirst() {
+            return cursor.moveToPosition(firstPosition);
+        }
+
+        /** Moves the cursor to the next entry, if any. */
+        public boolean moveToNext() {
+            return cursor.getPosition() + 1 < firstPosition + count && cursor.moveToNext();
         }
 
         /** Add an entry to the underlying buffer. */
@@ -92,12 +135,28 @@ public class ServerUploaderService extends com.ucsf.core_phone.services.ServerUp
         }
     }
 
+    /**
+     * Parser of the entries of a table into the content of a server file, see
+     * {@link Provider#commit(ServerProtocol, Collection, Set, TableParser, ResponseListener)}.
+     */
+    interface TableParser {
+        /**
+         * Parses the given entry of the given table, setting its tag and adding its lines.
+         */
+        void parse(DataManager.Table table, TableEntry entry) throws Exception;
+    }
+
     /**
      * Server uploader service provider class.
      */
     public static class Provider extends
             com.ucsf.core_phone.services.ServerUploaderService.Provider
     {
+        private final BatchSizeController mBatchSizes = new BatchSizeController(BATCH_INITIAL,
+                BATCH_MIN, BATCH_MAX, BATCH_STEP, BATCH_BYTES, BATCH_LATENCY,
+                mProtocol.getStatistics());
+        private final Map<String, Object> mTableLocks = new HashMap<>();
+
         private Provider(Context context) {
             super(context, com.ucsf.services.ServerUploaderService.class, ServiceId.PP_ServerUploaderService);
             addCallback("PUSH_DATA", R.string.action_push_data, KEY_PUSH_DATA);
@@ -170,7 +229,8 @@ public class ServerUploaderService extends com.ucsf.core_phone.services.ServerUp
 
                     Sender sender = new Sender(profile.patientId, DeviceLocation.PatientPhone);
                     String filename = makeServerFilename(sender, PatientProfile.KEY_PROFILE);
-                    sendData(FileType.Config, filename, configObject, listener);
+                    sendData(FileType.Config, filename, configObject,
+                            "profile:" + profile.patientId, listener);
                 }
             });
         }
@@ -211,61 +271,85 @@ public class ServerUploaderService extends com.ucsf.core_phone.services.ServerUp
         }
 
         /**
-         * Sends the uncommitted database entries to the server.
+         * Sends the uncommitted database entries to the server. Each table is pushed as an
+         * independent stream, streams being uploaded in parallel by an {@link UploadScheduler}.
+         * Only the entries present when the commit starts are sent.
          */
         public void commit(final ResponseListener listener) {
-            mProtocol.execute(context, new Runnable() {
+            commit(mProtocol, null, null, listener);
+        }
+
+        /**
+         * Sends the uncommitted entries of the given tables and patients to the server through the
+         * given protocol.
+         * @param tables   Tables to send, or null to send all the monitored tables.
+         * @param patients Patients whose entries are sent, or null to send all the patients.
+         */
+        public void commit(ServerProtocol protocol, Collection<DataManager.Table> tables,
+                           Set<String> patients, ResponseListener listener)
+        {
+            commit(protocol, tables, patients, null, listener);
+        }
+
+        /**
+         * Sends the uncommitted entries of the given tables and patients to the server through the
+         * given protocol and parser, for instance to benchmark the uploads with synthetic tables
+         * (see {@link UploadBenchmark}). A table already being committed is sent once the other
+         * commit is done with it.
+         * @param parser Parser of the table entries, or null to parse the known tables.
+         */
+        void commit(final ServerProtocol protocol, final Collection<DataManager.Table> tables,
+                    final Set<String> patients, final TableParser parser,
+                    final ResponseListener listener)
+        {
+            protocol.execute(context, new Runnable() {
                 @Override
                 public void run() {
 
                     Log.d(TAG,"Sending uncommitted database entries to the server.");
 
-                    final EntryResponseHandler entryHandler = new EntryResponseHandler(listener);
+                    final EntryResponseHandler entryHandler = new EntryResponseHandler(context, listener);
+                    final UploadScheduler      scheduler    = createUploadScheduler();
 
-                    Condition[] conditions = new Condition[3];
-                    conditions[0] =
-                            new Condition.Equal<>(DataManager.KEY_IS_COMMITTED, 0);
-                    Condition timestampCond =
-                            new Condition.LessEqual<>(DataManager.KEY_TIMESTAMP,
-                                    Timestamp.getTimestamp());
-                    Condition startCond =
-                            new Condition.LessEqual<>(SharedTables.GroundTrust.KEY_START,
-                                    Timestamp.getTimestamp());
+                    final String now = Timestamp.getTimestamp();
 
                     try (DataManager instance = DataManager.get(context)) {
                         // Iterate through each tables and patients
                         StartupService.loadTables(context);
-                        for (DataManager.Table table : getMonitoredTables()) {
+                        final Set<String> patientIds = patients != null ? patients :
+                                new HashSet<>(Settings.getPatientIDs(context));
+                        for (final DataManager.Table table :
+                                tables != null ? tables : getMonitoredTables()) {
 
                             Log.d(TAG,"Committing table:\t" + table.tag + "\t" + table.toString());
 
-                            FileType fileType = getFileType(table);
-                            conditions[1] = table == SharedTables.GroundTrust.getTable(instance) ?
-                                    startCond : timestampCond;
-
-                            for (String profile : Settings.getPatientIDs(context)) {
-                                Log.d(TAG,"Patient profile:\t" + profile);
-                                conditions[2] = new Condition.Equal<>(DataManager.KEY_PATIENT_ID, profile);
-                                DataManager.Cursor cursor;
-                                while ((cursor = table.fetch(MAX_ENTRIES, conditions)) != null
-                                        && cursor.moveToFirst()) {
-                                    // Parse the table entry
-                                    TableEntry entry = parseTableEntry(instance, table, cursor, profile);
-                                    //Log.d(TAG,"TableEntry:\t" + entry.getContent());
-
-                                    // Push the entry to the server, if the file being uploaded is ground truth,
-                                    // upload to the config directory on the server
-                                    mProtocol.writeData(
-                                            fileType.toString(),
-                                            makeServerFilename(new Sender(profile, table.location), entry.tag),
-                                            entry.getContent().getBytes(),
-                                            entryHandler.create(table, conditions)
-                                    );
+                            final FileType    fileType   = getFileType(table);
+                            final String      timeKey    =
+                                    table == SharedTables.GroundTrust.getTable(instance) ?
+                                            SharedTables.GroundTrust.KEY_START :
+                                            DataManager.KEY_TIMESTAMP;
+                            final Condition[] conditions = new Condition[] {
+                                    new Condition.Equal<>(DataManager.KEY_IS_COMMITTED, 0),
+                                    new Condition.LessEqual<>(timeKey, now),
+                                    new Condition.LessEqual<>(DataManager.KEY_ROW_ID,
+                                            getLastRowId(table, timeKey, now))
+                            };
+
+                            scheduler.submit(table.tag, new Runnable() {
+                                @Override
+                                public void run() {
+                                    // Commits running at the same time would read the same
+                                    // upload marks and send the same entries twice
+                                    synchronized (getTableLock(table)) {
+                                        commitStream(protocol, scheduler, entryHandler, table,
+                                                fileType, patientIds, conditions, parser);
+                                    }
                                 }
-                            }
+                            });
                         }
+                        scheduler.await();
                     } catch (Exception e) {
-                        listener.onFailure("Failed to commit table content", e);
+                        entryHandler.setError("Failed to commit table content", e);
                     } finally {
                         entryHandler.close();
                     }
@@ -273,6 +357,151 @@ public class ServerUploaderService extends com.ucsf.core_phone.services.ServerUp
             }, listener);
         }
 
+        /**
+         * Returns the lock held while the entries of the given table are being committed.
+         */
+        private Object getTableLock(DataManager.Table table) {
+            synchronized (mTableLocks) {
+                Object lock = mTableLocks.get(table.tag);
+                if (lock == null) {
+                    lock = new Object();
+                    mTableLocks.put(table.tag, lock);
+                }
+                return lock;
+            }
+        }
+
+        /**
+         * Pushes the entries of the given table and patients matching the given conditions, batch
+         * after batch, starting right after the {@link Watermarks upload marks} of the patients.
+         * Each batch is read through the patient and row id index of the table, so that only the
+         * entries to send are visited, and holds one file per patient. Batches go through an
+         * {@link UploadPipeline}, so that the next batch is read and encoded while the previous one
+         * is being sent. The entries of a patient are no longer read once one of its files cannot
+         * be sent, so that its next files are never received by the server before it.
+         */
+        private void commitStream(final ServerProtocol protocol,
+                                  final UploadScheduler scheduler,
+                                  final EntryResponseHandler entryHandler,
+                                  final DataManager.Table table, final FileType fileType,
+                                  final Set<String> patients, final Condition[] conditions,
+                                  final TableParser parser)
+        {
+            try (final DataManager instance = DataManager.get(context)) {
+                // Row id of the last entry read for each patient, starting from the upload marks
+                final Map<String, Long> lastRowIds = new HashMap<>();
+                final Set<String>       failed     =
+                        Collections.synchronizedSet(new HashSet<String>());
+                Map<String, Long>       watermarks = Watermarks.get(context, table);
+                for (String patientId : patients) {
+                    Long watermark = watermarks.get(patientId);
+                    lastRowIds.put(patientId, watermark == null ? 0 : watermark);
+                }
+
+                final String batchKey = String.format("%s:%s", fileType, table.tag);
+                new UploadPipeline<List<TableEntry>, List<TableEntry>>(protocol.getStatistics()) {
+                    @Override
+                    protected List<TableEntry> read() throws Exception {
+                        // Read the entries of each patient following its last read entry through
+                        // the patient index of the table, until the batch is full
+                        List<TableEntry> entries   = new ArrayList<>();
+                        int              remaining = mBatchSizes.getBatchSize(batchKey);
+                        for (Map.Entry<String, Long> lastRowId : lastRowIds.entrySet()) {
+                            String patientId = lastRowId.getKey();
+                            if (remaining <= 0)
+                                break;
+                            if (failed.contains(patientId))
+                                continue;
+
+                            DataManager.Cursor cursor = table.fetchOrdered(remaining,
+                                    DataManager.KEY_ROW_ID,
+                                    new Condition.Equal<>(DataManager.KEY_PATIENT_ID, patientId),
+                                    new Condition.Greater<>(DataManager.KEY_ROW_ID,
+                                            lastRowId.getValue()),
+                                    new Condition.And(conditions));
+                            if (cursor == null || !cursor.moveToLast())
+                                continue;
+
+                            long rowId = cursor.getLong(DataManager.KEY_ROW_ID);
+                            entries.add(new TableEntry(cursor, patientId, 0, cursor.getCount(),
+                                    rowId));
+                            lastRowId.setValue(rowId);
+                            remaining -= cursor.getCount();
+                        }
+                        return entries.isEmpty() ? null : entries;
+                    }
+
+                    @Override
+                    protected List<TableEntry> encode(List<TableEntry> entries) throws Exception {
+                        for (TableEntry entry : entries) {
+                            entry.moveToFirst();
+                            if (parser != null)
+                                parser.parse(table, entry);
+                            else
+                                parseTableEntry(instance, table, entry);
+                            entry.data = entry.getContent().getBytes();
+                        }
+                        return entries;
+                    }
+
+                    @Override
+                    protected boolean send(List<TableEntry> entries) throws Exception {
+                        for (TableEntry entry : entries) {
+                            if (failed.contains(entry.patientId))
+                                continue;
+
+                            // Push the entry to the server, if the file being uploaded is ground
+                            // truth, upload to the config directory on the server
+                            scheduler.acquire(entry.data.length);
+                            EntryResponseHandler.BatchListener batch =
+                                    entryHandler.create(table, entry.patientId, entry.lastRowId);
+                            long start = System.currentTimeMillis();
+                            protocol.writeData(
+                                    fileType.toString(),
+                                    makeServerFilename(new Sender(entry.patientId, table.location),
+                                            entry.tag),
+                                    entry.data,
+                                    batch
+                            );
+
+                            // Adapt the size of the next batches to the measured request
+                            if (batch.isSuccessful()) {
+                                mBatchSizes.onSuccess(batchKey, entry.count, entry.data.length,
+                                        System.currentTimeMillis() - start);
+                            } else {
+                                mBatchSizes.onFailure(batchKey);
+                                failed.add(entry.patientId);
+                            }
+                        }
+                        return true;
+                    }
+                }.run();
+            } catch (Exception e) {
+                entryHandler.setError(String.format("Failed to commit table '%s'", table.tag), e);
+            }
+        }
+
+        /**
+         * Returns the row id up to which the entries of the given table are sent: the last row id
+         * of the table, or the one right before the first entry which doesn't take effect yet at
+         * the given time. Such an entry is sent once it takes effect, and the entries after it
+         * wait for it, so that all the entries under an {@link Watermarks upload mark} are sent.
+         * @param timeKey Field holding the time at which the entries take effect.
+         */
+        private long getLastRowId(DataManager.Table table, String timeKey, String now)
+                throws Exception
+        {
+            try (DataManager instance = DataManager.get(context)) {
+                DataManager.Cursor cursor = table.fetchOrdered(1,
+                        new String[]{DataManager.KEY_ROW_ID}, DataManager.KEY_ROW_ID,
+                        new Condition.Equal<>(DataManager.KEY_IS_COMMITTED, 0),
+                        new Condition.Greater<>(timeKey, now));
+                if (cursor != null && cursor.moveToFirst())
+                    return cursor.getLong(DataManager.KEY_ROW_ID) - 1;
+                return table.getLastRowId();
+            }
+        }
+
         /**
          * Returns the server folder to use for the given table entries.
          */
@@ -340,7 +569,7 @@ public class ServerUploaderService extends com.ucsf.core_phone.services.ServerUp
                             .append(rssi.get(room));
 
                 entry.addLine(line.toString());
-            } while (entry.cursor.moveToNext());
+            } while (entry.moveToNext());
         }
 
         /**
@@ -364,13 +593,13 @@ public class ServerUploaderService extends com.ucsf.core_phone.services.ServerUp
                         parseTimestamp(entry.cursor, SharedTables.GroundTrust.KEY_START),
                         parseTimestamp(entry.cursor, SharedTables.GroundTrust.KEY_END)
                 ));
-            } while (entry.cursor.moveToNext());
+            } while (entry.moveToNext());
         }
 
         /**
          * Parses the given sensors data to a valid server format.
          */
-        private void parseSensorsData(TableEntry entry) {
+        void parseSensorsData(TableEntry entry) {
             entry.tag = "ACC";
 
             // Create the header
@@ -400,7 +629,7 @@ public class ServerUploaderService extends com.ucsf.core_phone.services.ServerUp
                         entry.cursor.getInt(SharedTables.Sensors.KEY_IS_HEART_RATE_VALID),
                         entry.cursor.getInt(SharedTables.Sensors.KEY_STEP_COUNT)
                 ));
-            } while (entry.cursor.moveToNext());
+            } while (entry.moveToNext());
         }
 
         /**
@@ -422,7 +651,7 @@ public class ServerUploaderService extends com.ucsf.core_phone.services.ServerUp
                         entry.cursor.getDouble(GPSLocationService.KEY_LATITUDE),
                         entry.cursor.getDouble(GPSLocationService.KEY_LONGITUDE)
                 ));
-            } while (entry.cursor.moveToNext());
+            } while (entry.moveToNext());
         }
 
         /**
@@ -434,7 +663,7 @@ public class ServerUploaderService extends com.ucsf.core_phone.services.ServerUp
                 entry.addLine(String.format("%s",
                         entry.cursor.getString(SharedTables.Logs.KEY_LOG)
                 ));
-            } while (entry.cursor.moveToNext());
+            } while (entry.moveToNext());
         }
 
 
@@ -466,7 +695,7 @@ public class ServerUploaderService extends com.ucsf.core_phone.services.ServerUp
                         entry.cursor.getDouble(SharedTables.SensorTag.KEY_READING_Z)
                 ));
 
-            } while (entry.cursor.moveToNext());
+            } while (entry.moveToNext());
 
         }
 
@@ -474,12 +703,9 @@ public class ServerUploaderService extends com.ucsf.core_phone.services.ServerUp
         /**
          * Parses the given table entry.
          */
-        private TableEntry parseTableEntry(DataManager instance, DataManager.Table table,
-                                           DataManager.Cursor cursor, String patientId)
-                throws Exception
+        private void parseTableEntry(DataManager instance, DataManager.Table table,
+                                     TableEntry entry) throws Exception
         {
-            TableEntry entry = new TableEntry(cursor, patientId);
-
             if (table == SharedTables.Estimote.getTable(instance))
                 parseEstimoteData(entry);
             else if (table == SharedTables.Sensors.getTable(instance) ||
@@ -496,47 +722,69 @@ public class ServerUploaderService extends com.ucsf.core_phone.services.ServerUp
                 parseLogs(entry);
             else
                 Log.e(TAG, String.format("Table '%s' not handled!", table.tag));
-
-            return entry;
         }
 
         private static class EntryResponseHandler {
-            private final AtomicInteger mPendingEntries = new AtomicInteger(1);
-            private final ResponseListener mListener;
-            private String mLastError = null;
-            private Throwable mLastThrowable;
-
-            public EntryResponseHandler(ResponseListener listener) {
+            private final    AtomicInteger    mPendingEntries = new AtomicInteger(1);
+            private final    Context          mContext;
+            private final    ResponseListener mListener;
+            private volatile String           mLastError      = null;
+            private volatile Throwable        mLastThrowable;
+
+            public EntryResponseHandler(Context context, ResponseListener listener) {
+                mContext  = context;
                 mListener = listener;
             }
 
-            public ResponseListener create(final DataManager.Table table,
-                                           DataManager.Condition... conditions) {
-                mPendingEntries.incrementAndGet();
-                final Condition entryConditions[] = new Condition[]
-                        {conditions[0], conditions[1], conditions[2]};
+            /**
+             * Listener of a single batch, moving the upload mark of the batch table and patient
+             * to the last entry of the batch once it has been received by the server.
+             */
+            public class BatchListener implements ResponseListener {
+                private final DataManager.Table mTable;
+                private final String            mPatientId;
+                private final long              mLastRowId;
+                private       boolean           mIsSuccessful = false;
+
+                private BatchListener(DataManager.Table table, String patientId, long lastRowId) {
+                    mTable     = table;
+                    mPatientId = patientId;
+                    mLastRowId = lastRowId;
+                }
 
-                return new ResponseListener() {
-                    @Override
-                    public void onSuccess() {
-                        try {
-                            table.update(new Entry[]{
-                                    new Entry(DataManager.KEY_IS_COMMITTED, 1)
-                            }, entryConditions);
-                        } catch (Exception e) {
-                            Log.e(TAG, "Failed to update database: ", e);
-                        } finally {
-                            close();
-                        }
-                    }
+                /** Indicates if the batch has been successfully received by the server. */
+                public boolean isSuccessful() {
+                    return mIsSuccessful;
+                }
 
-                    @Override
-                    public void onFailure(String error, Throwable e) {
-                        mLastError = error;
-                        mLastThrowable = e;
+                @Override
+                public void onSuccess() {
+                    try {
+                        mIsSuccessful = Watermarks.set(mContext, mTable, mPatientId, mLastRowId);
+                    } catch (Exception e) {
+                        Log.e(TAG, "Failed to update database: ", e);
+                    } finally {
                         close();
                     }
-                };
+                }
+
+                @Override
+                public void onFailure(String error, Throwable e) {
+                    setError(error, e);
+                    close();
+                }
+            }
+
+            public BatchListener create(DataManager.Table table, String patientId,
+                                        long lastRowId) {
+                mPendingEntries.incrementAndGet();
+                return new BatchListener(table, patientId, lastRowId);
+            }
+
+            /** Records an error to report once all the batches are done. */
+            public void setError(String error, Throwable e) {
+                mLastError     = error;
+                mLastThrowable = e;
             }
 
             public void close() {
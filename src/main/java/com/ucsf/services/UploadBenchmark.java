@@ -0,0 +1,234 @@
+package com.ucsf.services;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.ucsf.core.data.DataManager;
+import com.ucsf.core.data.DeviceLocation;
+import com.ucsf.core.data.Entry;
+import com.ucsf.core.data.SharedTables;
+import com.ucsf.core.data.Timestamp;
+import com.ucsf.core.data.Watermarks;
+import com.ucsf.core.services.ResponseListener;
+import com.ucsf.core_phone.services.MockIngestionServer;
+import com.ucsf.core_phone.services.ServerLocalProtocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the throughput of {@link ServerUploaderService.Provider#commit(ResponseListener)}
+ * against a {@link MockIngestionServer}. Synthetic tables are filled with sensors like entries of
+ * a dedicated patient, committed through a {@link ServerLocalProtocol} and a parser formatting
+ * them as sensors data until all of them have been received (or until
+ * {@link UploadBenchmark#MAX_ROUNDS} commits), and then dropped. The real tables and patients are
+ * left untouched. Must not be run from the main thread.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public class UploadBenchmark {
+    private static final String TAG             = "ucsf:UploadBenchmark";
+    private static final String TABLE_PREFIX    = "benchmark_";
+    private static final String PATIENT_ID      = "benchmark";
+    private static final int    MAX_ROUNDS      = 10;
+
+    private final Context                  mContext;
+    private final MockIngestionServer.Mode mMode;
+    private final int                      mTableCount;
+    private final int                      mRowCount;
+    private final long                     mLatency;
+    private final long                     mBandwidth;
+    private final double                   mFailureRate;
+
+    /**
+     * Creates a benchmark.
+     * @param tableCount  Number of synthetic tables.
+     * @param rowCount    Number of entries per table.
+     * @param latency     Latency, in milliseconds, injected by the server on each file.
+     * @param bandwidth   Bandwidth, in bytes per second, of each connection, or 0 for no limit.
+     * @param failureRate Probability, between 0 and 1, that the server rejects a file.
+     */
+    public UploadBenchmark(Context context, MockIngestionServer.Mode mode, int tableCount,
+                           int rowCount, long latency, long bandwidth, double failureRate)
+    {
+        mContext     = context.getApplicationContext();
+        mMode        = mode;
+        mTableCount  = tableCount;
+        mRowCount    = rowCount;
+        mLatency     = latency;
+        mBandwidth   = bandwidth;
+        mFailureRate = failureRate;
+    }
+
+    /**
+     * Results of a benchmark run.
+     */
+    public static class Report {
+        public long rows;      /**< Number of entries received by the server. */
+        public long bytes;     /**< Number of bytes received by the server. */
+        public long files;     /**< Number of files received by the server. */
+        public long failures;  /**< Number of files rejected by the server. */
+        public int  rounds;    /**< Number of commits needed to send all the entries. */
+        public long duration;  /**< Total duration of the commits, in milliseconds. */
+        public long p50;       /**< Median request latency, in milliseconds. */
+        public long p99;       /**< 99th percentile request latency, in milliseconds. */
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(duration, 1) / 1000.0;
+            return String.format("%d rows in %d ms (%d commits): %.0f rows/s, %.0f bytes/s, " +
+                    "%d files, %d failures, latency p50=%d ms p99=%d ms",
+                    rows, duration, rounds, rows / seconds, bytes / seconds, files, failures,
+                    p50, p99);
+        }
+    }
+
+    /**
+     * Runs the benchmark.
+     */
+    public Report run() throws Exception {
+        List<DataManager.Table> tables = createTables();
+        Report report = new Report();
+        try (MockIngestionServer server =
+                     new MockIngestionServer(mMode, mLatency, mBandwidth, mFailureRate)) {
+            ServerLocalProtocol protocol = new ServerLocalProtocol(mMode, server.start());
+            ServerUploaderService.Provider provider =
+                    ServerUploaderService.getProvider(mContext);
+
+            // Commit until all the entries have been received, each file having a header line
+            long expected = (long) mTableCount * mRowCount;
+            long start    = System.currentTimeMillis();
+            while (report.rounds < MAX_ROUNDS && report.rows < expected) {
+                ++report.rounds;
+                commit(provider, protocol, tables);
+                report.rows = server.getLineCount() -
+                        server.getStatistics().get(MockIngestionServer.METRIC_FILES).getCount();
+            }
+            report.duration = System.currentTimeMillis() - start;
+
+            report.files    = server.getStatistics().get(MockIngestionServer.METRIC_FILES).getCount();
+            report.bytes    = server.getStatistics().get(MockIngestionServer.METRIC_BYTES).getTotal();
+            report.failures =
+                    server.getStatistics().get(MockIngestionServer.METRIC_FAILURES).getCount();
+
+            List<Long> latencies = protocol.getLatencies();
+            Collections.sort(latencies);
+            report.p50 = getPercentile(latencies, 0.50);
+            report.p99 = getPercentile(latencies, 0.99);
+        } finally {
+            deleteTables(tables);
+        }
+
+        Log.d(TAG, report.toString());
+        return report;
+    }
+
+    /**
+     * Runs a single commit of the synthetic tables and waits for its end.
+     */
+    private void commit(final ServerUploaderService.Provider provider,
+                        ServerLocalProtocol protocol, List<DataManager.Table> tables)
+            throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        provider.commit(protocol, tables, Collections.singleton(PATIENT_ID),
+                new ServerUploaderService.TableParser() {
+                    @Override
+                    public void parse(DataManager.Table table,
+                                      ServerUploaderService.TableEntry entry)
+                    {
+                        provider.parseSensorsData(entry);
+                    }
+                },
+                new ResponseListener() {
+                    @Override
+                    public void onSuccess() {
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(String error, Throwable e) {
+                        Log.w(TAG, "Benchmark commit failed: " + error, e);
+                        latch.countDown();
+                    }
+                });
+        latch.await();
+    }
+
+    /**
+     * Creates the synthetic tables, with the same fields as the watch sensors table, and fills
+     * them with random entries.
+     */
+    private List<DataManager.Table> createTables() throws Exception {
+        List<DataManager.Table> tables = new ArrayList<>();
+        Random random = new Random();
+        try (DataManager instance = DataManager.get(mContext)) {
+            for (int i = 0; i < mTableCount; ++i) {
+                DataManager.Table table = instance.createTable(
+                        TABLE_PREFIX + i,
+                        DeviceLocation.PatientWatch,
+                        new DataManager.TableField(DataManager.KEY_TIMESTAMP, DataManager.Type.Text),
+                        new DataManager.TableField(DataManager.KEY_PATIENT_ID, DataManager.Type.Text),
+                        new DataManager.TableField(DataManager.KEY_IS_COMMITTED, DataManager.Type.Boolean, 0),
+                        new DataManager.TableField(SharedTables.Sensors.KEY_ACC_X, DataManager.Type.Real),
+                        new DataManager.TableField(SharedTables.Sensors.KEY_ACC_Y, DataManager.Type.Real),
+                        new DataManager.TableField(SharedTables.Sensors.KEY_ACC_Z, DataManager.Type.Real),
+                        new DataManager.TableField(SharedTables.Sensors.KEY_AZIMUTH, DataManager.Type.Real),
+                        new DataManager.TableField(SharedTables.Sensors.KEY_PITCH, DataManager.Type.Real),
+                        new DataManager.TableField(SharedTables.Sensors.KEY_ROLL, DataManager.Type.Real),
+                        new DataManager.TableField(SharedTables.Sensors.KEY_HEART_RATE, DataManager.Type.Real),
+                        new DataManager.TableField(SharedTables.Sensors.KEY_IS_HEART_RATE_VALID, DataManager.Type.Boolean, 0),
+                        new DataManager.TableField(SharedTables.Sensors.KEY_STEP_COUNT, DataManager.Type.Integer)
+                );
+                tables.add(table);
+
+                // Remove the entries of an interrupted run
+                table.erase();
+                Watermarks.clear(mContext, table);
+
+                for (int j = 0; j < mRowCount; ++j)
+                    table.add(
+                            new Entry(DataManager.KEY_TIMESTAMP, Timestamp.getTimestamp()),
+                            new Entry(DataManager.KEY_PATIENT_ID, PATIENT_ID),
+                            new Entry(SharedTables.Sensors.KEY_ACC_X, random.nextDouble()),
+                            new Entry(SharedTables.Sensors.KEY_ACC_Y, random.nextDouble()),
+                            new Entry(SharedTables.Sensors.KEY_ACC_Z, random.nextDouble()),
+                            new Entry(SharedTables.Sensors.KEY_AZIMUTH, random.nextDouble()),
+                            new Entry(SharedTables.Sensors.KEY_PITCH, random.nextDouble()),
+                            new Entry(SharedTables.Sensors.KEY_ROLL, random.nextDouble()),
+                            new Entry(SharedTables.Sensors.KEY_HEART_RATE, random.nextDouble()),
+                            new Entry(SharedTables.Sensors.KEY_STEP_COUNT, j)
+                    );
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Removes the upload marks of the synthetic tables, and drops them.
+     */
+    private void deleteTables(List<DataManager.Table> tables) {
+        try (DataManager instance = DataManager.get(mContext)) {
+            for (DataManager.Table table : tables) {
+                Watermarks.clear(mContext, table);
+                instance.dropTable(table);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to remove the benchmark tables: ", e);
+        }
+    }
+
+    /**
+     * Returns the given percentile of the given sorted values, or 0 if there is no value.
+     */
+    private static long getPercentile(List<Long> values, double percentile) {
+        if (values.isEmpty())
+            return 0;
+        int index = (int) Math.ceil(percentile * values.size()) - 1;
+        return values.get(Math.max(0, Math.min(values.size() - 1, index)));
+    }
+}
@@ -14,6 +14,7 @@ import android.widget.RadioGroup;
 import android.widget.Toast;
 
 import com.ucsf.R;
+import com.ucsf.services.DeviceInterface;
 
 /**
  * Created by yanrongli on 3/12/16.
@@ -54,6 +55,7 @@ public class RegisterSensorTagActivity extends Activity {
         if (isInserted == true)
         {
             Toast.makeText(RegisterSensorTagActivity.this, "Entry insertion succeeded!", Toast.LENGTH_SHORT).show();
+            DeviceInterface.pushSensortagInfo(this);
         }
         else
         {
@@ -101,6 +103,7 @@ public class RegisterSensorTagActivity extends Activity {
         if (isUpdated == true)
         {
             Toast.makeText(RegisterSensorTagActivity.this, "Entry update succeeded!", Toast.LENGTH_SHORT).show();
+            DeviceInterface.pushSensortagInfo(this);
         }
         else
         {
@@ -119,6 +122,7 @@ public class RegisterSensorTagActivity extends Activity {
         if (deleteRow >= 0)
         {
             Toast.makeText(RegisterSensorTagActivity.this, "Entry deletion succeeded!", Toast.LENGTH_SHORT).show();
+            DeviceInterface.pushSensortagInfo(this);
         }
         else
         {
@@ -20,7 +20,6 @@ import android.widget.TextView;
 import com.ucsf.R;
 import com.ucsf.core.data.DeviceLocation;
 import com.ucsf.core.services.Messages;
-import com.ucsf.core.services.ResponseListener;
 import com.ucsf.core.services.ServiceCallback;
 import com.ucsf.core.services.ServiceId;
 import com.ucsf.core.services.ServiceParameter;
@@ -41,7 +40,6 @@ import org.json.JSONObject;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Timer;
@@ -61,6 +59,7 @@ public class ServicesActivity extends AppScreen {
     private final List<ServiceDescriptor>           mServices    = new ArrayList<>();
 
     private Timer               mTimer = new Timer();
+    private long                mServicesRequest = 0;
     private Drawable            mWarning;
     private Drawable            mEnabled;
     private Drawable            mDisabled;
@@ -80,20 +79,60 @@ public class ServicesActivity extends AppScreen {
     public void onStart() {
         super.onStart();
 
-        DeviceInterface.requestWatchServices(this,
+        mTimer = new Timer();
+        mTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        requestWatchServices();
+                        updatePhoneServicesStatus();
+                    }
+                });
+            }
+        }, 0, UPDATE_PERIOD);
+    }
+
+    @Override
+    public void onStop() {
+        mTimer.cancel();
+        if (mServicesRequest != 0) {
+            com.ucsf.core.services.DeviceInterface.cancelRequest(mServicesRequest);
+            mServicesRequest = 0;
+        }
+        super.onStop();
+    }
+
+    /**
+     * Requests the watch services, unless a request is already running. The versions of the
+     * known watch services are sent, so that the watch only answers what has changed. Must be
+     * called from the main thread.
+     */
+    private void requestWatchServices() {
+        if (mServicesRequest != 0)
+            return;
+
+        List<ServiceDescriptor> watchServices = new ArrayList<>();
+        for (ServiceDescriptor descriptor : mServices)
+            if (descriptor.service.device == DeviceLocation.PatientWatch)
+                watchServices.add(descriptor);
+
+        mServicesRequest = DeviceInterface.requestWatchServices(this,
+                com.ucsf.core.services.ServiceDescriptor.saveVersions(watchServices),
                 new com.ucsf.core.services.DeviceInterface.RequestListener() {
                     @Override
                     public void requestProcessed(Messages.Request request, JSONObject data)
                             throws Exception
                     {
                         onServicesReceived(data);
+                        onServicesRequestFinished();
                     }
 
                     @Override
                     public void requestTimeout(Messages.Request request) throws Exception {
                         Log.w(TAG, "Watch not found. New connection...");
-                        if (!isFinishing() && !isDestroyed())
-                            DeviceInterface.requestWatchServices(ServicesActivity.this, this);
+                        onServicesRequestFinished();
                     }
 
                     @Override
@@ -101,58 +140,52 @@ public class ServicesActivity extends AppScreen {
                         Log.d(TAG, "Watch connection aborted.");
                     }
                 });
+    }
 
-        mTimer = new Timer();
-        mTimer.schedule(new TimerTask() {
+    /**
+     * Allows the next watch services request.
+     */
+    private void onServicesRequestFinished() {
+        mHandler.post(new Runnable() {
             @Override
             public void run() {
-                final Iterator<ServicesActivity.ServiceDescriptor> it = mServices.iterator();
-                if (it.hasNext()) {
-                    ServicesActivity.ServiceDescriptor descriptor = it.next();
-                    descriptor.updateStatus(new ResponseListener() {
-                        @Override
-                        public void onSuccess() {
-                            synchronized (it) {
-                                if (it.hasNext())
-                                    it.next().updateStatus(this);
-                            }
-                            runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    mAdapter.notifyDataSetChanged();
-                                }
-                            });
-                        }
-
-                        @Override
-                        public void onFailure(String error, Throwable e) {
-                            Log.e(TAG, error ,e);
-                        }
-                    });
-                }
+                mServicesRequest = 0;
             }
-        }, 0, UPDATE_PERIOD);
+        });
     }
 
-    @Override
-    public void onStop() {
-        mTimer.cancel();
-        super.onStop();
+    /**
+     * Updates the status of the phone services. Must be called from the main thread.
+     */
+    private void updatePhoneServicesStatus() {
+        for (ServiceDescriptor descriptor : mServices)
+            if (descriptor.service.device != DeviceLocation.PatientWatch)
+                descriptor.status = ServiceDescriptor.getStatus(
+                        Services.getProvider(descriptor.service));
+        mAdapter.notifyDataSetChanged();
     }
 
     /**
-     * Method called when the phone received the watch services descriptors.
+     * Method called when the phone received the watch services descriptors, i.e. the watch
+     * services which have changed since the last request.
      */
     public void onServicesReceived(JSONObject data) {
         final List<com.ucsf.core.services.ServiceDescriptor> descriptors =
                 ServiceDescriptor.loadDescriptors(this, data);
+        if (descriptors.isEmpty())
+            return;
 
         mHandler.post(new Runnable() {
             @Override
             public void run() {
-                for (com.ucsf.core.services.ServiceDescriptor descriptor : descriptors)
-                    mServicesMap.put(descriptor.service,
-                            new ServicesActivity.ServiceDescriptor(descriptor));
+                for (com.ucsf.core.services.ServiceDescriptor descriptor : descriptors) {
+                    ServiceDescriptor known = mServicesMap.get(descriptor.service);
+                    if (known != null && known.service.device == DeviceLocation.PatientWatch)
+                        known.update(descriptor);
+                    else if (known == null && descriptor.status != null)
+                        mServicesMap.put(descriptor.service,
+                                new ServicesActivity.ServiceDescriptor(descriptor));
+                }
 
                 mServices.clear();
                 mServices.addAll(mServicesMap.values());
@@ -249,29 +282,6 @@ public class ServicesActivity extends AppScreen {
         mAdapter.notifyDataSetChanged();
     }
 
-    /**
-     * Method called when a watch service status update is received.
-     */
-    private void updateServiceStatus(ServiceId service, ServiceDescriptor.Status status) {
-        ServiceDescriptor descriptor;
-        synchronized (mServicesMap) {
-            descriptor = mServicesMap.get(service);
-        }
-
-        if (descriptor == null) {
-            Log.e(TAG, String.format("Service for key '%s' doesn't exist!", service));
-            return;
-        }
-        descriptor.status = status;
-
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                mAdapter.notifyDataSetChanged();
-            }
-        });
-    }
-
     /**
      * Service descriptor class.
      */
@@ -284,37 +294,6 @@ public class ServicesActivity extends AppScreen {
             super(provider);
         }
 
-        /**
-         * Requests a service status, either on the phone or the watch.
-         */
-        public void updateStatus(final ResponseListener listener) {
-            if (service.device == DeviceLocation.PatientWatch) {
-                DeviceInterface.requestServiceStatus(ServicesActivity.this, service,
-                        new com.ucsf.core.services.DeviceInterface.RequestListener() {
-                            @Override
-                            public void requestProcessed(Messages.Request request, JSONObject data) throws Exception {
-                                updateServiceStatus(service, Status.valueOf(data.getString(Messages.VALUE)));
-                                listener.onSuccess();
-                            }
-
-                            @Override
-                            public void requestTimeout(Messages.Request request) throws Exception {
-                                listener.onFailure(String.format("Failed to retrieve service '%s' status!",
-                                        service.getName(ServicesActivity.this)), null);
-                            }
-
-                            @Override
-                            public void requestCancelled(Messages.Request request) throws Exception {
-                                listener.onFailure(String.format("Failed to retrieve service '%s' status!",
-                                        service.getName(ServicesActivity.this)), null);
-                            }
-                        });
-            } else {
-                updateServiceStatus(service, getStatus(Services.getProvider(service)));
-                listener.onSuccess();
-            }
-        }
-
         /**
          * Requests a service parameter update, either on the phone or the watch.
          */
@@ -324,14 +303,7 @@ public class ServicesActivity extends AppScreen {
                         parameter.tag, value);
                 parameter.set(value);
             } else {
-                Services.Provider provider = Services.getProvider(service);
-                boolean isRunning = provider.isServiceRunning();
-                boolean isEnabled = provider.isServiceEnabled();
-                provider.stop();
-                parameter.set(value);
-                if (isRunning || (!isEnabled && provider.isServiceEnabled()))
-                    provider.start();
-                provider.start();
+                Services.getProvider(service).updateParameter(parameter, value);
             }
             mAdapter.notifyDataSetChanged();
         }
@@ -345,13 +317,7 @@ public class ServicesActivity extends AppScreen {
                         parameter.tag);
                 parameter.reset();
             } else {
-                Services.Provider provider = Services.getProvider(service);
-                boolean isRunning = provider.isServiceRunning();
-                boolean isEnabled = provider.isServiceEnabled();
-                provider.stop();
-                parameter.reset();
-                if (isRunning || (!isEnabled && provider.isServiceEnabled()))
-                    provider.start();
+                Services.getProvider(service).resetParameter(parameter);
             }
             mAdapter.notifyDataSetChanged();
         }
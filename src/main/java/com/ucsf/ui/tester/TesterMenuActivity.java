@@ -1,20 +1,31 @@
 package com.ucsf.ui.tester;
 
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.Toast;
 
 import com.ucsf.R;
+import com.ucsf.core.services.MessageBenchmark;
+import com.ucsf.core.services.ServiceDescriptor;
 import com.ucsf.core.services.Services;
+import com.ucsf.core_phone.services.MockIngestionServer;
 import com.ucsf.core_phone.ui.Theme;
 import com.ucsf.core_phone.ui.widgets.CustomDialog;
 import com.ucsf.data.PatientProfile;
 import com.ucsf.data.Settings;
 import com.ucsf.security.AdminInstance;
+import com.ucsf.services.StartupService;
+import com.ucsf.services.UploadBenchmark;
 import com.ucsf.ui.StartScreenActivity;
 import com.ucsf.ui.admin.PatientIdActivity;
 import com.ucsf.ui.widgets.AppScreen;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Tester main menu.
  *
@@ -22,7 +33,13 @@ import com.ucsf.ui.widgets.AppScreen;
  * @version 1.0
  */
 public class TesterMenuActivity extends AppScreen {
-    private static final String TAG = "ucsf:TesterMenuActivity";
+    private static final String TAG                    = "ucsf:TesterMenuActivity";
+    private static final int    BENCHMARK_TABLES       = 4;
+    private static final int    BENCHMARK_ROWS         = 5000;
+    private static final long   BENCHMARK_LATENCY      = 200;    // 200 ms
+    private static final long   BENCHMARK_BANDWIDTH    = 262144; // 256 KB/s
+    private static final double BENCHMARK_FAILURE_RATE = 0.05;
+    private static final int    BENCHMARK_MESSAGES     = 2000;
 
     private Button mCameraButton;
 
@@ -67,6 +84,22 @@ public class TesterMenuActivity extends AppScreen {
             }
         });
 
+        // Upload benchmark
+        addMenuButton(R.string.action_upload_benchmark, new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                runUploadBenchmark();
+            }
+        });
+
+        // Message benchmark
+        addMenuButton(R.string.action_message_benchmark, new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                runMessageBenchmark();
+            }
+        });
+
         // Camera
         mCameraButton = addMenuButton(AdminInstance.isCameraDisabled(TesterMenuActivity.this) ?
                         R.string.action_enable_camera : R.string.action_disable_camera,
@@ -88,6 +121,70 @@ public class TesterMenuActivity extends AppScreen {
         });
     }
 
+    /**
+     * Runs an {@link UploadBenchmark} against a local server and displays its report.
+     */
+    private void runUploadBenchmark() {
+        Toast.makeText(this, R.string.toast_running_benchmark, Toast.LENGTH_LONG).show();
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                try {
+                    return new UploadBenchmark(TesterMenuActivity.this,
+                            MockIngestionServer.Mode.Http, BENCHMARK_TABLES, BENCHMARK_ROWS,
+                            BENCHMARK_LATENCY, BENCHMARK_BANDWIDTH, BENCHMARK_FAILURE_RATE)
+                            .run().toString();
+                } catch (Exception e) {
+                    Log.e(TAG, "Upload benchmark failed: ", e);
+                    return "Upload benchmark failed: " + e.getMessage();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(String report) {
+                showReport(report);
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Runs a {@link MessageBenchmark} comparing the message formats and displays its report.
+     */
+    private void runMessageBenchmark() {
+        Toast.makeText(this, R.string.toast_running_message_benchmark, Toast.LENGTH_LONG).show();
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                try {
+                    List<ServiceDescriptor> descriptors = new ArrayList<>();
+                    for (Services.Provider provider :
+                            StartupService.getApplicationProviders(TesterMenuActivity.this))
+                        descriptors.add(new ServiceDescriptor(provider));
+                    return new MessageBenchmark(TesterMenuActivity.this, descriptors,
+                            BENCHMARK_MESSAGES).run().toString();
+                } catch (Exception e) {
+                    Log.e(TAG, "Message benchmark failed: ", e);
+                    return "Message benchmark failed: " + e.getMessage();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(String report) {
+                showReport(report);
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Displays the given benchmark report.
+     */
+    private void showReport(String report) {
+        CustomDialog.Builder dialogBuilder = new CustomDialog.Builder(TesterMenuActivity.this);
+        dialogBuilder.addFooterButton(R.string.action_done, null);
+        dialogBuilder.setMessage(report);
+        dialogBuilder.show();
+    }
+
     private boolean areSettingsValid() {
         PatientProfile patientProfile = Settings.getCurrentPatientProfile(this);
         if (patientProfile == null || !patientProfile.isValid()) {
@@ -1,38 +1,53 @@
 package com.ucsf.wear.services;
 
 import android.content.Context;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.Pair;
 
+import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
+import com.google.android.gms.wearable.Channel;
+import com.google.android.gms.wearable.ChannelApi;
 import com.google.android.gms.wearable.DataApi;
-import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.DataEventBuffer;
 import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.Wearable;
 import com.ucsf.core.data.DataManager;
 import com.ucsf.core.data.Entry;
 import com.ucsf.core.data.SharedTables;
 import com.ucsf.core.data.Timestamp;
+import com.ucsf.core.data.Watermarks;
 import com.ucsf.core.services.Messages;
 import com.ucsf.core.services.Messages.Event;
 import com.ucsf.core.services.Messages.Request;
+import com.ucsf.core.services.ResponseListener;
 import com.ucsf.core.services.ServiceCallback;
 import com.ucsf.core.services.ServiceDescriptor;
 import com.ucsf.core.services.ServiceId;
 import com.ucsf.core.services.ServiceParameter;
 import com.ucsf.core.services.Services;
+import com.ucsf.core.services.TableChunk;
+import com.ucsf.core.services.TableStream;
+import com.ucsf.core.services.TrafficLanes;
+import com.ucsf.core.services.WearableClient;
 import com.ucsf.wear.data.Settings;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.DataInputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Service responsible of the communication between the phone and the watch.
@@ -41,7 +56,11 @@ import java.util.List;
  * @version 1.0
  */
 public class DeviceInterface extends com.ucsf.core.services.DeviceInterface {
-    private static final String TAG = "ucsf:DeviceInterface";
+    private static final String           TAG               = "ucsf:DeviceInterface";
+    private static final Acknowledgements mAcknowledgements = new Acknowledgements();
+
+    /** Data items sent and not deleted by the phone yet, indexed by path. */
+    private static final Map<String, DataResultCallback> mInFlight = new HashMap<>();
 
     /**
      * Sets the patient information from the received data.
@@ -68,41 +87,50 @@ public class DeviceInterface extends com.ucsf.core.services.DeviceInterface {
         });
     }
 
+    /**
+     * Sets the SensorTag configuration from the received data. Nothing is done if the data only
+     * contains the hash, i.e. if the configuration has not changed. Otherwise the new
+     * configuration is applied to the running {@link SensorTagService}, without restarting the
+     * other services.
+     */
     public static void setSensortagInfo(final Context context, JSONObject data) throws Exception {
+        final String hash         = data.optString(Messages.CONFIG_HASH);
+        JSONArray    resultsArray = data.optJSONArray("all_data");
+        if (resultsArray == null)
+            return;
+
         List<String> tmpSensortagIdGroup = new ArrayList<String>();
         List<String> tmpSensortagTypeGroup = new ArrayList<String>();
+        for (int i = 0; i < resultsArray.length(); i++) {
+            tmpSensortagIdGroup.add(resultsArray.getJSONObject(i).getString("sensortag_id"));
+            tmpSensortagTypeGroup.add(resultsArray.getJSONObject(i).getString("sensortag_type"));
+        }
+        final String sensortagIdGroup = TextUtils.join("/", tmpSensortagIdGroup);
+        final String sensortagTypeGroup = TextUtils.join("/", tmpSensortagTypeGroup);
+        if (sensortagIdGroup.equals(Settings.getCurrentSensortagIdGroup(context))
+                && sensortagTypeGroup.equals(Settings.getCurrentSensortagTypeGroup(context)))
+        {
+            Settings.setCurrentSensortagConfigHash(context, hash);
+            return;
+        }
 
-        JSONArray resultsArray = data.optJSONArray("all_data");
-        if(resultsArray != null) {
-            for (int i = 0; i < resultsArray.length(); i++) {
-                tmpSensortagIdGroup.add(resultsArray.getJSONObject(i).getString("sensortag_id"));
-                tmpSensortagTypeGroup.add(resultsArray.getJSONObject(i).getString("sensortag_type"));
-            }
-            final String sensortagIdGroup = TextUtils.join("/", tmpSensortagIdGroup);
-            final String sensortagTypeGroup = TextUtils.join("/", tmpSensortagTypeGroup);
-            System.out.println(tmpSensortagIdGroup);
-            System.out.println(tmpSensortagTypeGroup);
-            if(sensortagIdGroup.equals(Settings.getCurrentSensortagIdGroup(context))
-                    && sensortagTypeGroup.equals(Settings.getCurrentSensortagTypeGroup(context)))
-            {
-                return;
-            }
-
-            Handler mainHandler = new Handler(context.getMainLooper());
-            mainHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        Services.stopServices();
-                        Settings.setCurrentSensortagIdGroup(context, sensortagIdGroup);
-                        Settings.setCurrentSensortagTypeGroup(context, sensortagTypeGroup);
-                        StartupService.startServices(context);
-                    } catch (Exception e) {
-                        Log.e(TAG, "Failed to start services: ", e);
-                    }
+        // Apply the configuration on the main thread, where the SensorTags are monitored
+        Log.d(TAG, String.format("New SensorTag configuration %s: %s (%s)", hash,
+                sensortagIdGroup, sensortagTypeGroup));
+        Handler mainHandler = new Handler(context.getMainLooper());
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Settings.setCurrentSensortagIdGroup(context, sensortagIdGroup);
+                    Settings.setCurrentSensortagTypeGroup(context, sensortagTypeGroup);
+                    Settings.setCurrentSensortagConfigHash(context, hash);
+                    SensorTagService.onConfigurationChanged();
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to apply the SensorTag configuration: ", e);
                 }
-            });
-        }
+            }
+        });
     }
 
     /**
@@ -117,25 +145,17 @@ public class DeviceInterface extends com.ucsf.core.services.DeviceInterface {
         });
     }
 
+    /**
+     * Sends a request in order to get the SensorTag configuration. The hash of the current
+     * configuration is sent, so that the phone only answers the configuration if it has changed.
+     */
     public static void requestSensortagInfo(final Context context) {
         sendRequest(context, Request.SENSORTAG_INFO, new RequestListener() {
             @Override
             public void requestProcessed(Request request, JSONObject data) throws Exception {
                 setSensortagInfo(context, data);
-                //System.out.println("load dataAcquired!!!");
             }
-        });
-    }
-
-    /**
-     * Sends the uncommitted content of the given tables using Android Wear data layer API.
-     * http://developer.android.com/training/wearables/data-layer/data-items.html
-     * If the handset and wearable devices are disconnected, the data is
-     * buffered and synced when the connection is re-established.
-     * this is why the dataAPI is used over the messageAPI
-     */
-    public static void sendData(final Context context, final Collection<DataManager.Table> tables) {
-        sendData(context, tables, false);
+        }, new Entry(Messages.CONFIG_HASH, Settings.getCurrentSensortagConfigHash(context)));
     }
 
     /**
@@ -144,85 +164,238 @@ public class DeviceInterface extends com.ucsf.core.services.DeviceInterface {
      * If the handset and wearable devices are disconnected, the data is
      * buffered and synced when the connection is re-established.
      * this is why the dataAPI is used over the messageAPI
+     * The number of items waiting for an acknowledgement is limited by a {@link SyncWindow}
+     * configured by the {@link PhoneUploaderService} parameters. An item is acknowledged once the
+     * phone has stored it and deleted it (see {@link DeviceInterface#onDataChanged}). The items
+     * are sent on the bulk lane of {@link TrafficLanes}, after the previous transfers.
+     * @param listener Listener notified once the phone has stored all the items. Can be null.
      */
     public static void sendData(final Context context, final Collection<DataManager.Table> tables,
-                                final boolean includingCommittedData)
+                                final boolean includingCommittedData,
+                                final ResponseListener listener)
     {
-        new AsyncTask<Void, Void, Void>() {
+        TrafficLanes.BULK.execute(new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public void run() {
+                PhoneUploaderService.Provider provider = PhoneUploaderService.getProvider(context);
+                SyncWindow window = new SyncWindow(provider.getSyncWindowItems(),
+                        provider.getSyncWindowBytes(), listener);
+                long       epoch  = Settings.getDataEpoch(context);
+                forgetFinishedRounds();
                 try (Connection connection = openConnection(context)) {
-                    DataManager.Condition notCommitted =
-                            new DataManager.Condition.Equal<>(DataManager.KEY_IS_COMMITTED, 0);
-                    DataManager.Condition timestampCond =
-                            new DataManager.Condition.LessEqual<>(DataManager.KEY_TIMESTAMP,
-                                    Timestamp.getTimestamp());
-                    DataManager.Condition endCond =
-                            new DataManager.Condition.LessEqual<>(SharedTables.GroundTrust.KEY_END,
-                                    Timestamp.getTimestamp());
-                    DataResultCallback callback = new DataResultCallback(context);
-
                     try (DataManager instance = DataManager.get(context)) {
                         Log.d(TAG, "Sending tables content...");
                         for (DataManager.Table table : tables) {
-                            DataManager.Cursor cursor;
-                            if (includingCommittedData) {
-                                if (table == SharedTables.GroundTrust.getTable(instance))
-                                    cursor = table.fetch(endCond);
-                                else
-                                    cursor = table.fetch(timestampCond);
-                            } else {
-                                if (table == SharedTables.GroundTrust.getTable(instance))
-                                    cursor = table.fetch(notCommitted, endCond);
-                                else
-                                    cursor = table.fetch(notCommitted, timestampCond);
-                            }
-
-                            Log.d(TAG,table.tag);
-                            Log.d(TAG,table.toString());
+                            DataManager.Cursor cursor = fetchRows(context, instance, table,
+                                    includingCommittedData, 0);
 
+                            // Send the rows by chunks of consecutive row ids
                             if (cursor != null && cursor.moveToFirst()) {
-                                do {
-
-                                    //Log.d(TAG, String.format("number of values pushed at timestamp %s:\n%s", Timestamp.getTimestamp(), cursor.getCount()));
-                                    PutDataMapRequest dataMapRequest = PutDataMapRequest.create(
-                                            createTableEntryPath(table, cursor));
-
-                                    DataMap map = dataMapRequest.getDataMap();
-                                    for (final DataManager.TableField field : table.fields) {
-                                        switch (field.type) {
-                                            case Text:
-                                            case UniqueText:
-                                                map.putString(field.tag, cursor.getString(field.tag));
-                                                break;
-                                            case Integer:
-                                            case Boolean:
-                                                if (!field.tag.equals(DataManager.KEY_IS_COMMITTED))
-                                                    map.putInt(field.tag, cursor.getInt(field.tag));
-                                                break;
-                                            case Real:
-                                                map.putDouble(field.tag, cursor.getDouble(field.tag));
-                                                break;
-                                            case Long:
-                                                map.putLong(field.tag, cursor.getLong(field.tag));
-                                                break;
-                                            case Blob:
-                                                map.putByteArray(field.tag, cursor.getBlob(field.tag));
-                                                break;
-                                        }
+                                while (cursor.getPosition() < cursor.getCount()) {
+                                    TableChunk chunk = TableChunk.read(table, cursor, epoch);
+                                    PutDataMapRequest dataMapRequest =
+                                            PutDataMapRequest.create(chunk.getPath());
+                                    chunk.writeTo(dataMapRequest.getDataMap());
+                                    window.acquire(chunk.getPath(), chunk.getSize());
+                                    mAcknowledgements.sent(chunk);
+
+                                    DataResultCallback callback =
+                                            new DataResultCallback(context, window, chunk);
+                                    synchronized (mInFlight) {
+                                        mInFlight.put(chunk.getPath(), callback);
                                     }
-
                                     sendData(connection, dataMapRequest, callback);
-                                } while (cursor.moveToNext());
+                                }
                             }
                         }
                     }
+                    window.close(null);
                 } catch (Exception e) {
                     Log.e(TAG, "Failed to send tables content: ", e);
+                    window.close(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Forgets the data items of the rounds which are over, whose deletion by the phone is not
+     * waited for anymore.
+     */
+    private static void forgetFinishedRounds() {
+        synchronized (mInFlight) {
+            Iterator<DataResultCallback> it = mInFlight.values().iterator();
+            while (it.hasNext())
+                if (it.next().mWindow.isDone())
+                    it.remove();
+        }
+    }
+
+    /**
+     * Sends the content of the given tables to the phone through a single stream, which is much
+     * faster than the data items for a large backlog. The transfer resumes after the last rows
+     * received by the phone during the previous transfers, and the committed mark of each table
+     * moves forward as the phone acknowledges the rows. If the transfer fails, the remaining rows
+     * are sent as data items (see
+     * {@link DeviceInterface#sendData(Context, Collection, boolean, ResponseListener)}).
+     * @param listener Listener notified once all the rows have been acknowledged. Can be null.
+     */
+    public static void sendBulkData(final Context context,
+                                    final Collection<DataManager.Table> tables,
+                                    final boolean includingCommittedData,
+                                    final ResponseListener listener)
+    {
+        TrafficLanes.BULK.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    streamData(context, tables, includingCommittedData);
+                    Log.d(TAG, "Tables content successfully streamed.");
+                    if (listener != null)
+                        listener.onSuccess();
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to stream tables content, falling back to data items: ", e);
+                    sendData(context, tables, includingCommittedData, listener);
                 }
-                return null;
             }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        });
+    }
+
+    /**
+     * Streams the content of the given tables to the phone through a Wearable channel.
+     */
+    private static void streamData(final Context context,
+                                   final Collection<DataManager.Table> tables,
+                                   final boolean includingCommittedData) throws Exception
+    {
+        try (Connection connection = openConnection(context)) {
+            final GoogleApiClient client = connection.getClient();
+            Collection<String> nodes = WearableClient.get(context).getNodes();
+            if (nodes.isEmpty())
+                throw new Exception("No phone connected.");
+
+            ChannelApi.OpenChannelResult result = Wearable.ChannelApi.openChannel(client,
+                    nodes.iterator().next(), TableStream.PATH).await();
+            if (!result.getStatus().isSuccess())
+                throw new Exception("Failed to open channel, status code: " +
+                        result.getStatus().getStatusCode());
+
+            Channel channel = result.getChannel();
+            try (DataManager instance = DataManager.get(context)) {
+                final DataInputStream control = new DataInputStream(
+                        channel.getInputStream(client).await().getInputStream());
+                OutputStream out = channel.getOutputStream(client).await().getOutputStream();
+                Map<String, Long> offsets = TableStream.readOffsets(control);
+                long              epoch   = Settings.getDataEpoch(context);
+
+                // The offsets of another database, or of the previous transfers when the
+                // committed rows are sent again, don't apply
+                Long offsetsEpoch = offsets.get(TableStream.EPOCH);
+                if (includingCommittedData || offsetsEpoch == null || offsetsEpoch != epoch)
+                    offsets.clear();
+
+                // Commit the rows as they are acknowledged by the phone
+                final Exception[] ackError = new Exception[1];
+                Thread acks = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            TableChunk chunk;
+                            while ((chunk = TableStream.readAck(control)) != null)
+                                mAcknowledgements.acknowledged(context, chunk);
+                        } catch (Exception e) {
+                            ackError[0] = e;
+                        }
+                    }
+                });
+                acks.start();
+
+                try (TableStream.Writer writer = new TableStream.Writer(out)) {
+                    for (DataManager.Table table : tables) {
+                        Long offset = offsets.get(table.tag);
+                        DataManager.Cursor cursor = fetchRows(context, instance, table,
+                                includingCommittedData, offset == null ? 0 : offset);
+                        if (cursor != null && cursor.moveToFirst()) {
+                            while (cursor.getPosition() < cursor.getCount()) {
+                                TableChunk chunk = TableChunk.read(table, cursor, epoch);
+                                mAcknowledgements.sent(chunk);
+                                writer.write(chunk);
+                            }
+                        }
+                    }
+                }
+
+                acks.join();
+                if (ackError[0] != null)
+                    throw ackError[0];
+            } finally {
+                channel.close(client);
+            }
+        }
+    }
+
+    /**
+     * Returns a cursor on the rows of the given table to send to the phone, ordered by row id,
+     * and starts tracking their acknowledgements.
+     * @param includingCommittedData If false, only the rows above the committed mark of the table
+     *                               are returned.
+     * @param afterRowId             Only the rows with a greater row id are returned, unless it
+     *                               is above the last row id of the table.
+     */
+    private static DataManager.Cursor fetchRows(Context context, DataManager instance,
+                                                DataManager.Table table,
+                                                boolean includingCommittedData, long afterRowId)
+            throws Exception
+    {
+        long mark = Watermarks.get(context, table, Watermarks.ALL_PATIENTS);
+        if (afterRowId > table.getLastRowId())
+            afterRowId = 0; // The phone received rows whose ids have been reused since
+        if (!includingCommittedData)
+            afterRowId = Math.max(afterRowId, mark);
+
+        // Rows are sent once their acquisition is over
+        String timeField;
+        if (table == SharedTables.GroundTrust.getTable(instance))
+            timeField = SharedTables.GroundTrust.KEY_END;
+        else
+            timeField = DataManager.KEY_TIMESTAMP;
+        String now = Timestamp.getTimestamp();
+
+        // The mark must not go past the first row which cannot be sent yet
+        long limit = Long.MAX_VALUE;
+        DataManager.Cursor pending = table.fetchOrdered(1, new String[]{DataManager.KEY_ROW_ID},
+                DataManager.KEY_ROW_ID,
+                new DataManager.Condition.Greater<>(DataManager.KEY_ROW_ID, mark),
+                new DataManager.Condition.Greater<>(timeField, now));
+        if (pending != null && pending.moveToFirst())
+            limit = pending.getLong(DataManager.KEY_ROW_ID) - 1;
+        mAcknowledgements.start(table, mark, limit);
+
+        List<DataManager.Condition> conditions = new ArrayList<>();
+        conditions.add(new DataManager.Condition.Greater<>(DataManager.KEY_ROW_ID, afterRowId));
+        conditions.add(new DataManager.Condition.LessEqual<>(timeField, now));
+        if (!includingCommittedData) // Rows committed by the previous versions of the application
+            conditions.add(new DataManager.Condition.Equal<>(DataManager.KEY_IS_COMMITTED, 0));
+
+        return table.fetchOrdered(0, DataManager.KEY_ROW_ID,
+                conditions.toArray(new DataManager.Condition[conditions.size()]));
+    }
+
+    @Override
+    public void onDataChanged(DataEventBuffer dataEvents) {
+        // The phone deletes the data items once it has stored their rows
+        for (DataEvent event : dataEvents) {
+            if (event.getType() != DataEvent.TYPE_DELETED)
+                continue;
+
+            DataResultCallback callback;
+            synchronized (mInFlight) {
+                callback = mInFlight.remove(event.getDataItem().getUri().getPath());
+            }
+            if (callback != null)
+                callback.onDelivered();
+        }
+        dataEvents.release();
     }
 
     @Override
@@ -240,6 +413,9 @@ public class DeviceInterface extends com.ucsf.core.services.DeviceInterface {
             case TOGGLE_SERVICES:
                 toggleServices(data.getBoolean(Messages.VALUE));
                 break;
+            case SENSORTAG_CONFIG_CHANGED:
+                setSensortagInfo(this, data);
+                break;
             case PATIENT_OUTSIDE:
                 updateRangingWaitInterval(false);
                 updateSensorTagMode(false);
@@ -277,14 +453,21 @@ public class DeviceInterface extends com.ucsf.core.services.DeviceInterface {
                         data.getString(Messages.PARAMETER_ID));
                 break;
             case SERVICES:
-                sendBackWatchServices();
+                sendBackWatchServices(data);
                 break;
             case SERVICES_STATUS:
                 sendBackServiceStatus(ServiceId.valueOf(data.getString(Messages.SERVICE_ID)));
                 break;
+            case SENSORTAG_CONFIG:
+                replyToRequest(this, request);
+                setSensortagInfo(this, data);
+                break;
             case PING:
                 replyToRequest(this, request);
-                requestPatientInfo(this);
+                if (data != null && data.has(DataManager.KEY_PATIENT_ID))
+                    setPatientInfo(this, data);
+                else // Ping sent by the previous versions of the application
+                    requestPatientInfo(this);
                 break;
             default:
                 Log.w(TAG, String.format("Unexpected request '%s'!", request.getTag()));
@@ -304,13 +487,14 @@ public class DeviceInterface extends com.ucsf.core.services.DeviceInterface {
     }
 
     /**
-     * Sends the list of registered watch services.
+     * Sends the list of registered watch services, or only what has changed since the versions
+     * known by the phone if any.
      */
-    private void sendBackWatchServices() throws Exception {
+    private void sendBackWatchServices(JSONObject versions) throws Exception {
         List<ServiceDescriptor> services = new ArrayList<>();
         for (Services.Provider provider : StartupService.getApplicationProviders(this))
             services.add(new ServiceDescriptor(provider));
-        replyToRequest(this, Request.SERVICES, ServiceDescriptor.saveDescriptors(services));
+        replyToRequest(this, Request.SERVICES, ServiceDescriptor.saveChanges(services, versions));
     }
 
     /**
@@ -338,12 +522,7 @@ public class DeviceInterface extends com.ucsf.core.services.DeviceInterface {
                 parameter.get().toString(),
                 value.toString()));
 
-        boolean isRunning = provider.isServiceRunning();
-        boolean isEnabled = provider.isServiceEnabled();
-        provider.stop();
-        parameter.set(value);
-        if (isRunning || (!isEnabled && provider.isServiceEnabled()))
-            provider.start();
+        provider.updateParameter(parameter, value);
     }
 
     /**
@@ -357,12 +536,7 @@ public class DeviceInterface extends com.ucsf.core.services.DeviceInterface {
                 provider.getServiceName(),
                 parameterTag));
 
-        boolean isRunning = provider.isServiceRunning();
-        boolean isEnabled = provider.isServiceEnabled();
-        provider.stop();
-        parameter.reset();
-        if (isRunning || (!isEnabled && provider.isServiceEnabled()))
-            provider.start();
+        provider.resetParameter(parameter);
     }
 
     /**
@@ -394,35 +568,114 @@ public class DeviceInterface extends com.ucsf.core.services.DeviceInterface {
         }
     }
 
+    /**
+     * Tracks the chunks sent to the phone, in order to move the committed
+     * {@link Watermarks mark} of each table forward over the acknowledged chunks. Acknowledgements
+     * can come in any order, so the mark only moves over a chunk once all the chunks sent before
+     * it have been acknowledged. A chunk which failed blocks the mark until the next round, which
+     * sends again all the rows above the mark.
+     */
+    private static class Acknowledgements {
+        private final Map<DataManager.Table, TreeMap<Long, Long>> mPending = new HashMap<>();
+        private final Map<DataManager.Table, TreeMap<Long, Long>> mAcked   = new HashMap<>();
+        private final Map<DataManager.Table, Long>                mMarks   = new HashMap<>();
+        private final Map<DataManager.Table, Long>                mLimits  = new HashMap<>();
+
+        /**
+         * Starts a new round of the given table, forgetting the chunks of the previous rounds.
+         * @param mark  Current committed mark of the table.
+         * @param limit Row id above which the mark cannot go during this round.
+         */
+        public synchronized void start(DataManager.Table table, long mark, long limit) {
+            mPending.put(table, new TreeMap<Long, Long>());
+            mAcked.put(table, new TreeMap<Long, Long>());
+            mMarks.put(table, mark);
+            mLimits.put(table, limit);
+        }
+
+        /**
+         * Registers a chunk about to be sent.
+         */
+        public synchronized void sent(TableChunk chunk) {
+            mPending.get(chunk.table).put(chunk.firstRowId, chunk.lastRowId);
+        }
+
+        /**
+         * Registers the acknowledgement of the given chunk, and persists the new mark of its
+         * table if it has moved.
+         */
+        public synchronized void acknowledged(Context context, TableChunk chunk) throws Exception {
+            TreeMap<Long, Long> pending = mPending.get(chunk.table);
+            if (pending == null || pending.remove(chunk.firstRowId) == null)
+                return; // Chunk of a previous round
+
+            TreeMap<Long, Long> acked = mAcked.get(chunk.table);
+            acked.put(chunk.firstRowId, chunk.lastRowId);
+
+            // Move the mark over the acknowledged chunks preceding the first pending one
+            long limit = mLimits.get(chunk.table);
+            if (!pending.isEmpty())
+                limit = Math.min(limit, pending.firstKey() - 1);
+
+            long mark    = mMarks.get(chunk.table);
+            long newMark = mark;
+            Iterator<Map.Entry<Long, Long>> it = acked.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Long> range = it.next();
+                if (range.getValue() > limit)
+                    break;
+                newMark = Math.max(newMark, range.getValue());
+                it.remove();
+            }
+
+            if (newMark > mark) {
+                Watermarks.set(context, chunk.table, Watermarks.ALL_PATIENTS, newMark);
+                mMarks.put(chunk.table, newMark);
+            }
+        }
+    }
+
+    /**
+     * Callback of a data item carrying a chunk. The chunk is acknowledged once the phone has
+     * deleted the data item, after storing its rows.
+     */
     private static class DataResultCallback implements ResultCallback<DataApi.DataItemResult> {
-        private final Context mContext;
+        private final Context    mContext;
+        private final SyncWindow mWindow;
+        private final TableChunk mChunk;
 
-        public DataResultCallback(Context context) {
+        public DataResultCallback(Context context, SyncWindow window, TableChunk chunk) {
             mContext = context;
+            mWindow  = window;
+            mChunk   = chunk;
         }
 
         @Override
-        public synchronized void onResult(DataApi.DataItemResult dataItemResult) {
+        public void onResult(DataApi.DataItemResult dataItemResult) {
             Status status = dataItemResult.getStatus();
-            if (status.isSuccess()) {
-                try (DataManager instance = DataManager.get(mContext)) {
-                    String                path  = dataItemResult.getDataItem().getUri().getPath();
-                    Pair<String, Integer> p     = parseMessagePath(path);
-                    String                table = p.first;
-                    int                   rowId = p.second;
-
-                    // Mark the row as committed
-                    instance.update(table,
-                            new Entry[]{
-                                    new Entry(DataManager.KEY_IS_COMMITTED, 1)
-                            },
-                            new DataManager.Condition.Equal<>(DataManager.KEY_ROW_ID, rowId)
-                    );
-                } catch (Exception e) {
-                    Log.e(TAG, "An error occurred while reading result: ", e);
-                }
-            } else
-                Log.e(TAG, "Failed to push data item, status code: " + status.getStatusCode());
+            if (status.isSuccess())
+                return;
+
+            Log.e(TAG, "Failed to push data item, status code: " + status.getStatusCode());
+            synchronized (mInFlight) {
+                if (mInFlight.get(mChunk.getPath()) == this)
+                    mInFlight.remove(mChunk.getPath());
+            }
+            mWindow.release(mChunk.getPath(), false);
+        }
+
+        /**
+         * Method called when the phone has deleted the data item.
+         */
+        public void onDelivered() {
+            boolean success = true;
+            try {
+                mAcknowledgements.acknowledged(mContext, mChunk);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to acknowledge the data item: ", e);
+                success = false;
+            }
+            mWindow.release(mChunk.getPath(), success);
         }
     }
 
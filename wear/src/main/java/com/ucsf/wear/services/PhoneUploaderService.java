@@ -8,6 +8,7 @@ import android.widget.Toast;
 import com.ucsf.core.services.Annotations;
 import com.ucsf.core.services.ResponseListener;
 import com.ucsf.core.services.ServiceId;
+import com.ucsf.core.services.ServiceParameter;
 import com.ucsf.core.services.UploaderService;
 import com.ucsf.wear.R;
 
@@ -22,6 +23,9 @@ public class PhoneUploaderService extends UploaderService {
     private static final String KEY_PUSH_DATA     = "a";
     private static final String KEY_SYNC_UP       = "b";
     private static final String KEY_PUSH_ALL_DATA = "c";
+    private static final long   STREAM_DELAY      = 6 * AlarmManager.INTERVAL_HOUR;
+    private static final int    SYNC_WINDOW_ITEMS = 16;
+    private static final long   SYNC_WINDOW_BYTES = 1048576; // 1 MB
 
     private static Provider mInstance;
 
@@ -43,6 +47,26 @@ public class PhoneUploaderService extends UploaderService {
      * Phone uploader service provider class.
      */
     public static class Provider extends UploaderService.Provider {
+        private final ServiceParameter<Integer> mSyncWindowItems;
+        private final ServiceParameter<Long>    mSyncWindowBytes;
+
+        /**
+         * Listener finishing the commit once the phone has acknowledged all the data.
+         */
+        private final ResponseListener mCommitListener = new ResponseListener() {
+            @Override
+            public void onSuccess() {
+                Log.d(TAG, "Data pushed to the phone.");
+                onFinishCommit(true);
+            }
+
+            @Override
+            public void onFailure(String error, Throwable e) {
+                Log.e(TAG, "Failed to push data to the phone: " + error, e);
+                onFinishCommit(false);
+            }
+        };
+
         private Provider(Context context) {
             //Local database being uploaded to the phone every hour
             //If the interval is changed, the watch has to be restarted for the change to take effect
@@ -54,15 +78,53 @@ public class PhoneUploaderService extends UploaderService {
             addCallback("PUSH_DATA", R.string.parameter_push_data, KEY_PUSH_DATA);
             addCallback("PUSH_ALL_DATA", R.string.parameter_push_all_data, KEY_PUSH_ALL_DATA);
             addCallback("SYNC_UP"      , R.string.parameter_sync     , KEY_SYNC_UP);
+
+            mSyncWindowItems = addParameter("SYNC_WINDOW_ITEMS",
+                    R.string.parameter_sync_window_items, SYNC_WINDOW_ITEMS);
+            mSyncWindowBytes = addParameter("SYNC_WINDOW_BYTES",
+                    R.string.parameter_sync_window_bytes, SYNC_WINDOW_BYTES);
+        }
+
+        @Override
+        protected boolean onParameterChanged(ServiceParameter<?> parameter) throws Exception {
+            // The sync window is created for each push
+            return parameter == mSyncWindowItems || parameter == mSyncWindowBytes ||
+                    super.onParameterChanged(parameter);
+        }
+
+        /**
+         * Returns the maximal number of data items sent to the phone and not acknowledged yet.
+         */
+        public int getSyncWindowItems() {
+            return mSyncWindowItems.get();
+        }
+
+        /**
+         * Returns the maximal number of bytes sent to the phone and not acknowledged yet.
+         */
+        public long getSyncWindowBytes() {
+            return mSyncWindowBytes.get();
         }
 
         @Override
         public void commit() {
             try {
                 onStartCommit();
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to start pushing data to the phone: ", e);
+                return; // The previous round is still running
+            }
+
+            try {
                 StartupService.loadTables(context);
-                DeviceInterface.sendData(context, getMonitoredTables());
-                onFinishCommit(true);
+
+                // Stream the backlog accumulated during a long disconnection
+                if (System.currentTimeMillis() - getLastCommit() > STREAM_DELAY)
+                    DeviceInterface.sendBulkData(context, getMonitoredTables(), false,
+                            mCommitListener);
+                else
+                    DeviceInterface.sendData(context, getMonitoredTables(), false,
+                            mCommitListener);
             } catch (Exception e) {
                 Log.e(TAG, "Failed to push data to the phone: ", e);
                 onFinishCommit(false);
@@ -104,9 +166,15 @@ public class PhoneUploaderService extends UploaderService {
             Toast.makeText(context, R.string.toast_pushing_data, Toast.LENGTH_SHORT).show();
             try {
                 onStartCommit();
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to start pushing data to the phone: ", e);
+                return; // The previous round is still running
+            }
+
+            try {
                 StartupService.loadTables(context);
-                DeviceInterface.sendData(context, getMonitoredTables(), true);
-                onFinishCommit(true);
+                DeviceInterface.sendBulkData(context, getMonitoredTables(), true,
+                        mCommitListener);
             } catch (Exception e) {
                 Log.e(TAG, "Failed to push data to the phone: ", e);
                 onFinishCommit(false);
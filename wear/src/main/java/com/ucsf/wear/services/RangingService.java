@@ -86,6 +86,7 @@ public class RangingService extends BackgroundService implements BeaconMonitorin
         private final ServiceParameter<Long> mIndoorWaitPeriod;
         private final ServiceParameter<Long> mOutdoorWaitPeriod;
         private final ServiceParameter<Long> mScanPeriod;
+        private       boolean                mIsIndoor = true;
 
         private Provider(Context context) {
             super(context, RangingService.class, ServiceId.PW_RangingService);
@@ -103,6 +104,7 @@ public class RangingService extends BackgroundService implements BeaconMonitorin
          */
         @Annotations.MappedMethod(KEY_UPDATE_RANGING_INTERVAL)
         public void setIndoorMode(boolean enable) {
+            mIsIndoor = enable;
             if (enable) {
                 BeaconMonitoring.resetMonitoringPeriods(mIndoorWaitPeriod.get(),
                         mScanPeriod.get());
@@ -112,6 +114,17 @@ public class RangingService extends BackgroundService implements BeaconMonitorin
             }
         }
 
+        @Override
+        protected boolean onParameterChanged(ServiceParameter<?> parameter) throws Exception {
+            if (parameter != mIndoorWaitPeriod && parameter != mOutdoorWaitPeriod &&
+                    parameter != mScanPeriod)
+                return super.onParameterChanged(parameter);
+
+            // Apply the periods of the current mode to the running scans
+            setIndoorMode(mIsIndoor);
+            return true;
+        }
+
         /**
          * Returns the period between two consecutive beacons scans.
          */
@@ -577,57 +577,7 @@ public class SensorTagMonitoring {
                 isAutomaticMode = mode;
 
                 //first retrieve sensortag configurations settings
-                //this gives us the list of targeted sensortags and the respective desired sensor types
-                String sensorTagIds = Settings.getCurrentSensortagIdGroup(mContext);
-                String sensorTypes = Settings.getCurrentSensortagTypeGroup(mContext);
-                Log.d(TAG, "SensorTags: " + sensorTagIds);
-                Log.d(TAG, "SensorTag Types: " + sensorTypes);
-
-                String[] sensorTagIdList = sensorTagIds.split("/");
-                String[] sensorTypeList = sensorTypes.split("/");
-
-                int i = 0;
-                for (String id : sensorTagIdList) {
-                    SensorTagConfiguration.SensorType tempSensorType = null;
-                    switch (sensorTypeList[i]) {
-                        case "Accelerometer":
-                            tempSensorType = SensorTagConfiguration.SensorType.MOTION;
-                            break;
-                        case "Gyroscope":
-                            tempSensorType = SensorTagConfiguration.SensorType.MOTION;
-                            break;
-                        case "Magnetometer":
-                            tempSensorType = SensorTagConfiguration.SensorType.MOTION;
-                            break;
-                        case "Pressure":
-                            tempSensorType = SensorTagConfiguration.SensorType.PRESSURE;
-                            break;
-                        case "Humidity":
-                            tempSensorType = SensorTagConfiguration.SensorType.HUMIDITY;
-                            break;
-                        case "Ambient Temp":
-                            tempSensorType = SensorTagConfiguration.SensorType.TEMPERATURE;
-                            break;
-                        case "Object Temp":
-                            tempSensorType = SensorTagConfiguration.SensorType.TEMPERATURE;
-                            break;
-                        case "Brightness":
-                            tempSensorType = SensorTagConfiguration.SensorType.BRIGHTNESS;
-                            break;
-                        default:
-                            break;
-                    }
-                    SensorTagConfiguration tempConfig = new SensorTagConfiguration();
-                    if (mBluetoothTargetDevicesMap.containsKey(id)) {
-                        tempConfig = mBluetoothTargetDevicesMap.get(id);
-                        tempConfig.addSensorType(tempSensorType);
-                        mBluetoothTargetDevicesMap.put(id, tempConfig);
-                    } else {
-                        tempConfig.addSensorType(tempSensorType);
-                        mBluetoothTargetDevicesMap.put(id, tempConfig);
-                    }
-                    i++;
-                }
+                loadConfiguration();
 
                 Log.d(TAG, "Automatic mode started.");
                 startAutomaticScan();
@@ -635,6 +585,89 @@ public class SensorTagMonitoring {
         }
     }
 
+    /**
+     * Retrieves the sensortag configuration settings
+     * This gives us the list of targeted sensortags and the respective desired sensor types
+     */
+    private static void loadConfiguration() {
+        mBluetoothTargetDevicesMap.clear();
+        String sensorTagIds = Settings.getCurrentSensortagIdGroup(mContext);
+        String sensorTypes = Settings.getCurrentSensortagTypeGroup(mContext);
+        Log.d(TAG, "SensorTags: " + sensorTagIds);
+        Log.d(TAG, "SensorTag Types: " + sensorTypes);
+
+        String[] sensorTagIdList = sensorTagIds.split("/");
+        String[] sensorTypeList = sensorTypes.split("/");
+
+        int i = 0;
+        for (String id : sensorTagIdList) {
+            SensorTagConfiguration.SensorType tempSensorType = null;
+            switch (sensorTypeList[i]) {
+                case "Accelerometer":
+                    tempSensorType = SensorTagConfiguration.SensorType.MOTION;
+                    break;
+                case "Gyroscope":
+                    tempSensorType = SensorTagConfiguration.SensorType.MOTION;
+                    break;
+                case "Magnetometer":
+                    tempSensorType = SensorTagConfiguration.SensorType.MOTION;
+                    break;
+                case "Pressure":
+                    tempSensorType = SensorTagConfiguration.SensorType.PRESSURE;
+                    break;
+                case "Humidity":
+                    tempSensorType = SensorTagConfiguration.SensorType.HUMIDITY;
+                    break;
+                case "Ambient Temp":
+                    tempSensorType = SensorTagConfiguration.SensorType.TEMPERATURE;
+                    break;
+                case "Object Temp":
+                    tempSensorType = SensorTagConfiguration.SensorType.TEMPERATURE;
+                    break;
+                case "Brightness":
+                    tempSensorType = SensorTagConfiguration.SensorType.BRIGHTNESS;
+                    break;
+                default:
+                    break;
+            }
+            SensorTagConfiguration tempConfig = new SensorTagConfiguration();
+            if (mBluetoothTargetDevicesMap.containsKey(id)) {
+                tempConfig = mBluetoothTargetDevicesMap.get(id);
+                tempConfig.addSensorType(tempSensorType);
+                mBluetoothTargetDevicesMap.put(id, tempConfig);
+            } else {
+                tempConfig.addSensorType(tempSensorType);
+                mBluetoothTargetDevicesMap.put(id, tempConfig);
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Method called by the sensortagservice when the sensortag configuration settings change
+     * The targeted sensortags are reloaded without stopping the automatic monitoring
+     * Connected sensortags which are no longer targeted, or whose sensor types changed, are
+     * disconnected: the latter are reconnected with their new sensors at the next scan
+     */
+    public synchronized void updateConfiguration() {
+        HashMap<String, SensorTagConfiguration> previousTargets =
+                new HashMap<>(mBluetoothTargetDevicesMap);
+        loadConfiguration();
+        if (!isAutomaticMode)
+            return;
+
+        for (String address : new ArrayList<>(mConnectedDevicesMap.keySet())) {
+            SensorTagConfiguration config = mBluetoothTargetDevicesMap.get(address);
+            SensorTagConfiguration previousConfig = previousTargets.get(address);
+            if (config == null || previousConfig == null
+                    || !config.getSensorTypes().equals(previousConfig.getSensorTypes())) {
+                Log.d(TAG, "SensorTag configuration changed - " + address);
+                disconnectDevice(address);
+                closeDevice(address);
+            }
+        }
+    }
+
     /**
      * Device scan callback.
      * This is called every time a bluetooth scan for advertising devices obtains a result
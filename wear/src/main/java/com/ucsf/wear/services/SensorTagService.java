@@ -147,6 +147,15 @@ public class SensorTagService extends BackgroundService implements SensorTagMoni
         prefs.edit().putBoolean("automaticModeEnabled", false).commit();
     }
 
+    /**
+     * Applies the new SensorTag configuration to the running monitoring, if any. Must be called
+     * from the main thread.
+     */
+    public static void onConfigurationChanged() {
+        if (mSensorTagMonitor != null)
+            mSensorTagMonitor.updateConfiguration();
+    }
+
     /**
      * Retrieve SensorTag configuration data from the phone
      */
@@ -0,0 +1,183 @@
+package com.ucsf.wear.services;
+
+import android.util.Log;
+
+import com.ucsf.core.services.ResponseListener;
+import com.ucsf.core.services.TrafficLanes;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sliding window limiting the number of data items, and of bytes, sent to the phone but not
+ * acknowledged yet, so that a large backlog doesn't flood the data layer. The window grows by one
+ * item each time an item is acknowledged faster than {@link SyncWindow#TARGET_LATENCY}, and is
+ * halved when an acknowledgement is slower or when an item fails. Once all the items of a round
+ * have been sent and acknowledged, the listener of the round is notified. The items still pending
+ * {@link SyncWindow#ACK_TIMEOUT} after the last acknowledgement of a closed round are failed, so
+ * that the round always ends.
+ * An item is acknowledged once the phone has stored its rows and deleted it from the data layer,
+ * so that the window bounds what piles up in the data layer and on the phone, and the latency
+ * covers the sync of the item to the phone, its storage and the sync of its deletion.
+ *
+ * @author  Julien Jacquemot
+ * @version 1.0
+ */
+public class SyncWindow {
+    private static final String TAG            = "ucsf:SyncWindow";
+    private static final int    INITIAL_SIZE   = 4;
+    private static final long   TARGET_LATENCY = 10000;  // 10 seconds
+    private static final long   ACK_TIMEOUT    = 300000; // 5 minutes
+
+    private final int                 mMaxItems;
+    private final long                mMaxBytes;
+    private final ResponseListener    mListener;
+    private final Map<String, long[]> mPending = new HashMap<>(); /**< Size and send time. */
+    private       int                 mSize;
+    private       long                mBytes    = 0;
+    private       int                 mSent     = 0;
+    private       int                 mFailures = 0;
+    private       boolean             mIsClosed = false;
+    private       boolean             mIsDone   = false;
+    private       ScheduledFuture<?>  mDeadline = null;
+
+    /**
+     * Creates the window of a round.
+     * @param maxItems Maximal number of items waiting for an acknowledgement.
+     * @param maxBytes Maximal number of bytes waiting for an acknowledgement. A single item
+     *                 larger than this is still sent, alone.
+     * @param listener Listener notified at the end of the round. Can be null.
+     */
+    public SyncWindow(int maxItems, long maxBytes, ResponseListener listener) {
+        mMaxItems = Math.max(1, maxItems);
+        mMaxBytes = maxBytes;
+        mListener = listener;
+        mSize     = Math.min(INITIAL_SIZE, mMaxItems);
+    }
+
+    /**
+     * Waits until the given item fits into the window, and registers it.
+     * @param path Path of the data item.
+     * @param size Size of the data item, in bytes.
+     * @throws Exception If no acknowledgement has been received for too long.
+     */
+    public synchronized void acquire(String path, long size) throws Exception {
+        while (!mPending.isEmpty() &&
+                (mPending.size() >= mSize || mBytes + size > mMaxBytes)) {
+            int pending = mPending.size();
+            wait(ACK_TIMEOUT);
+            if (mPending.size() == pending)
+                throw new Exception(String.format("No acknowledgement received for %d ms.",
+                        ACK_TIMEOUT));
+        }
+
+        mPending.put(path, new long[]{size, System.currentTimeMillis()});
+        mBytes += size;
+        ++mSent;
+    }
+
+    /**
+     * Unregisters the given item, failed or not, and adapts the window size.
+     */
+    public synchronized void release(String path, boolean success) {
+        long[] item = mPending.remove(path);
+        if (item == null)
+            return;
+        mBytes -= item[0];
+
+        long latency = System.currentTimeMillis() - item[1];
+        if (success && latency <= TARGET_LATENCY)
+            mSize = Math.min(mMaxItems, mSize + 1);
+        else
+            mSize = Math.max(1, mSize / 2);
+        if (!success)
+            ++mFailures;
+
+        notifyAll();
+        if (mIsClosed)
+            scheduleDeadline();
+        checkCompletion();
+    }
+
+    /**
+     * Indicates if the round is over, i.e. if its listener has been notified.
+     */
+    public synchronized boolean isDone() {
+        return mIsDone;
+    }
+
+    /**
+     * Indicates that all the items of the round have been sent.
+     * @param error If not null, the round is aborted and the listener immediately notified of the
+     *              failure.
+     */
+    public synchronized void close(Exception error) {
+        if (mIsClosed)
+            return;
+        mIsClosed = true;
+
+        if (error != null) {
+            mPending.clear();
+            mIsDone = true;
+            if (mListener != null)
+                mListener.onFailure("Failed to send tables content: ", error);
+        } else {
+            scheduleDeadline();
+            checkCompletion();
+        }
+    }
+
+    /**
+     * Fails the items which are still pending at the deadline of the round.
+     */
+    private synchronized void expire() {
+        if (mIsDone || mPending.isEmpty())
+            return;
+
+        Log.w(TAG, String.format("No acknowledgement received for %d items in %d ms.",
+                mPending.size(), ACK_TIMEOUT));
+        mFailures += mPending.size();
+        mPending.clear();
+        mBytes = 0;
+        checkCompletion();
+    }
+
+    /**
+     * Sets the deadline of the closed round {@link SyncWindow#ACK_TIMEOUT} from now, replacing
+     * the previous one.
+     */
+    private void scheduleDeadline() {
+        if (mDeadline != null)
+            mDeadline.cancel(false);
+        if (mPending.isEmpty())
+            return;
+
+        mDeadline = TrafficLanes.CONTROL.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Notifies the listener once the round is closed and all its items acknowledged or failed.
+     */
+    private void checkCompletion() {
+        if (mIsDone || !mIsClosed || !mPending.isEmpty())
+            return;
+        mIsDone = true;
+        if (mListener == null)
+            return;
+
+        Log.d(TAG, String.format("Round finished: %d items sent, %d failures.", mSent,
+                mFailures));
+        if (mFailures == 0)
+            mListener.onSuccess();
+        else
+            mListener.onFailure(String.format("%d items out of %d failed.", mFailures, mSent),
+                    null);
+    }
+}